@@ -0,0 +1,13 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package android.content.pm;
+
+/**
+ * JVM stand-in for android.content.pm.PackageManager, so that
+ * DevicePropertiesCollector verifies without android.jar.
+ */
+public abstract class PackageManager {
+
+    public static class NameNotFoundException extends Exception {
+    }
+}
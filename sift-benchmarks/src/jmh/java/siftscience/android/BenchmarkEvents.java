@@ -0,0 +1,82 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import com.sift.api.representations.AndroidAppStateJson;
+import com.sift.api.representations.AndroidDeviceLocationJson;
+import com.sift.api.representations.MobileEventJson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sample events and helpers shared by the benchmarks.
+ */
+final class BenchmarkEvents {
+    static final Queue.UserIdProvider USER_ID_PROVIDER = new Queue.UserIdProvider() {
+        @Override
+        public String getUserId() {
+            return "gary";
+        }
+    };
+
+    static final Queue.UploadRequester UPLOAD_REQUESTER = new Queue.UploadRequester() {
+        @Override
+        public void requestUpload(List<MobileEventJson> events) {
+        }
+    };
+
+    /** A clock that stands still, so that batching is driven by size only. */
+    static final Clock CLOCK = new Clock() {
+        @Override
+        public long now() {
+            return 1500000000000L;
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return 1000000L;
+        }
+    };
+
+    private BenchmarkEvents() {
+    }
+
+    /**
+     * @return an App State event like the ones AppStateCollector makes
+     */
+    static MobileEventJson appState(int i) {
+        return new MobileEventJson()
+                .withTime(CLOCK.now() + i)
+                .withInstallationId("a1b2c3d4e5f60718")
+                .withAndroidAppState(new AndroidAppStateJson()
+                        .withActivityClassName("MainActivity")
+                        .withBatteryLevel(0.5 + (i % 50) / 100.0)
+                        .withBatteryState(2L)
+                        .withBatteryHealth(2L)
+                        .withPlugState(1L)
+                        .withNetworkAddresses(Arrays.asList(
+                                "192.168.1." + (i % 250), "fe80::1c2b:3d4e:5f60:7182"))
+                        .withSdkVersion(Sift.SDK_VERSION)
+                        .withLocation(new AndroidDeviceLocationJson()
+                                .withLatitude(37.7749 + i / 1e6)
+                                .withLongitude(-122.4194 - i / 1e6)));
+    }
+
+    static List<MobileEventJson> appStates(int count) {
+        List<MobileEventJson> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            events.add(appState(i));
+        }
+        return events;
+    }
+
+    static Queue.Config config(int uploadWhenMoreThan) {
+        return new Queue.Config.Builder()
+                .withAcceptSameEventAfter(java.util.concurrent.TimeUnit.HOURS.toMillis(1))
+                .withUploadWhenMoreThan(uploadWhenMoreThan)
+                .withUploadWhenOlderThan(java.util.concurrent.TimeUnit.HOURS.toMillis(1))
+                .build();
+    }
+}
@@ -0,0 +1,51 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The parsers of getprop and mount output behind the root checks of
+ * DevicePropertiesCollector, on outputs the size of a typical device's.
+ */
+@State(Scope.Thread)
+public class DevicePropertiesBenchmark {
+    private String[] properties;
+    private String[] mounts;
+
+    @Setup
+    public void setUp() {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            lines.add(String.format("[persist.vendor.property.%d]: [value-%d]", i, i));
+        }
+        lines.add("[ro.debuggable]: [0]");
+        lines.add("[ro.secure]: [1]");
+        properties = lines.toArray(new String[0]);
+
+        lines.clear();
+        for (int i = 0; i < 80; i++) {
+            lines.add(String.format(
+                    "/dev/block/dm-%d /mnt/vendor/part%d ext4 ro,seclabel,relatime 0 0", i, i));
+        }
+        lines.add("/dev/block/dm-0 /system ext4 ro,seclabel,relatime 0 0");
+        lines.add("/dev/block/dm-1 /data f2fs rw,lazytime,seclabel,nosuid,nodev 0 0");
+        mounts = lines.toArray(new String[0]);
+    }
+
+    @Benchmark
+    public List<String> parseDangerousProperties() {
+        return DevicePropertiesCollector.parseDangerousProperties(properties);
+    }
+
+    @Benchmark
+    public List<String> parseRWPaths() {
+        return DevicePropertiesCollector.parseRWPaths(mounts);
+    }
+}
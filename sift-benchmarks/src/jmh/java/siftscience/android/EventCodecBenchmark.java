@@ -0,0 +1,79 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import com.google.gson.reflect.TypeToken;
+import com.sift.api.representations.MobileEventJson;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encoding and decoding of archived events with EventCodec against the
+ * Gson JSON that queue archives used to hold. The bytes on disk of both are
+ * printed once per trial; the JSON is also measured as escaped into the
+ * preferences XML file.
+ */
+@State(Scope.Thread)
+public class EventCodecBenchmark {
+    private static final Type EVENT_LIST = new TypeToken<List<MobileEventJson>>() {}.getType();
+
+    /** Number of archived events. */
+    @Param({"8", "64", "512"})
+    public int events;
+
+    private Map<String, List<MobileEventJson>> streams;
+    private List<MobileEventJson> list;
+    private String json;
+    private byte[] block;
+
+    @Setup
+    public void setUp() {
+        list = BenchmarkEvents.appStates(events);
+        streams = Collections.singletonMap("siftscience.android.app", list);
+        json = Sift.GSON.toJson(list);
+        block = EventCodec.encode(streams);
+
+        int jsonBytes = json.getBytes(StandardCharsets.UTF_8).length;
+        int xmlBytes = json.replace("&", "&amp;").replace("\"", "&quot;")
+                .replace("<", "&lt;").replace(">", "&gt;")
+                .getBytes(StandardCharsets.UTF_8).length;
+        System.out.println(String.format(
+                "%n%d events: %d bytes of JSON, %d in preferences XML, %d encoded",
+                events, jsonBytes, xmlBytes, block.length));
+    }
+
+    @Benchmark
+    public String gsonEncode() {
+        return Sift.GSON.toJson(list);
+    }
+
+    @Benchmark
+    public List<MobileEventJson> gsonDecode() {
+        return Sift.GSON.fromJson(json, EVENT_LIST);
+    }
+
+    @Benchmark
+    public byte[] codecEncode() {
+        return EventCodec.encode(streams);
+    }
+
+    @Benchmark
+    public Map<String, List<MobileEventJson>> codecDecode() throws IOException {
+        Map<String, List<MobileEventJson>> decoded = new HashMap<>();
+        EventCodec.decode(new ByteArrayInputStream(block), decoded);
+        return decoded;
+    }
+}
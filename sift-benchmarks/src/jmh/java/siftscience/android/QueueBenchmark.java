@@ -0,0 +1,86 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import com.sift.api.representations.MobileEventJson;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+/**
+ * Queue.append on the distinct and duplicate paths, and the archive round
+ * trip of a queue holding a pending batch.
+ */
+@State(Scope.Thread)
+public class QueueBenchmark {
+    private static final int EVENTS = 1024;
+
+    /** Number of pending events in the archived queue. */
+    @Param({"8", "64"})
+    public int pending;
+
+    private MobileEventJson[] events;
+    private int next;
+    private Queue appendQueue;
+    private Queue duplicateQueue;
+    private MobileEventJson duplicate;
+    private Queue archiveQueue;
+    private String archive;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<MobileEventJson> list = BenchmarkEvents.appStates(EVENTS);
+        events = list.toArray(new MobileEventJson[EVENTS]);
+
+        // Flushes every 64 events, like a busy App State queue
+        appendQueue = newQueue(63);
+
+        duplicateQueue = newQueue(Integer.MAX_VALUE);
+        duplicate = BenchmarkEvents.appState(0);
+        duplicateQueue.append(duplicate);
+
+        archiveQueue = newQueue(Integer.MAX_VALUE);
+        for (int i = 0; i < pending; i++) {
+            archiveQueue.append(events[i]);
+        }
+        archive = archiveQueue.archive();
+    }
+
+    @Benchmark
+    public void appendDistinct() {
+        appendQueue.append(events[next++ & (EVENTS - 1)]);
+    }
+
+    @Benchmark
+    public void appendDuplicate() {
+        duplicateQueue.append(duplicate);
+    }
+
+    @Benchmark
+    public boolean eventsAreBasicallyEqual() {
+        return Utils.eventsAreBasicallyEqual(events[0], events[1]);
+    }
+
+    @Benchmark
+    public String archive() {
+        return archiveQueue.archive();
+    }
+
+    @Benchmark
+    public Queue unarchive() {
+        return new Queue(archive, BenchmarkEvents.USER_ID_PROVIDER,
+                BenchmarkEvents.UPLOAD_REQUESTER, null, BenchmarkEvents.CLOCK);
+    }
+
+    private static Queue newQueue(int uploadWhenMoreThan) {
+        return new Queue(null, BenchmarkEvents.USER_ID_PROVIDER,
+                BenchmarkEvents.UPLOAD_REQUESTER, BenchmarkEvents.config(uploadWhenMoreThan),
+                BenchmarkEvents.CLOCK);
+    }
+}
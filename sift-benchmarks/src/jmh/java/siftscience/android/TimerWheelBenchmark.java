@@ -0,0 +1,71 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduling and cancelling 10k pending timers on the TimerWheel against
+ * ScheduledThreadPoolExecutor, reported per timer.
+ */
+@State(Scope.Thread)
+public class TimerWheelBenchmark {
+    private static final int TIMERS = 10000;
+    private static final Runnable NOOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private final TimerWheel.Timeout[] timeouts = new TimerWheel.Timeout[TIMERS];
+    private final ScheduledFuture<?>[] futures = new ScheduledFuture<?>[TIMERS];
+    private TimerWheel wheel;
+    private ScheduledThreadPoolExecutor executor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        wheel = new TimerWheel();
+        executor = new ScheduledThreadPoolExecutor(1);
+        // Cancelled timeouts leave the wheel on its next tick; without this
+        // the executor would keep them queued until they are due
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        wheel.stop();
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TIMERS)
+    public void wheel() {
+        for (int i = 0; i < TIMERS; i++) {
+            timeouts[i] = wheel.schedule(NOOP, 60 + i % 60, TimeUnit.SECONDS);
+        }
+        for (int i = 0; i < TIMERS; i++) {
+            timeouts[i].cancel();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TIMERS)
+    public void executor() {
+        for (int i = 0; i < TIMERS; i++) {
+            futures[i] = executor.schedule(NOOP, 60 + i % 60, TimeUnit.SECONDS);
+        }
+        for (int i = 0; i < TIMERS; i++) {
+            futures[i].cancel(false);
+        }
+    }
+}
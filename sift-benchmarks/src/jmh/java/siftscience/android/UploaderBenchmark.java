@@ -0,0 +1,48 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import com.sift.api.representations.MobileEventJson;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Serialization and gzip of an upload request in Uploader.makeRequest.
+ */
+@State(Scope.Thread)
+public class UploaderBenchmark {
+
+    /** Number of events in the batch. */
+    @Param({"1", "16", "64", "256"})
+    public int batchSize;
+
+    private Uploader uploader;
+    private List<MobileEventJson> batch;
+
+    @Setup
+    public void setUp() {
+        final Sift.Config config = new Sift.Config.Builder()
+                .withAccountId("4e1a50e172beb95cf1e4ae54")
+                .withBeaconKey("a85a9d3bb8ab4e6a")
+                .build();
+        uploader = new Uploader(null, new Uploader.ConfigProvider() {
+            @Override
+            public Sift.Config getConfig() {
+                return config;
+            }
+        });
+        batch = BenchmarkEvents.appStates(batchSize);
+    }
+
+    @Benchmark
+    public Object makeRequest() throws IOException {
+        return uploader.makeRequest(batch);
+    }
+}
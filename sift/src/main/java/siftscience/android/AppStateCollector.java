@@ -5,14 +5,10 @@ package siftscience.android;
 import android.Manifest;
 import android.annotation.SuppressLint;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.location.Location;
-import android.os.BatteryManager;
 import android.os.Looper;
-import android.provider.Settings;
-import android.util.Log;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 import androidx.core.app.ActivityCompat;
@@ -36,66 +32,118 @@ import com.sift.api.representations.AndroidDeviceLocationJson;
 import com.sift.api.representations.MobileEventJson;
 
 import java.math.BigDecimal;
-import java.net.InetAddress;
-import java.net.NetworkInterface;
-import java.net.SocketException;
-import java.util.ArrayList;
-import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Collects App State events.
  */
-public class AppStateCollector {
+public class AppStateCollector implements Collector {
     private static final String TAG = AppStateCollector.class.getSimpleName();
+    private static final long COST = 1;
     private final SiftImpl sift;
     private final Context context;
+    private final DeviceStateMonitor deviceStateMonitor;
+    // Set once the monitor and location clients exist; guards their publication
+    private volatile boolean initialized = false;
 
     private String activityClassName;
-    private boolean acquiredNewLocation;
-    private LocationRequest locationRequest;
+    private volatile boolean acquiredNewLocation;
     private FusedLocationProviderClient mFusedLocationClient;
     private SettingsClient mSettingsClient;
-    private LocationSettingsRequest mLocationSettingsRequest;
     private LocationCallback mLocationCallback;
-    private boolean mRequestingLocationUpdates = false;
+    private LocationStrategy locationStrategy;
+    private volatile boolean mRequestingLocationUpdates = false;
+    // Priority whose location settings were already found satisfied
+    private volatile int mSatisfiedSettingsPriority = -1;
 
-    private Location location;
-    private Location lastLocation;
+    private volatile Location location;
+    private volatile Location lastLocation;
+
+    // The most recently sent App State, for change detection
+    private AndroidAppStateJson lastAppState;
+    private long lastAppStateTime;
 
     public AppStateCollector(SiftImpl sift, Context context) {
+        this(sift, context, new DeviceStateMonitor(context));
+    }
+
+    /**
+     * @param deviceStateMonitor the monitor to read device state from, shared
+     *                           with the SDK instance for connectivity
+     */
+    AppStateCollector(SiftImpl sift, Context context, DeviceStateMonitor deviceStateMonitor) {
         this.sift = sift;
         this.context = context.getApplicationContext();
-
+        this.deviceStateMonitor = deviceStateMonitor;
         this.acquiredNewLocation = false;
-        if (!sift.getConfig().disallowLocationCollection) {
+    }
+
+    /**
+     * Registers the device state receivers and creates the location
+     * clients. This reads the config, possibly from disk, so it runs on the
+     * first collect rather than on the thread calling Sift.open().
+     */
+    synchronized void init() {
+        if (this.initialized) {
+            return;
+        }
+
+        this.deviceStateMonitor.start();
+
+        Sift.Config config = sift.getConfig();
+        if (!config.disallowLocationCollection) {
             mFusedLocationClient = LocationServices.getFusedLocationProviderClient(this.context);
             mSettingsClient = LocationServices.getSettingsClient(this.context);
+            locationStrategy = new LocationStrategy(config, sift.getMetricsRegistry());
             createLocationCallback();
-            createLocationRequest();
-            buildLocationSettingsRequest();
         }
+        this.initialized = true;
     }
 
     public void setActivityName(String activityName) {
         this.activityClassName = activityName;
     }
 
+    @Override
     public void collect() {
+        init();
         if (!sift.getConfig().disallowLocationCollection &&
                 this.mFusedLocationClient != null &&
                 !mRequestingLocationUpdates) {
             startLocationUpdates();
         } else {
+            if (mRequestingLocationUpdates && this.locationStrategy.escalate()) {
+                // The previous request did not produce a fix in time
+                SiftLog.d(TAG, "Escalating location request");
+                requestLocationUpdates();
+            }
             this.doCollect();
         }
     }
 
-    private void createLocationRequest() {
-        this.locationRequest = LocationRequest.create()
-                .setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY)
+    @Override
+    public long getInterval() {
+        return this.sift.getConfig().appStateCollectInterval;
+    }
+
+    @Override
+    public long getCost() {
+        return COST;
+    }
+
+    /**
+     * @return the strategy deciding when and how to request location fixes,
+     * or null if location collection is disallowed
+     */
+    LocationStrategy getLocationStrategy() {
+        return this.locationStrategy;
+    }
+
+    private LocationRequest createLocationRequest(int priority) {
+        return LocationRequest.create()
+                .setPriority(priority)
                 .setInterval(TimeUnit.MINUTES.toMillis(1))
                 .setFastestInterval(TimeUnit.SECONDS.toMillis(10));
     }
@@ -108,9 +156,10 @@ public class AppStateCollector {
                 if (locationResult == null) {
                     return;
                 }
-                Log.d(TAG, "Location changed");
+                SiftLog.d(TAG, "Location changed");
                 acquiredNewLocation = true;
                 location = locationResult.getLastLocation();
+                locationStrategy.onFix();
                 doCollect();
 
                 try {
@@ -119,25 +168,28 @@ public class AppStateCollector {
                         disconnectLocationServices();
                     }
                 } catch (Exception e) {
-                    Log.e(TAG, "Encountered exception in onLocationChanged", e);
+                    SiftLog.e(TAG, "Encountered exception in onLocationChanged", e);
                 }
             }
         };
     }
 
-    private void buildLocationSettingsRequest() {
+    private LocationSettingsRequest buildLocationSettingsRequest(LocationRequest locationRequest) {
         LocationSettingsRequest.Builder builder = new LocationSettingsRequest.Builder();
         builder.addLocationRequest(locationRequest);
-        mLocationSettingsRequest = builder.build();
+        return builder.build();
     }
 
     public void disconnectLocationServices() {
-        Log.d(TAG, "Disconnect location services");
+        if (!this.initialized) {
+            return;
+        }
+        SiftLog.d(TAG, "Disconnect location services");
 
         try {
             if (!this.sift.getConfig().disallowLocationCollection &&
                     this.mFusedLocationClient != null && mRequestingLocationUpdates) {
-                Log.d(TAG, "Removing location updates");
+                SiftLog.d(TAG, "Removing location updates");
                 mFusedLocationClient.removeLocationUpdates(mLocationCallback)
                         .addOnCompleteListener(new OnCompleteListener<Void>() {
                             @Override
@@ -147,12 +199,16 @@ public class AppStateCollector {
                         });
             }
         } catch (Exception e) {
-            Log.e(TAG, e.toString());
+            SiftLog.e(TAG, e.toString());
         }
     }
 
     public void reconnectLocationServices() {
-        Log.d(TAG, "Connect location services");
+        // The first collect starts location updates
+        if (!this.initialized) {
+            return;
+        }
+        SiftLog.d(TAG, "Connect location services");
 
         try {
             if (!this.sift.getConfig().disallowLocationCollection && this.mFusedLocationClient != null
@@ -160,52 +216,97 @@ public class AppStateCollector {
                 startLocationUpdates();
             }
         } catch (Exception e) {
-            Log.e(TAG, e.toString());
+            SiftLog.e(TAG, e.toString());
         }
     }
 
     private void doCollect() {
-        @SuppressLint("HardwareIds") String installationId = Settings.Secure.getString(this.context.getContentResolver(),
-                Settings.Secure.ANDROID_ID);
+        AndroidAppStateJson appState = this.get();
+        long now = this.sift.getClock().now();
+        long elapsed = this.sift.getClock().elapsedRealtime();
+
+        // Collection is triggered both from Sift.collect() and from location callbacks
+        synchronized (this) {
+            Sift.Config config = this.sift.getConfig();
+            if (this.lastAppState != null &&
+                    elapsed < this.lastAppStateTime + config.appStateHeartbeatInterval &&
+                    !isSignificantChange(this.lastAppState, appState, config)) {
+                SiftLog.d(TAG, "Dropped unchanged App State");
+                return;
+            }
+            this.lastAppState = appState;
+            this.lastAppStateTime = elapsed;
+        }
+
         this.sift.appendAppStateEvent(
                 new MobileEventJson()
-                        .withAndroidAppState(this.get())
-                        .withInstallationId(installationId)
-                        .withTime(Time.now()));
+                        .withAndroidAppState(appState)
+                        .withInstallationId(this.deviceStateMonitor.getInstallationId())
+                        .withTime(now));
     }
 
-    private AndroidAppStateJson get() {
-        Intent batteryStatus = context.registerReceiver(null,
-                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
-
-        int level = batteryStatus != null ?
-                batteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1) : -1;
-        int scale = batteryStatus != null ?
-                batteryStatus.getIntExtra(BatteryManager.EXTRA_SCALE, -1) : -1;
-        double batteryLevel = -1;
-        if (level != -1 && scale != -1) {
-            batteryLevel = (double) level / scale;
+    /**
+     * Compares two App States against the significance thresholds of the config.
+     *
+     * @return whether the current App State is worth sending
+     */
+    static boolean isSignificantChange(AndroidAppStateJson previous,
+                                       AndroidAppStateJson current,
+                                       Sift.Config config) {
+        if (!Utils.equals(previous.getActivityClassName(), current.getActivityClassName()) ||
+                !Utils.equals(previous.getSdkVersion(), current.getSdkVersion()) ||
+                !Utils.equals(previous.getBatteryState(), current.getBatteryState()) ||
+                !Utils.equals(previous.getBatteryHealth(), current.getBatteryHealth()) ||
+                !Utils.equals(previous.getPlugState(), current.getPlugState())) {
+            return true;
+        }
+
+        if (previous.getBatteryLevel() == null || current.getBatteryLevel() == null) {
+            if (previous.getBatteryLevel() != current.getBatteryLevel()) {
+                return true;
+            }
+        } else {
+            double delta = Math.abs(previous.getBatteryLevel() - current.getBatteryLevel());
+            if (delta > 0 && delta >= config.appStateBatteryLevelThreshold) {
+                return true;
+            }
         }
 
-        // unknown=1, charging=2, discharging=3, not charging=4, full=5
-        int status = batteryStatus != null ?
-                batteryStatus.getIntExtra(BatteryManager.EXTRA_STATUS, -1) : -1;
-        // ac=1, usb=2, wireless=4
-        int plugState = batteryStatus != null ?
-                batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, -1) : -1;
-        // unknown=1, good=2, overheat=3, dead=4, over voltage=5, unspecified failure=6, cold=7
-        int health = batteryStatus != null ?
-                batteryStatus.getIntExtra(BatteryManager.EXTRA_HEALTH, -1) : -1;
+        List<String> previousAddresses = previous.getNetworkAddresses();
+        List<String> currentAddresses = current.getNetworkAddresses();
+        if (previousAddresses == null || currentAddresses == null) {
+            if (previousAddresses != currentAddresses) {
+                return true;
+            }
+        } else if (!new HashSet<>(previousAddresses).equals(new HashSet<>(currentAddresses))) {
+            return true;
+        }
 
-        List<String> ipAddresses = getIpAddresses();
+        AndroidDeviceLocationJson previousLocation = previous.getLocation();
+        AndroidDeviceLocationJson currentLocation = current.getLocation();
+        if (previousLocation == null || currentLocation == null) {
+            return previousLocation != currentLocation;
+        }
+        if (previousLocation.getLatitude() == null || previousLocation.getLongitude() == null ||
+                currentLocation.getLatitude() == null || currentLocation.getLongitude() == null) {
+            return !previousLocation.equals(currentLocation);
+        }
+        double distance = Utils.distanceBetween(
+                previousLocation.getLatitude(), previousLocation.getLongitude(),
+                currentLocation.getLatitude(), currentLocation.getLongitude());
+        return distance > 0 && distance >= config.appStateLocationThreshold;
+    }
+
+    private AndroidAppStateJson get() {
+        DeviceStateMonitor.Snapshot deviceState = this.deviceStateMonitor.getSnapshot();
 
         AndroidAppStateJson androidAppStateJson = new AndroidAppStateJson()
                 .withActivityClassName(this.activityClassName)
-                .withBatteryLevel(batteryLevel)
-                .withBatteryState((long) status)
-                .withBatteryHealth((long) health)
-                .withPlugState((long) plugState)
-                .withNetworkAddresses(ipAddresses)
+                .withBatteryLevel(deviceState.batteryLevel)
+                .withBatteryState((long) deviceState.batteryState)
+                .withBatteryHealth((long) deviceState.batteryHealth)
+                .withPlugState((long) deviceState.plugState)
+                .withNetworkAddresses(deviceState.networkAddresses)
                 .withSdkVersion(Sift.SDK_VERSION);
 
         if (this.hasLocation()) {
@@ -215,37 +316,12 @@ public class AppStateCollector {
         return androidAppStateJson;
     }
 
-    private List<String> getIpAddresses() {
-        List<String> addresses = new ArrayList<>();
-        try {
-            for (Enumeration<NetworkInterface> en = NetworkInterface.getNetworkInterfaces();
-                 en != null && en.hasMoreElements(); ) {
-                NetworkInterface intf = en.nextElement();
-                for (Enumeration<InetAddress> enumIpAddr = intf.getInetAddresses();
-                     enumIpAddr.hasMoreElements(); ) {
-                    InetAddress inetAddress = enumIpAddr.nextElement();
-                    if (!inetAddress.isLoopbackAddress()) {
-                        String address = inetAddress.getHostAddress().toLowerCase(Locale.US);
-                        if (address.indexOf('%') > -1) { // Truncate zone in IPv6 if present
-                            address = address.substring(0, address.indexOf('%'));
-                        }
-                        addresses.add(address);
-                    }
-                }
-            }
-        } catch (SocketException e) {
-            Log.e(TAG, e.toString());
-        }
-        return addresses;
-    }
-
     private boolean hasLocation() {
         return this.location != null || this.lastLocation != null;
     }
 
     private AndroidDeviceLocationJson getLocation() {
-        Log.d(TAG, "Using " + (this.acquiredNewLocation ?
-                "new location" : "last location"));
+        SiftLog.d(TAG, "Using %s", this.acquiredNewLocation ? "new location" : "last location");
 
         Location location = this.acquiredNewLocation ? this.location : this.lastLocation;
 
@@ -256,56 +332,98 @@ public class AppStateCollector {
 
     @SuppressLint("MissingPermission")
     private void startLocationUpdates() {
-        if (checkPermissions()) {
-            mFusedLocationClient.getLastLocation()
-                    .addOnSuccessListener(new OnSuccessListener<Location>() {
-                        @Override
-                        public void onSuccess(Location location) {
-                            Log.d(TAG, "Got last known location: " + location);
-                            // Got last known location. In some rare situations this can be null.
-                            if (location != null) {
-                                lastLocation = location;
-                            }
-                        }
-                    });
-
-            mRequestingLocationUpdates = true;
-            // Begin by checking if the device has the necessary location settings.
-            mSettingsClient.checkLocationSettings(mLocationSettingsRequest)
-                    .addOnSuccessListener(new OnSuccessListener<LocationSettingsResponse>() {
-                        @SuppressLint("MissingPermission")
-                        @Override
-                        public void onSuccess(LocationSettingsResponse locationSettingsResponse) {
-                            Log.i(TAG, "All location settings are satisfied.");
-                            mFusedLocationClient.requestLocationUpdates(locationRequest,
-                                    mLocationCallback, Looper.myLooper());
-                        }
-                    })
-                    .addOnFailureListener(new OnFailureListener() {
-                        @Override
-                        public void onFailure(@NonNull Exception e) {
-                            if (e instanceof ApiException) {
-                                int statusCode = ((ApiException) e).getStatusCode();
-                                switch (statusCode) {
-                                    case LocationSettingsStatusCodes.RESOLUTION_REQUIRED:
-                                        Log.i(TAG, "Location settings are not satisfied. " +
-                                                "Try to attempt upgrade location settings");
-                                        break;
-                                    case LocationSettingsStatusCodes.SETTINGS_CHANGE_UNAVAILABLE:
-                                        Log.i(TAG, "Location settings are inadequate, and cannot be " +
-                                                "fixed here. Fix in Settings.");
-                                        mRequestingLocationUpdates = false;
-                                }
-                            } else {
-                                // A different, unknown type of error occurred.
-                                Log.d(TAG, "Encountered unknown exception in checkLocationSettings", e);
+        if (!checkPermissions()) {
+            this.doCollect();
+            return;
+        }
+
+        if (isFresh(this.acquiredNewLocation ? this.location : this.lastLocation)) {
+            SiftLog.d(TAG, "Using cached location");
+            this.locationStrategy.recordCacheHit();
+            this.doCollect();
+            return;
+        }
+
+        mRequestingLocationUpdates = true;
+        mFusedLocationClient.getLastLocation()
+                .addOnSuccessListener(new OnSuccessListener<Location>() {
+                    @Override
+                    public void onSuccess(Location location) {
+                        SiftLog.d(TAG, "Got last known location: %s", location);
+                        // Got last known location. In some rare situations this can be null.
+                        if (location != null) {
+                            lastLocation = location;
+                            if (isFresh(location)) {
+                                acquiredNewLocation = false;
                                 mRequestingLocationUpdates = false;
+                                locationStrategy.recordCacheHit();
+                                doCollect();
+                                return;
                             }
                         }
-                    });
-        } else {
-            this.doCollect();
+                        requestLocationUpdates();
+                    }
+                })
+                .addOnFailureListener(new OnFailureListener() {
+                    @Override
+                    public void onFailure(@NonNull Exception e) {
+                        SiftLog.d(TAG, "Encountered exception in getLastLocation", e);
+                        requestLocationUpdates();
+                    }
+                });
+    }
+
+    @SuppressLint("MissingPermission")
+    private void requestLocationUpdates() {
+        final int priority = this.locationStrategy.getPriority();
+        final LocationRequest locationRequest = createLocationRequest(priority);
+        this.locationStrategy.recordRequest();
+
+        if (mSatisfiedSettingsPriority == priority) {
+            mFusedLocationClient.requestLocationUpdates(locationRequest,
+                    mLocationCallback, Looper.getMainLooper());
+            return;
         }
+
+        // Begin by checking if the device has the necessary location settings.
+        mSettingsClient.checkLocationSettings(buildLocationSettingsRequest(locationRequest))
+                .addOnSuccessListener(new OnSuccessListener<LocationSettingsResponse>() {
+                    @SuppressLint("MissingPermission")
+                    @Override
+                    public void onSuccess(LocationSettingsResponse locationSettingsResponse) {
+                        SiftLog.i(TAG, "All location settings are satisfied.");
+                        mSatisfiedSettingsPriority = priority;
+                        mFusedLocationClient.requestLocationUpdates(locationRequest,
+                                mLocationCallback, Looper.getMainLooper());
+                    }
+                })
+                .addOnFailureListener(new OnFailureListener() {
+                    @Override
+                    public void onFailure(@NonNull Exception e) {
+                        if (e instanceof ApiException) {
+                            int statusCode = ((ApiException) e).getStatusCode();
+                            switch (statusCode) {
+                                case LocationSettingsStatusCodes.RESOLUTION_REQUIRED:
+                                    SiftLog.i(TAG, "Location settings are not satisfied. " +
+                                            "Try to attempt upgrade location settings");
+                                    break;
+                                case LocationSettingsStatusCodes.SETTINGS_CHANGE_UNAVAILABLE:
+                                    SiftLog.i(TAG, "Location settings are inadequate, and cannot be " +
+                                            "fixed here. Fix in Settings.");
+                                    mRequestingLocationUpdates = false;
+                            }
+                        } else {
+                            // A different, unknown type of error occurred.
+                            SiftLog.d(TAG, "Encountered unknown exception in checkLocationSettings", e);
+                            mRequestingLocationUpdates = false;
+                        }
+                    }
+                });
+    }
+
+    private boolean isFresh(Location location) {
+        return location != null && this.locationStrategy.isFresh(
+                location.getElapsedRealtimeNanos(), SystemClock.elapsedRealtimeNanos());
     }
 
     private boolean checkPermissions() {
@@ -0,0 +1,87 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import androidx.annotation.NonNull;
+
+import com.sift.api.representations.MobileEventJson;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The events of one upload, made of runs flushed from one queue each.
+ *
+ * It remembers the queue of every run, so that events that are not sent go
+ * back to the queue they came from rather than to the queue their content
+ * suggests. It reads as a plain list of events everywhere else.
+ *
+ * Confined to the thread that builds it until it is handed to the uploader.
+ */
+class Batch extends AbstractList<MobileEventJson> {
+    private final List<MobileEventJson> events = new ArrayList<>();
+    // The queue identifier of each run and the index at which the run ends
+    private final List<String> identifiers = new ArrayList<>();
+    private int[] ends = new int[1];
+
+    Batch() {
+    }
+
+    Batch(@NonNull String identifier, @NonNull List<MobileEventJson> events) {
+        add(identifier, events);
+    }
+
+    /**
+     * Appends a run of events flushed from a queue.
+     */
+    void add(@NonNull String identifier, @NonNull List<MobileEventJson> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        int runs = identifiers.size();
+        this.events.addAll(events);
+        if (runs > 0 && identifiers.get(runs - 1).equals(identifier)) {
+            ends[runs - 1] = this.events.size();
+            return;
+        }
+        if (runs == ends.length) {
+            int[] grown = new int[runs * 2];
+            System.arraycopy(ends, 0, grown, 0, runs);
+            ends = grown;
+        }
+        identifiers.add(identifier);
+        ends[runs] = this.events.size();
+    }
+
+    @Override
+    public MobileEventJson get(int index) {
+        return events.get(index);
+    }
+
+    @Override
+    public int size() {
+        return events.size();
+    }
+
+    /**
+     * @return the events of each queue, in the order of the batch
+     */
+    @NonNull
+    Map<String, List<MobileEventJson>> byQueue() {
+        Map<String, List<MobileEventJson>> queues = new LinkedHashMap<>();
+        int start = 0;
+        for (int i = 0; i < identifiers.size(); i++) {
+            List<MobileEventJson> list = queues.get(identifiers.get(i));
+            if (list == null) {
+                list = new ArrayList<>();
+                queues.put(identifiers.get(i), list);
+            }
+            list.addAll(events.subList(start, ends[i]));
+            start = ends[i];
+        }
+        return queues;
+    }
+}
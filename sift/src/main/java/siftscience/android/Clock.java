@@ -0,0 +1,37 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import android.os.SystemClock;
+
+/**
+ * Source of time for the SDK, injected so that tests can run on virtual time.
+ */
+interface Clock {
+
+    /** The system clock. */
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long now() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
+    /**
+     * Return the current time since the Epoch in milliseconds. Use it to
+     * timestamp events, not to measure intervals: it jumps when the user or
+     * the network changes the time.
+     */
+    long now();
+
+    /**
+     * Return the monotonic time since boot in milliseconds, for deadlines
+     * and intervals.
+     */
+    long elapsedRealtime();
+}
@@ -0,0 +1,30 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+/**
+ * A source of events that is run by Sift's collector scheduler.
+ *
+ * Register custom collectors with Sift.registerCollector(). Each time
+ * Sift.collect() is called, the scheduler runs every collector that is due
+ * in a single cycle on the SDK's collection thread.
+ */
+public interface Collector {
+
+    /**
+     * Collects the current state. Called on the SDK's collection thread.
+     */
+    void collect();
+
+    /**
+     * @return the minimum time in milliseconds between two runs, or 0 to
+     * run on every cycle
+     */
+    long getInterval();
+
+    /**
+     * @return the estimated CPU time in milliseconds of one run, used to fit
+     * collectors into the per-cycle budget until it has been measured
+     */
+    long getCost();
+}
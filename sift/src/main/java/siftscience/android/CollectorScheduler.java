@@ -0,0 +1,210 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import android.os.Debug;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs registered collectors in cycles on the collect lane.
+ *
+ * A cycle runs every collector whose interval has elapsed, most overdue
+ * first, until the CPU time budget of the cycle is spent. Collectors that
+ * do not fit are batched into a single follow-up cycle.
+ *
+ * At most one cycle is pending at a time, and cycles start at least the
+ * coalescing window apart, so bursts of requests collapse into one cycle.
+ */
+class CollectorScheduler {
+    private static final String TAG = CollectorScheduler.class.getName();
+
+    static final long DEFAULT_CYCLE_BUDGET = TimeUnit.MILLISECONDS.toNanos(50);
+    static final long DEFERRED_CYCLE_DELAY = TimeUnit.SECONDS.toMillis(1);
+    static final long DEFAULT_COALESCE_WINDOW = TimeUnit.SECONDS.toMillis(1);
+
+    private static class Entry {
+        final Collector collector;
+        // Elapsed realtime of the last run, or -1 if it never ran
+        long lastRun = -1;
+        // Estimated CPU time of one run, in nanoseconds
+        long cost;
+
+        Entry(Collector collector) {
+            this.collector = collector;
+            this.cost = TimeUnit.MILLISECONDS.toNanos(Math.max(0, collector.getCost()));
+        }
+
+        boolean isDue(long now) {
+            return lastRun < 0 || now >= lastRun + collector.getInterval();
+        }
+
+        long overdue(long now) {
+            return lastRun < 0 ? Long.MAX_VALUE : now - (lastRun + collector.getInterval());
+        }
+    }
+
+    private final List<Entry> entries = new CopyOnWriteArrayList<>();
+    private final TaskManager taskManager;
+    private final long budget;
+    private final long coalesceWindow;
+    private Future<?> pendingCycle;
+    private boolean cyclePending = false;
+    // Elapsed realtime at which the last cycle started, or -1 if none ran
+    private long lastCycleStart = -1;
+    private long coalescedRequests = 0;
+
+    private final Runnable cycle = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (CollectorScheduler.this) {
+                cyclePending = false;
+                pendingCycle = null;
+                lastCycleStart = elapsedRealtime();
+            }
+            runCycle();
+        }
+    };
+
+    CollectorScheduler(TaskManager taskManager) {
+        this(taskManager, DEFAULT_CYCLE_BUDGET, DEFAULT_COALESCE_WINDOW);
+    }
+
+    CollectorScheduler(TaskManager taskManager, long budget, long coalesceWindow) {
+        this.taskManager = taskManager;
+        this.budget = budget;
+        this.coalesceWindow = coalesceWindow;
+    }
+
+    void register(Collector collector) {
+        for (Entry entry : entries) {
+            if (entry.collector == collector) {
+                return;
+            }
+        }
+        entries.add(new Entry(collector));
+    }
+
+    /**
+     * Requests a cycle on the collection thread. The request is coalesced
+     * into the pending cycle if there is one; otherwise the cycle starts
+     * once the coalescing window since the last cycle has passed.
+     */
+    synchronized void requestCycle() {
+        if (cyclePending) {
+            coalescedRequests++;
+            return;
+        }
+
+        long delay = 0;
+        if (lastCycleStart >= 0) {
+            delay = Math.max(0, lastCycleStart + coalesceWindow - elapsedRealtime());
+        }
+        scheduleCycle(delay);
+    }
+
+    /**
+     * @return the number of requests that were folded into a pending cycle
+     */
+    synchronized long getCoalescedRequests() {
+        return coalescedRequests;
+    }
+
+    /**
+     * Cancels the pending cycle, if any. A later request schedules a new one.
+     */
+    synchronized void cancel() {
+        if (pendingCycle != null) {
+            pendingCycle.cancel(false);
+            pendingCycle = null;
+        }
+        cyclePending = false;
+    }
+
+    /**
+     * Runs the collectors that are due, within the CPU time budget.
+     */
+    void runCycle() {
+        final long now = elapsedRealtime();
+
+        List<Entry> due = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry.isDue(now)) {
+                due.add(entry);
+            }
+        }
+        Collections.sort(due, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                long overdueA = a.overdue(now);
+                long overdueB = b.overdue(now);
+                return overdueA == overdueB ? 0 : (overdueA > overdueB ? -1 : 1);
+            }
+        });
+
+        long spent = 0;
+        int deferred = 0;
+        for (Entry entry : due) {
+            // The first collector always runs so that a cycle makes progress
+            if (spent > 0 && spent + entry.cost > budget) {
+                deferred++;
+                continue;
+            }
+
+            long start = threadCpuTime();
+            try {
+                entry.collector.collect();
+            } catch (RuntimeException e) {
+                SiftLog.e(TAG, "Encountered exception in collector", e);
+            }
+            long cost = Math.max(0, threadCpuTime() - start);
+
+            // Smooth the measured cost so a single slow run does not starve a collector
+            entry.cost = (entry.cost + cost) / 2;
+            entry.lastRun = now;
+            spent += Math.max(1, cost);
+        }
+
+        if (deferred > 0) {
+            SiftLog.d(TAG, "Deferred %d collectors over budget", deferred);
+            scheduleDeferredCycle();
+        }
+    }
+
+    long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    long threadCpuTime() {
+        return Debug.threadCpuTimeNanos();
+    }
+
+    private synchronized void scheduleDeferredCycle() {
+        if (cyclePending) {
+            return;
+        }
+        scheduleCycle(DEFERRED_CYCLE_DELAY);
+    }
+
+    private void scheduleCycle(long delay) {
+        pendingCycle = execute(cycle, delay);
+        // The cycle cannot finish while this holds the lock, so a done
+        // future here was rejected
+        cyclePending = !pendingCycle.isDone();
+    }
+
+    /**
+     * @return the future of the scheduled cycle
+     */
+    Future<?> execute(Runnable runnable, long delay) {
+        return taskManager.schedule(TaskManager.Lane.COLLECT, runnable, delay,
+                TimeUnit.MILLISECONDS);
+    }
+}
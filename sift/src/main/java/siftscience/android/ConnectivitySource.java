@@ -0,0 +1,54 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Source of network connectivity for the SDK, injected so that tests can
+ * take the device offline on the JVM.
+ */
+interface ConnectivitySource {
+
+    /** A source that is always connected, for when connectivity is unknown. */
+    ConnectivitySource ALWAYS_CONNECTED = new ConnectivitySource() {
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public boolean isMetered() {
+            return false;
+        }
+
+        @Override
+        public void setListener(@Nullable Listener listener) {
+        }
+    };
+
+    interface Listener {
+        /**
+         * Called when the device goes online or offline, or moves between
+         * metered and unmetered networks, on any thread.
+         */
+        void onConnectivityChanged(boolean connected);
+    }
+
+    /**
+     * Return whether the device has a network connection. When in doubt,
+     * sources report connected, so that uploads are attempted.
+     */
+    boolean isConnected();
+
+    /**
+     * Return whether the network may charge the user for data, such as a
+     * cellular network. When in doubt, sources report unmetered.
+     */
+    boolean isMetered();
+
+    /**
+     * Sets the listener of connectivity changes, or null to remove it.
+     */
+    void setListener(@Nullable Listener listener);
+}
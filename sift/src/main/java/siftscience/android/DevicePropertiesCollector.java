@@ -9,7 +9,6 @@ import android.content.pm.PackageManager;
 import android.os.Build;
 import android.provider.Settings;
 import android.telephony.TelephonyManager;
-import android.util.Log;
 
 import com.sift.api.representations.AndroidDevicePropertiesJson;
 import com.sift.api.representations.MobileEventJson;
@@ -28,8 +27,10 @@ import java.util.Scanner;
 /**
  * Collects Device Properties events.
  */
-public class DevicePropertiesCollector {
+public class DevicePropertiesCollector implements Collector {
     private static final String TAG = DevicePropertiesCollector.class.getName();
+    // Spawns getprop and mount and probes the package manager
+    private static final long COST = 25;
     private final SiftImpl sift;
     private final Context context;
 
@@ -84,13 +85,24 @@ public class DevicePropertiesCollector {
         this.context = context.getApplicationContext();
     }
 
+    @Override
     public void collect() {
         AndroidDevicePropertiesJson deviceProperties = this.get();
         this.sift.appendDevicePropertiesEvent(
                 new MobileEventJson()
                         .withAndroidDeviceProperties(deviceProperties)
                         .withInstallationId(deviceProperties.getAndroidId())
-                        .withTime(Time.now()));
+                        .withTime(this.sift.getClock().now()));
+    }
+
+    @Override
+    public long getInterval() {
+        return this.sift.getConfig().devicePropertiesCollectInterval;
+    }
+
+    @Override
+    public long getCost() {
+        return COST;
     }
 
     @SuppressLint("HardwareIds")
@@ -108,7 +120,7 @@ public class DevicePropertiesCollector {
             appVersion = packageManager != null ?
                     packageManager.getPackageInfo(this.context.getPackageName(), 0).versionName : null;
         } catch (final PackageManager.NameNotFoundException e) {
-            Log.e(TAG, "Encountered NameNotFoundException in get", e);
+            SiftLog.e(TAG, "Encountered NameNotFoundException in get", e);
         }
 
         // Telephony properties
@@ -197,7 +209,14 @@ public class DevicePropertiesCollector {
      * @return - list of dangerous properties that indicate root
      */
     private List<String> existingDangerousProperties() {
-        String[] lines = propertiesReader();
+        return parseDangerousProperties(propertiesReader());
+    }
+
+    /**
+     * @param lines the output of getprop
+     * @return the lines that set a dangerous property
+     */
+    static List<String> parseDangerousProperties(String[] lines) {
         List<String> propertiesFound = new ArrayList<>();
         for (String line : lines) {
             for (String key : DANGEROUS_PROPERTIES.keySet()) {
@@ -215,14 +234,21 @@ public class DevicePropertiesCollector {
      * @return all paths that are writable
      */
     private List<String> existingRWPaths() {
-        String[] lines = mountReader();
+        return parseRWPaths(mountReader());
+    }
+
+    /**
+     * @param lines the output of mount
+     * @return the paths of PATHS_THAT_SHOULD_NOT_BE_WRITABLE that are mounted rw
+     */
+    static List<String> parseRWPaths(String[] lines) {
         List<String> pathsFound = new ArrayList<>();
         for (String line : lines) {
             // Split lines into parts
             String[] args = line.split(" ");
             if (args.length < 4){
                 // If we don't have enough options per line, skip this and log an error
-                Log.e(TAG, String.format("Error formatting mount: %s", line));
+                SiftLog.e(TAG, "Error formatting mount: %s", line);
                 continue;
             }
             String mountPoint = args[1];
@@ -253,9 +279,9 @@ public class DevicePropertiesCollector {
             inputstream = Runtime.getRuntime().exec("getprop").getInputStream();
         } catch (IOException e) {
             if (isCommandMissing(e)) {
-                Log.d(TAG, "getprop is unavailable in this runtime");
+                SiftLog.d(TAG, "getprop is unavailable in this runtime");
             } else {
-                Log.e(TAG, "Error reading properties", e);
+                SiftLog.e(TAG, "Error reading properties", e);
             }
         }
         if (inputstream == null) {
@@ -266,7 +292,7 @@ public class DevicePropertiesCollector {
         try {
             allProperties = new Scanner(inputstream).useDelimiter("\\A").next();
         } catch (NoSuchElementException e) {
-            Log.e(TAG, "Error reading properties", e);
+            SiftLog.e(TAG, "Error reading properties", e);
         }
         return allProperties.split("\n");
     }
@@ -281,9 +307,9 @@ public class DevicePropertiesCollector {
             inputstream = Runtime.getRuntime().exec("mount").getInputStream();
         } catch (IOException e) {
             if (isCommandMissing(e)) {
-                Log.d(TAG, "mount is unavailable in this runtime");
+                SiftLog.d(TAG, "mount is unavailable in this runtime");
             } else {
-                Log.e(TAG, "Error reading mount", e);
+                SiftLog.e(TAG, "Error reading mount", e);
             }
         }
         if (inputstream == null) {
@@ -294,7 +320,7 @@ public class DevicePropertiesCollector {
         try {
             allPaths = new Scanner(inputstream).useDelimiter("\\A").next();
         } catch (NoSuchElementException e) {
-            Log.e(TAG, "Error reading mount", e);
+            SiftLog.e(TAG, "Error reading mount", e);
         }
         return allPaths.split("\n");
     }
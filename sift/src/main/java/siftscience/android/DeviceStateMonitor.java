@@ -0,0 +1,307 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import android.annotation.SuppressLint;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.BatteryManager;
+import android.provider.Settings;
+
+import androidx.annotation.Nullable;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Keeps battery, connectivity and installation state up to date from system
+ * broadcasts, so that collectors can read it without a binder call.
+ *
+ * Connectivity is read from the CONNECTIVITY_ACTION broadcast, which needs
+ * no permission. Whether the active network is metered is then read from
+ * the ConnectivityManager, which needs ACCESS_NETWORK_STATE; without it,
+ * networks count as unmetered. Until the first broadcast, the device counts
+ * as connected to an unmetered network. Charging is read from the battery
+ * broadcast.
+ */
+class DeviceStateMonitor implements ConnectivitySource, PowerSource {
+    private static final String TAG = DeviceStateMonitor.class.getName();
+
+    /**
+     * Immutable view of the device state at some point in time.
+     */
+    static final class Snapshot {
+        static final Snapshot UNKNOWN = new Snapshot(-1, -1, -1, -1,
+                Collections.<String>emptyList());
+
+        final double batteryLevel;
+        // unknown=1, charging=2, discharging=3, not charging=4, full=5
+        final int batteryState;
+        // unknown=1, good=2, overheat=3, dead=4, over voltage=5, unspecified failure=6, cold=7
+        final int batteryHealth;
+        // ac=1, usb=2, wireless=4
+        final int plugState;
+        final List<String> networkAddresses;
+
+        Snapshot(double batteryLevel,
+                 int batteryState,
+                 int batteryHealth,
+                 int plugState,
+                 List<String> networkAddresses) {
+            this.batteryLevel = batteryLevel;
+            this.batteryState = batteryState;
+            this.batteryHealth = batteryHealth;
+            this.plugState = plugState;
+            this.networkAddresses = networkAddresses;
+        }
+
+        Snapshot withBattery(Intent batteryStatus) {
+            int level = batteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = batteryStatus.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            double batteryLevel = -1;
+            if (level != -1 && scale != -1) {
+                batteryLevel = (double) level / scale;
+            }
+
+            return new Snapshot(
+                    batteryLevel,
+                    batteryStatus.getIntExtra(BatteryManager.EXTRA_STATUS, -1),
+                    batteryStatus.getIntExtra(BatteryManager.EXTRA_HEALTH, -1),
+                    batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, -1),
+                    networkAddresses);
+        }
+
+        Snapshot withNetworkAddresses(List<String> networkAddresses) {
+            return new Snapshot(batteryLevel, batteryState, batteryHealth, plugState,
+                    Collections.unmodifiableList(networkAddresses));
+        }
+    }
+
+    private final Context context;
+    private final Object lock = new Object();
+
+    private volatile Snapshot snapshot = Snapshot.UNKNOWN;
+    private volatile boolean networkAddressesStale = true;
+    private volatile boolean started = false;
+    private volatile String installationId;
+    private volatile boolean connected = true;
+    private volatile boolean metered = false;
+    private volatile ConnectivitySource.Listener connectivityListener;
+    private volatile PowerSource.Listener powerListener;
+
+    private final BroadcastReceiver batteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            onBatteryChanged(intent);
+        }
+    };
+
+    private final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            onConnectivityChanged(intent);
+        }
+    };
+
+    DeviceStateMonitor(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Subscribes to battery and connectivity broadcasts. The battery broadcast
+     * is sticky, so the current battery state is available immediately.
+     */
+    void start() {
+        synchronized (lock) {
+            if (started) {
+                return;
+            }
+            started = true;
+        }
+
+        try {
+            Intent batteryStatus = context.registerReceiver(batteryReceiver,
+                    new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            if (batteryStatus != null) {
+                onBatteryChanged(batteryStatus);
+            }
+            // The connectivity broadcast is sticky too
+            Intent connectivity = context.registerReceiver(connectivityReceiver,
+                    new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+            if (connectivity != null) {
+                onConnectivityChanged(connectivity);
+            }
+        } catch (RuntimeException e) {
+            SiftLog.e(TAG, "Encountered exception registering device state receivers", e);
+        }
+    }
+
+    /**
+     * Unsubscribes from system broadcasts.
+     */
+    void stop() {
+        synchronized (lock) {
+            if (!started) {
+                return;
+            }
+            started = false;
+        }
+
+        try {
+            context.unregisterReceiver(batteryReceiver);
+            context.unregisterReceiver(connectivityReceiver);
+        } catch (RuntimeException e) {
+            SiftLog.d(TAG, "Encountered exception unregistering device state receivers", e);
+        }
+        // Without broadcasts, connectivity is unknown again
+        setConnected(true, false);
+    }
+
+    /**
+     * @return the latest device state; only re-reads network addresses if
+     * connectivity changed since the last call
+     */
+    Snapshot getSnapshot() {
+        if (networkAddressesStale) {
+            networkAddressesStale = false;
+            List<String> addresses = readNetworkAddresses();
+            synchronized (lock) {
+                snapshot = snapshot.withNetworkAddresses(addresses);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the ANDROID_ID of this installation, read once and cached
+     */
+    @SuppressLint("HardwareIds")
+    String getInstallationId() {
+        String id = installationId;
+        if (id == null) {
+            id = Settings.Secure.getString(context.getContentResolver(),
+                    Settings.Secure.ANDROID_ID);
+            installationId = id;
+        }
+        return id;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public boolean isMetered() {
+        return metered;
+    }
+
+    @Override
+    public void setListener(@Nullable ConnectivitySource.Listener listener) {
+        this.connectivityListener = listener;
+    }
+
+    @Override
+    public boolean isCharging() {
+        return snapshot.plugState > 0;
+    }
+
+    @Override
+    public void setListener(@Nullable PowerSource.Listener listener) {
+        this.powerListener = listener;
+    }
+
+    void onConnectivityChanged(Intent intent) {
+        // Addresses are re-read lazily on the next snapshot so that the
+        // interface walk stays off the main thread.
+        networkAddressesStale = true;
+
+        boolean connected =
+                !intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false);
+        setConnected(connected, connected && isActiveNetworkMetered());
+    }
+
+    /**
+     * Reads whether the active network is metered. The broadcast describes
+     * the network that changed, which is not necessarily the active one.
+     */
+    private boolean isActiveNetworkMetered() {
+        ConnectivityManager manager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (manager == null) {
+            return false;
+        }
+        try {
+            return manager.isActiveNetworkMetered();
+        } catch (SecurityException e) {
+            SiftLog.d(TAG, "Missing ACCESS_NETWORK_STATE, treating the network as unmetered");
+            return false;
+        }
+    }
+
+    private void setConnected(boolean connected, boolean metered) {
+        boolean changed;
+        synchronized (lock) {
+            changed = connected != this.connected || metered != this.metered;
+            this.connected = connected;
+            this.metered = metered;
+        }
+
+        ConnectivitySource.Listener listener = connectivityListener;
+        if (changed && listener != null) {
+            SiftLog.d(TAG, "Connectivity changed, connected: %s, metered: %s",
+                    connected, metered);
+            listener.onConnectivityChanged(connected);
+        }
+    }
+
+    void onBatteryChanged(Intent batteryStatus) {
+        boolean changed;
+        boolean charging;
+        synchronized (lock) {
+            boolean wasCharging = isCharging();
+            snapshot = snapshot.withBattery(batteryStatus);
+            charging = isCharging();
+            changed = charging != wasCharging;
+        }
+
+        PowerSource.Listener listener = powerListener;
+        if (changed && listener != null) {
+            SiftLog.d(TAG, "Charging changed, charging: %s", charging);
+            listener.onChargingChanged(charging);
+        }
+    }
+
+    private List<String> readNetworkAddresses() {
+        List<String> addresses = new ArrayList<>();
+        try {
+            for (Enumeration<NetworkInterface> en = NetworkInterface.getNetworkInterfaces();
+                 en != null && en.hasMoreElements(); ) {
+                NetworkInterface intf = en.nextElement();
+                for (Enumeration<InetAddress> enumIpAddr = intf.getInetAddresses();
+                     enumIpAddr.hasMoreElements(); ) {
+                    InetAddress inetAddress = enumIpAddr.nextElement();
+                    if (!inetAddress.isLoopbackAddress()) {
+                        String address = inetAddress.getHostAddress().toLowerCase(Locale.US);
+                        if (address.indexOf('%') > -1) { // Truncate zone in IPv6 if present
+                            address = address.substring(0, address.indexOf('%'));
+                        }
+                        addresses.add(address);
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            SiftLog.e(TAG, e.toString());
+        }
+        return addresses;
+    }
+}
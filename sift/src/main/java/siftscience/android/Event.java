@@ -0,0 +1,175 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import androidx.annotation.NonNull;
+
+import com.sift.api.representations.MobileEventJson;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A custom in-app event sent with Sift.track().
+ *
+ * Events are immutable. The builder keeps fields in flat arrays and the
+ * field map of the uploaded event is only built on the SDK's ingest thread,
+ * so tracking costs the caller a few small allocations per event.
+ */
+public final class Event {
+    private final String type;
+    private final String path;
+    private final long time;
+    private final String[] keys;
+    private final String[] values;
+    private final int size;
+
+    private Event(Builder builder) {
+        this.type = builder.type;
+        this.path = builder.path;
+        this.time = builder.time;
+        // Shared with the builder, which copies them before its next write
+        this.keys = builder.keys;
+        this.values = builder.values;
+        this.size = builder.size;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the time of the event in milliseconds since the Epoch, or 0 to
+     * use the time it is tracked at
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return the number of fields
+     */
+    public int getFieldCount() {
+        return size;
+    }
+
+    /**
+     * @return the value of the field, or null if it is not set
+     */
+    public String getField(String key) {
+        int index = indexOf(keys, size, key);
+        return index >= 0 ? values[index] : null;
+    }
+
+    private static int indexOf(String[] keys, int size, String key) {
+        for (int i = 0; i < size; i++) {
+            if (keys[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    MobileEventJson toMobileEventJson(long defaultTime) {
+        MobileEventJson event = new MobileEventJson()
+                .withMobileEventType(type)
+                .withPath(path)
+                .withTime(time > 0 ? time : defaultTime);
+
+        if (size > 0) {
+            // Sized so that the map never rehashes
+            Map<String, String> fields = new HashMap<>(size * 4 / 3 + 1);
+            for (int i = 0; i < size; i++) {
+                fields.put(keys[i], values[i]);
+            }
+            event.setFields(fields);
+        }
+        return event;
+    }
+
+    public static class Builder {
+        private static final int DEFAULT_CAPACITY = 4;
+
+        private final String type;
+        private String path;
+        private long time;
+        private String[] keys;
+        private String[] values;
+        private int size;
+        private boolean shared;
+
+        /**
+         * @param type the type of the event, such as "screen_time" or
+         *             "checkout_step"
+         */
+        public Builder(@NonNull String type) {
+            this.type = type;
+        }
+
+        /**
+         * @param path a logical path describing where in the app the event
+         *             occurred
+         */
+        public Builder withPath(String path) {
+            this.path = path;
+            return this;
+        }
+
+        /**
+         * @param time the time of the event in milliseconds since the Epoch;
+         *             defaults to the time it is tracked at
+         */
+        public Builder withTime(long time) {
+            this.time = time;
+            return this;
+        }
+
+        /**
+         * Sets a field. Setting a key again replaces its value.
+         */
+        public Builder withField(@NonNull String key, String value) {
+            if (keys == null) {
+                keys = new String[DEFAULT_CAPACITY];
+                values = new String[DEFAULT_CAPACITY];
+            } else if (shared || size == keys.length) {
+                // Built events keep the arrays, so copy them before writing
+                int capacity = size == keys.length ? size * 2 : keys.length;
+                keys = Arrays.copyOf(keys, capacity);
+                values = Arrays.copyOf(values, capacity);
+                shared = false;
+            }
+
+            int index = indexOf(keys, size, key);
+            if (index >= 0) {
+                values[index] = value;
+            } else {
+                keys[size] = key;
+                values[size] = value;
+                size++;
+            }
+            return this;
+        }
+
+        public Builder withField(@NonNull String key, long value) {
+            return withField(key, Long.toString(value));
+        }
+
+        public Builder withField(@NonNull String key, double value) {
+            return withField(key, Double.toString(value));
+        }
+
+        public Builder withField(@NonNull String key, boolean value) {
+            return withField(key, value ? "true" : "false");
+        }
+
+        public Event build() {
+            shared = true;
+            return new Event(this);
+        }
+    }
+}
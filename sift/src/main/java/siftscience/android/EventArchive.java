@@ -0,0 +1,100 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.sift.api.representations.MobileEventJson;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the archived events of all queues in one {@link EventCodec} file,
+ * next to the queue states in the preferences. Each archive replaces the
+ * whole file.
+ *
+ * Written on the persist lane and read on the ingest lane before any write.
+ */
+class EventArchive {
+    private static final String TAG = EventArchive.class.getName();
+    private static final String FILE_NAME = "siftscience-events";
+
+    private final Context context;
+
+    EventArchive(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Replaces the archived events. Readers see either the previous file or
+     * the new one.
+     *
+     * @param block an encoded block, or null if no queue holds events
+     */
+    void write(@Nullable byte[] block) throws IOException {
+        File file = getFile();
+        if (block == null) {
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Could not delete " + file);
+            }
+            return;
+        }
+
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(block);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not rename " + temp);
+        }
+    }
+
+    /**
+     * @return the archived events of each queue, none if the file is missing
+     * or corrupt
+     */
+    @NonNull
+    Map<String, List<MobileEventJson>> read() {
+        Map<String, List<MobileEventJson>> streams = new HashMap<>();
+        try {
+            File file = getFile();
+            if (!file.exists()) {
+                return streams;
+            }
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try {
+                EventCodec.decode(in, streams);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            SiftLog.e(TAG, "Encountered exception reading archived events", e);
+        }
+        return streams;
+    }
+
+    private File getFile() throws IOException {
+        return new File(Utils.getNoBackupFilesDir(context), FILE_NAME);
+    }
+}
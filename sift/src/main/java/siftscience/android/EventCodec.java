@@ -0,0 +1,740 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import androidx.annotation.NonNull;
+
+import com.sift.api.representations.AndroidAppStateJson;
+import com.sift.api.representations.AndroidDeviceLocationJson;
+import com.sift.api.representations.AndroidDevicePropertiesJson;
+import com.sift.api.representations.AndroidInstalledAppJson;
+import com.sift.api.representations.MobileEventJson;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of events for the files the SDK keeps on disk.
+ *
+ * A block holds the events of one or more queues:
+ *
+ * <pre>
+ * block   := 'S' 'E' version length:varint strings streams
+ * strings := count:varint (length:varint utf8)*
+ * streams := count:varint (identifier:ref count:varint object*)*
+ * object  := (key:varint value)* 0
+ * key     := tag &lt;&lt; 3 | type
+ * </pre>
+ *
+ * Every string is stored once, in the string table, and referenced by its
+ * index plus one; 0 is null. Field tags are the position of the property
+ * in its object in the YAML schema of src/main/json, so a property added
+ * to the schema takes the next tag. Readers skip the tags they don't know.
+ * The time of an event is stored as the difference to the previous event
+ * of its queue.
+ *
+ * Blocks can be appended to each other.
+ */
+final class EventCodec {
+    static final int VERSION = 1;
+
+    private static final int MAGIC_0 = 'S';
+    private static final int MAGIC_1 = 'E';
+    // Bounds the buffer a corrupt length would allocate
+    private static final int MAX_BLOCK_LENGTH = 64 * 1024 * 1024;
+
+    // Field types
+    private static final int VARINT = 0;
+    private static final int DOUBLE = 1;
+    private static final int STRING = 2;
+    private static final int OBJECT = 3;
+    private static final int STRING_LIST = 4;
+    private static final int STRING_MAP = 5;
+    private static final int OBJECT_LIST = 6;
+
+    // mobile_event.yaml
+    private static final int EVENT_TIME = 1;
+    private static final int EVENT_PATH = 2;
+    private static final int EVENT_MOBILE_EVENT_TYPE = 3;
+    private static final int EVENT_USER_ID = 4;
+    private static final int EVENT_INSTALLATION_ID = 5;
+    private static final int EVENT_FIELDS = 6;
+    private static final int EVENT_DEVICE_PROPERTIES = 7;
+    private static final int EVENT_ANDROID_DEVICE_PROPERTIES = 8;
+    private static final int EVENT_ANDROID_APP_STATE = 9;
+
+    // mobile_event.yaml, android_device_properties
+    private static final int PROPERTIES_APP_NAME = 1;
+    private static final int PROPERTIES_APP_VERSION = 2;
+    private static final int PROPERTIES_SDK_VERSION = 3;
+    private static final int PROPERTIES_MOBILE_CARRIER_NAME = 4;
+    private static final int PROPERTIES_MOBILE_ISO_COUNTRY_CODE = 5;
+    private static final int PROPERTIES_DEVICE_MANUFACTURER = 6;
+    private static final int PROPERTIES_DEVICE_MODEL = 7;
+    private static final int PROPERTIES_DEVICE_SYSTEM_VERSION = 8;
+    private static final int PROPERTIES_ANDROID_ID = 9;
+    private static final int PROPERTIES_BUILD_TAGS = 10;
+    private static final int PROPERTIES_EVIDENCE_FILES_PRESENT = 11;
+    private static final int PROPERTIES_EVIDENCE_PACKAGES_PRESENT = 12;
+    private static final int PROPERTIES_EVIDENCE_PROPERTIES = 13;
+    private static final int PROPERTIES_EVIDENCE_DIRECTORIES_WRITABLE = 14;
+    private static final int PROPERTIES_INSTALLED_APPS = 15;
+
+    // mobile_event.yaml, installed_apps
+    private static final int INSTALLED_APP_PACKAGE_NAME = 1;
+    private static final int INSTALLED_APP_APP_NAME = 2;
+
+    // mobile_event.yaml, android_app_state
+    private static final int APP_STATE_ACTIVITY_CLASS_NAME = 1;
+    private static final int APP_STATE_LOCATION = 2;
+    private static final int APP_STATE_SDK_VERSION = 3;
+    private static final int APP_STATE_BATTERY_LEVEL = 4;
+    private static final int APP_STATE_BATTERY_STATE = 5;
+    private static final int APP_STATE_BATTERY_HEALTH = 6;
+    private static final int APP_STATE_PLUG_STATE = 7;
+    private static final int APP_STATE_NETWORK_ADDRESSES = 8;
+
+    // android_device_location.yaml
+    private static final int LOCATION_LATITUDE = 1;
+    private static final int LOCATION_LONGITUDE = 2;
+
+    private EventCodec() {
+    }
+
+    /**
+     * Encodes the events of queues into one block.
+     *
+     * @param streams the events of each queue, oldest first
+     */
+    @NonNull
+    static byte[] encode(@NonNull Map<String, List<MobileEventJson>> streams) {
+        Encoder body = new Encoder(new LinkedHashMap<String, Integer>());
+        body.writeVarint(streams.size());
+        for (Map.Entry<String, List<MobileEventJson>> entry : streams.entrySet()) {
+            body.writeRef(entry.getKey());
+            body.writeVarint(entry.getValue().size());
+            long time = 0;
+            for (MobileEventJson event : entry.getValue()) {
+                body.writeEvent(event, time);
+                if (event.getTime() != null) {
+                    time = event.getTime();
+                }
+            }
+        }
+
+        Encoder head = new Encoder(null);
+        head.writeVarint(body.strings.size());
+        for (String string : body.strings.keySet()) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            head.writeVarint(bytes.length);
+            head.write(bytes, 0, bytes.length);
+        }
+
+        Encoder block = new Encoder(null);
+        block.write(MAGIC_0);
+        block.write(MAGIC_1);
+        block.write(VERSION);
+        block.writeVarint(head.size() + body.size());
+        head.copyTo(block);
+        body.copyTo(block);
+        return block.toByteArray();
+    }
+
+    /**
+     * Decodes the next block and adds its events to the given map. The map
+     * is left as it was if the block is corrupt.
+     *
+     * @return false at the end of the input
+     * @throws IOException if the block is corrupt or of an unknown version
+     */
+    static boolean decode(@NonNull InputStream in,
+                          @NonNull Map<String, List<MobileEventJson>> streams)
+            throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int magic = data.read();
+        if (magic == -1) {
+            return false;
+        }
+        if (magic != MAGIC_0 || data.readUnsignedByte() != MAGIC_1) {
+            throw new IOException("Not an event block");
+        }
+        int version = data.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported event block version " + version);
+        }
+        long length = readVarint(data);
+        if (length < 0 || length > MAX_BLOCK_LENGTH) {
+            throw new IOException("Invalid event block length " + length);
+        }
+        byte[] payload = new byte[(int) length];
+        data.readFully(payload);
+
+        Decoder decoder = new Decoder(payload);
+        Map<String, List<MobileEventJson>> decoded = new HashMap<>();
+        List<String> identifiers = new ArrayList<>();
+        int count = decoder.readCount();
+        for (int i = 0; i < count; i++) {
+            String identifier = decoder.readRef();
+            int size = decoder.readCount();
+            List<MobileEventJson> events = new ArrayList<>(size);
+            long time = 0;
+            for (int j = 0; j < size; j++) {
+                MobileEventJson event = decoder.readEvent(time);
+                if (event.getTime() != null) {
+                    time = event.getTime();
+                }
+                events.add(event);
+            }
+            if (!decoded.containsKey(identifier)) {
+                identifiers.add(identifier);
+                decoded.put(identifier, events);
+            } else {
+                decoded.get(identifier).addAll(events);
+            }
+        }
+        if (!decoder.isDone()) {
+            throw new IOException("Trailing bytes in event block");
+        }
+
+        for (String identifier : identifiers) {
+            List<MobileEventJson> events = streams.get(identifier);
+            if (events == null) {
+                streams.put(identifier, decoded.get(identifier));
+            } else {
+                events.addAll(decoded.get(identifier));
+            }
+        }
+        return true;
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static final class Encoder {
+        // Index of each string in the string table; null for the header
+        private final Map<String, Integer> strings;
+        private byte[] bytes = new byte[256];
+        private int size;
+
+        Encoder(Map<String, Integer> strings) {
+            this.strings = strings;
+        }
+
+        int size() {
+            return size;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+        void copyTo(Encoder other) {
+            other.write(bytes, 0, size);
+        }
+
+        void write(int b) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, size * 2);
+            }
+            bytes[size++] = (byte) b;
+        }
+
+        void write(byte[] b, int offset, int length) {
+            if (size + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(size * 2, size + length));
+            }
+            System.arraycopy(b, offset, bytes, size, length);
+            size += length;
+        }
+
+        void writeVarint(long value) {
+            while ((value & ~0x7fL) != 0) {
+                write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeRef(String value) {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+            Integer index = strings.get(value);
+            if (index == null) {
+                index = strings.size();
+                strings.put(value, index);
+            }
+            writeVarint(index + 1);
+        }
+
+        void writeKey(int tag, int type) {
+            writeVarint(tag << 3 | type);
+        }
+
+        void writeLong(int tag, Long value) {
+            if (value != null) {
+                writeKey(tag, VARINT);
+                // Zigzag, so that small negative numbers stay short
+                writeVarint(value << 1 ^ value >> 63);
+            }
+        }
+
+        void writeDouble(int tag, Double value) {
+            if (value != null) {
+                writeKey(tag, DOUBLE);
+                long bits = Double.doubleToLongBits(value);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    write((int) (bits >>> shift));
+                }
+            }
+        }
+
+        void writeString(int tag, String value) {
+            if (value != null) {
+                writeKey(tag, STRING);
+                writeRef(value);
+            }
+        }
+
+        void writeStringList(int tag, List<String> values) {
+            if (values != null) {
+                writeKey(tag, STRING_LIST);
+                writeVarint(values.size());
+                for (String value : values) {
+                    writeRef(value);
+                }
+            }
+        }
+
+        void writeStringMap(int tag, Map<String, String> values) {
+            if (values != null) {
+                writeKey(tag, STRING_MAP);
+                writeVarint(values.size());
+                for (Map.Entry<String, String> entry : values.entrySet()) {
+                    writeRef(entry.getKey());
+                    writeRef(entry.getValue());
+                }
+            }
+        }
+
+        void writeEvent(MobileEventJson event, long previousTime) {
+            if (event.getTime() != null) {
+                writeLong(EVENT_TIME, event.getTime() - previousTime);
+            }
+            writeString(EVENT_PATH, event.getPath());
+            writeString(EVENT_MOBILE_EVENT_TYPE, event.getMobileEventType());
+            writeString(EVENT_USER_ID, event.getUserId());
+            writeString(EVENT_INSTALLATION_ID, event.getInstallationId());
+            writeStringMap(EVENT_FIELDS, event.getFields());
+            writeStringMap(EVENT_DEVICE_PROPERTIES, event.getDeviceProperties());
+            if (event.getAndroidDeviceProperties() != null) {
+                writeKey(EVENT_ANDROID_DEVICE_PROPERTIES, OBJECT);
+                writeDeviceProperties(event.getAndroidDeviceProperties());
+            }
+            if (event.getAndroidAppState() != null) {
+                writeKey(EVENT_ANDROID_APP_STATE, OBJECT);
+                writeAppState(event.getAndroidAppState());
+            }
+            writeVarint(0);
+        }
+
+        void writeDeviceProperties(AndroidDevicePropertiesJson properties) {
+            writeString(PROPERTIES_APP_NAME, properties.getAppName());
+            writeString(PROPERTIES_APP_VERSION, properties.getAppVersion());
+            writeString(PROPERTIES_SDK_VERSION, properties.getSdkVersion());
+            writeString(PROPERTIES_MOBILE_CARRIER_NAME, properties.getMobileCarrierName());
+            writeString(PROPERTIES_MOBILE_ISO_COUNTRY_CODE,
+                    properties.getMobileIsoCountryCode());
+            writeString(PROPERTIES_DEVICE_MANUFACTURER, properties.getDeviceManufacturer());
+            writeString(PROPERTIES_DEVICE_MODEL, properties.getDeviceModel());
+            writeString(PROPERTIES_DEVICE_SYSTEM_VERSION, properties.getDeviceSystemVersion());
+            writeString(PROPERTIES_ANDROID_ID, properties.getAndroidId());
+            writeString(PROPERTIES_BUILD_TAGS, properties.getBuildTags());
+            writeStringList(PROPERTIES_EVIDENCE_FILES_PRESENT,
+                    properties.getEvidenceFilesPresent());
+            writeStringList(PROPERTIES_EVIDENCE_PACKAGES_PRESENT,
+                    properties.getEvidencePackagesPresent());
+            writeStringList(PROPERTIES_EVIDENCE_PROPERTIES,
+                    properties.getEvidenceProperties());
+            writeStringList(PROPERTIES_EVIDENCE_DIRECTORIES_WRITABLE,
+                    properties.getEvidenceDirectoriesWritable());
+            List<AndroidInstalledAppJson> apps = properties.getInstalledApps();
+            if (apps != null) {
+                writeKey(PROPERTIES_INSTALLED_APPS, OBJECT_LIST);
+                writeVarint(apps.size());
+                for (AndroidInstalledAppJson app : apps) {
+                    if (app == null) {
+                        writeVarint(0);
+                        continue;
+                    }
+                    writeVarint(1);
+                    writeString(INSTALLED_APP_PACKAGE_NAME, app.getPackageName());
+                    writeString(INSTALLED_APP_APP_NAME, app.getAppName());
+                    writeVarint(0);
+                }
+            }
+            writeVarint(0);
+        }
+
+        void writeAppState(AndroidAppStateJson appState) {
+            writeString(APP_STATE_ACTIVITY_CLASS_NAME, appState.getActivityClassName());
+            AndroidDeviceLocationJson location = appState.getLocation();
+            if (location != null) {
+                writeKey(APP_STATE_LOCATION, OBJECT);
+                writeDouble(LOCATION_LATITUDE, location.getLatitude());
+                writeDouble(LOCATION_LONGITUDE, location.getLongitude());
+                writeVarint(0);
+            }
+            writeString(APP_STATE_SDK_VERSION, appState.getSdkVersion());
+            writeDouble(APP_STATE_BATTERY_LEVEL, appState.getBatteryLevel());
+            writeLong(APP_STATE_BATTERY_STATE, appState.getBatteryState());
+            writeLong(APP_STATE_BATTERY_HEALTH, appState.getBatteryHealth());
+            writeLong(APP_STATE_PLUG_STATE, appState.getPlugState());
+            writeStringList(APP_STATE_NETWORK_ADDRESSES, appState.getNetworkAddresses());
+            writeVarint(0);
+        }
+    }
+
+    private static final class Decoder {
+        private final byte[] bytes;
+        private int position;
+        private String[] strings;
+
+        Decoder(byte[] bytes) throws IOException {
+            this.bytes = bytes;
+            int count = readCount();
+            strings = new String[count];
+            for (int i = 0; i < count; i++) {
+                int length = readCount();
+                strings[i] = new String(bytes, position, length, StandardCharsets.UTF_8);
+                position += length;
+            }
+        }
+
+        boolean isDone() {
+            return position == bytes.length;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        /**
+         * @return a count or length, which can't exceed the bytes left
+         */
+        int readCount() throws IOException {
+            long count = readVarint();
+            if (count < 0 || count > bytes.length - position) {
+                throw new IOException("Invalid count " + count);
+            }
+            return (int) count;
+        }
+
+        int readByte() throws IOException {
+            if (position >= bytes.length) {
+                throw new EOFException();
+            }
+            return bytes[position++] & 0xff;
+        }
+
+        String readRef() throws IOException {
+            long ref = readVarint();
+            if (ref < 0 || ref > strings.length) {
+                throw new IOException("Invalid string reference " + ref);
+            }
+            return ref == 0 ? null : strings[(int) ref - 1];
+        }
+
+        long readLong() throws IOException {
+            long value = readVarint();
+            return value >>> 1 ^ -(value & 1);
+        }
+
+        double readDouble() throws IOException {
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = bits << 8 | readByte();
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        List<String> readStringList() throws IOException {
+            int count = readCount();
+            List<String> values = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                values.add(readRef());
+            }
+            return values;
+        }
+
+        Map<String, String> readStringMap() throws IOException {
+            int count = readCount();
+            Map<String, String> values = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                values.put(readRef(), readRef());
+            }
+            return values;
+        }
+
+        /**
+         * @return the key of the next field, or 0 at the end of the object
+         */
+        int readKey() throws IOException {
+            long key = readVarint();
+            if (key < 0 || key > Integer.MAX_VALUE) {
+                throw new IOException("Invalid field key " + key);
+            }
+            return (int) key;
+        }
+
+        /**
+         * Skips the value of a field added after this version of the SDK.
+         */
+        void skip(int type) throws IOException {
+            switch (type) {
+                case VARINT:
+                    readVarint();
+                    break;
+                case DOUBLE:
+                    readDouble();
+                    break;
+                case STRING:
+                    readRef();
+                    break;
+                case OBJECT:
+                    skipObject();
+                    break;
+                case STRING_LIST:
+                    readStringList();
+                    break;
+                case STRING_MAP:
+                    readStringMap();
+                    break;
+                case OBJECT_LIST:
+                    int count = readCount();
+                    for (int i = 0; i < count; i++) {
+                        if (readVarint() != 0) {
+                            skipObject();
+                        }
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown field type " + type);
+            }
+        }
+
+        void skipObject() throws IOException {
+            int key;
+            while ((key = readKey()) != 0) {
+                skip(key & 7);
+            }
+        }
+
+        MobileEventJson readEvent(long previousTime) throws IOException {
+            MobileEventJson event = new MobileEventJson();
+            int key;
+            while ((key = readKey()) != 0) {
+                switch (key) {
+                    case EVENT_TIME << 3 | VARINT:
+                        event.setTime(previousTime + readLong());
+                        break;
+                    case EVENT_PATH << 3 | STRING:
+                        event.setPath(readRef());
+                        break;
+                    case EVENT_MOBILE_EVENT_TYPE << 3 | STRING:
+                        event.setMobileEventType(readRef());
+                        break;
+                    case EVENT_USER_ID << 3 | STRING:
+                        event.setUserId(readRef());
+                        break;
+                    case EVENT_INSTALLATION_ID << 3 | STRING:
+                        event.setInstallationId(readRef());
+                        break;
+                    case EVENT_FIELDS << 3 | STRING_MAP:
+                        event.setFields(readStringMap());
+                        break;
+                    case EVENT_DEVICE_PROPERTIES << 3 | STRING_MAP:
+                        event.setDeviceProperties(readStringMap());
+                        break;
+                    case EVENT_ANDROID_DEVICE_PROPERTIES << 3 | OBJECT:
+                        event.setAndroidDeviceProperties(readDeviceProperties());
+                        break;
+                    case EVENT_ANDROID_APP_STATE << 3 | OBJECT:
+                        event.setAndroidAppState(readAppState());
+                        break;
+                    default:
+                        skip(key & 7);
+                }
+            }
+            return event;
+        }
+
+        AndroidDevicePropertiesJson readDeviceProperties() throws IOException {
+            AndroidDevicePropertiesJson properties = new AndroidDevicePropertiesJson();
+            int key;
+            while ((key = readKey()) != 0) {
+                switch (key) {
+                    case PROPERTIES_APP_NAME << 3 | STRING:
+                        properties.setAppName(readRef());
+                        break;
+                    case PROPERTIES_APP_VERSION << 3 | STRING:
+                        properties.setAppVersion(readRef());
+                        break;
+                    case PROPERTIES_SDK_VERSION << 3 | STRING:
+                        properties.setSdkVersion(readRef());
+                        break;
+                    case PROPERTIES_MOBILE_CARRIER_NAME << 3 | STRING:
+                        properties.setMobileCarrierName(readRef());
+                        break;
+                    case PROPERTIES_MOBILE_ISO_COUNTRY_CODE << 3 | STRING:
+                        properties.setMobileIsoCountryCode(readRef());
+                        break;
+                    case PROPERTIES_DEVICE_MANUFACTURER << 3 | STRING:
+                        properties.setDeviceManufacturer(readRef());
+                        break;
+                    case PROPERTIES_DEVICE_MODEL << 3 | STRING:
+                        properties.setDeviceModel(readRef());
+                        break;
+                    case PROPERTIES_DEVICE_SYSTEM_VERSION << 3 | STRING:
+                        properties.setDeviceSystemVersion(readRef());
+                        break;
+                    case PROPERTIES_ANDROID_ID << 3 | STRING:
+                        properties.setAndroidId(readRef());
+                        break;
+                    case PROPERTIES_BUILD_TAGS << 3 | STRING:
+                        properties.setBuildTags(readRef());
+                        break;
+                    case PROPERTIES_EVIDENCE_FILES_PRESENT << 3 | STRING_LIST:
+                        properties.setEvidenceFilesPresent(readStringList());
+                        break;
+                    case PROPERTIES_EVIDENCE_PACKAGES_PRESENT << 3 | STRING_LIST:
+                        properties.setEvidencePackagesPresent(readStringList());
+                        break;
+                    case PROPERTIES_EVIDENCE_PROPERTIES << 3 | STRING_LIST:
+                        properties.setEvidenceProperties(readStringList());
+                        break;
+                    case PROPERTIES_EVIDENCE_DIRECTORIES_WRITABLE << 3 | STRING_LIST:
+                        properties.setEvidenceDirectoriesWritable(readStringList());
+                        break;
+                    case PROPERTIES_INSTALLED_APPS << 3 | OBJECT_LIST:
+                        properties.setInstalledApps(readInstalledApps());
+                        break;
+                    default:
+                        skip(key & 7);
+                }
+            }
+            return properties;
+        }
+
+        List<AndroidInstalledAppJson> readInstalledApps() throws IOException {
+            int count = readCount();
+            List<AndroidInstalledAppJson> apps = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                if (readVarint() == 0) {
+                    apps.add(null);
+                    continue;
+                }
+                AndroidInstalledAppJson app = new AndroidInstalledAppJson();
+                int key;
+                while ((key = readKey()) != 0) {
+                    switch (key) {
+                        case INSTALLED_APP_PACKAGE_NAME << 3 | STRING:
+                            app.setPackageName(readRef());
+                            break;
+                        case INSTALLED_APP_APP_NAME << 3 | STRING:
+                            app.setAppName(readRef());
+                            break;
+                        default:
+                            skip(key & 7);
+                    }
+                }
+                apps.add(app);
+            }
+            return apps;
+        }
+
+        AndroidAppStateJson readAppState() throws IOException {
+            AndroidAppStateJson appState = new AndroidAppStateJson();
+            int key;
+            while ((key = readKey()) != 0) {
+                switch (key) {
+                    case APP_STATE_ACTIVITY_CLASS_NAME << 3 | STRING:
+                        appState.setActivityClassName(readRef());
+                        break;
+                    case APP_STATE_LOCATION << 3 | OBJECT:
+                        appState.setLocation(readLocation());
+                        break;
+                    case APP_STATE_SDK_VERSION << 3 | STRING:
+                        appState.setSdkVersion(readRef());
+                        break;
+                    case APP_STATE_BATTERY_LEVEL << 3 | DOUBLE:
+                        appState.setBatteryLevel(readDouble());
+                        break;
+                    case APP_STATE_BATTERY_STATE << 3 | VARINT:
+                        appState.setBatteryState(readLong());
+                        break;
+                    case APP_STATE_BATTERY_HEALTH << 3 | VARINT:
+                        appState.setBatteryHealth(readLong());
+                        break;
+                    case APP_STATE_PLUG_STATE << 3 | VARINT:
+                        appState.setPlugState(readLong());
+                        break;
+                    case APP_STATE_NETWORK_ADDRESSES << 3 | STRING_LIST:
+                        appState.setNetworkAddresses(readStringList());
+                        break;
+                    default:
+                        skip(key & 7);
+                }
+            }
+            return appState;
+        }
+
+        AndroidDeviceLocationJson readLocation() throws IOException {
+            AndroidDeviceLocationJson location = new AndroidDeviceLocationJson();
+            int key;
+            while ((key = readKey()) != 0) {
+                switch (key) {
+                    case LOCATION_LATITUDE << 3 | DOUBLE:
+                        location.setLatitude(readDouble());
+                        break;
+                    case LOCATION_LONGITUDE << 3 | DOUBLE:
+                        location.setLongitude(readDouble());
+                        break;
+                    default:
+                        skip(key & 7);
+                }
+            }
+            return location;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import com.sift.api.representations.MobileEventJson;
+
+import java.util.List;
+
+/**
+ * Receives callbacks as events move through the SDK, to trace the latency
+ * from collection to upload.
+ *
+ * Register a listener with Sift.setEventListener(). Callbacks are made on
+ * the SDK threads and must return quickly. Every callback carries the
+ * elapsed realtime in milliseconds at which it happened, which is
+ * monotonic and comparable across callbacks. Events are passed as is, so
+ * they can be correlated by identity; do not modify them.
+ *
+ * When no listener is set, no timestamps or batch identifiers are taken.
+ */
+public interface EventListener {
+
+    /** Batch identifier of events that were dropped outside of a batch. */
+    long NO_BATCH = 0;
+
+    enum DropReason {
+        /** The SDK was stopped before the events could be uploaded or persisted. */
+        STOPPED,
+        /** The events were tracked into a queue that does not exist. */
+        UNKNOWN_QUEUE,
+        /** There is no valid Sift.Config to upload with. */
+        NOT_CONFIGURED,
+        /** The server rejected the batch as malformed. */
+        REJECTED,
+        /** Every upload attempt of the batch failed. */
+        RETRIES_EXHAUSTED,
+        /** The batch could not be encoded or sent. */
+        IO_ERROR,
+        /** The task carrying the events was rejected by a full or shut down lane. */
+        TASK_REJECTED
+    }
+
+    /**
+     * Called when an event is handed to the SDK, on the collecting thread.
+     * Custom events are reported on the ingest thread with the time they
+     * were tracked at.
+     */
+    default void onCollected(String queueIdentifier, MobileEventJson event, long time) {
+    }
+
+    /**
+     * Called when an event is added to its queue.
+     */
+    default void onAppended(String queueIdentifier, MobileEventJson event, long time) {
+    }
+
+    /**
+     * Called when an event is dropped as a duplicate of the previous event
+     * of its queue.
+     */
+    default void onDeduped(String queueIdentifier, MobileEventJson event, long time) {
+    }
+
+    /**
+     * Called when a queue is flushed into a batch for upload. Batches that
+     * are sent again when the SDK stops are reported with a new identifier.
+     *
+     * @param batchId a positive identifier of the batch, unique per process
+     */
+    default void onFlushed(long batchId, List<MobileEventJson> batch, long time) {
+    }
+
+    /**
+     * Called when an upload attempt of a batch starts.
+     *
+     * @param attempt the attempt number, starting at 1
+     */
+    default void onUploadStarted(long batchId, int attempt, long time) {
+    }
+
+    /**
+     * Called when the server accepted a batch.
+     */
+    default void onAcknowledged(long batchId, int statusCode, long time) {
+    }
+
+    /**
+     * Called when events are dropped.
+     *
+     * @param batchId the identifier of the batch, or NO_BATCH if the events
+     *                were not in a batch
+     */
+    default void onDropped(long batchId, List<MobileEventJson> events, DropReason reason,
+                           long time) {
+    }
+}
@@ -0,0 +1,86 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import com.google.android.gms.location.LocationRequest;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a location fix has to be requested and at which priority.
+ *
+ * A cached fix is reused while it is younger than the max age. Requests
+ * start at balanced power accuracy and only escalate to high accuracy when
+ * a request did not produce a fix before the next collection.
+ */
+class LocationStrategy {
+    private static final int[] PRIORITIES = {
+            LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY,
+            LocationRequest.PRIORITY_HIGH_ACCURACY
+    };
+
+    private final long maxAgeNanos;
+    private final int maxLevel;
+    private volatile int level = 0;
+    private final Metrics metrics;
+
+    LocationStrategy(Sift.Config config) {
+        this(config, new Metrics());
+    }
+
+    LocationStrategy(Sift.Config config, Metrics metrics) {
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(config.locationMaxAge);
+        this.maxLevel = config.allowHighAccuracyLocation ? PRIORITIES.length - 1 : 0;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param fixElapsedNanos the elapsed realtime of the fix, or 0 if unknown
+     * @param nowElapsedNanos the current elapsed realtime
+     * @return whether a fix is recent enough to be reused
+     */
+    boolean isFresh(long fixElapsedNanos, long nowElapsedNanos) {
+        return fixElapsedNanos > 0 && nowElapsedNanos - fixElapsedNanos <= maxAgeNanos;
+    }
+
+    /**
+     * @return the LocationRequest priority to request the next fix with
+     */
+    int getPriority() {
+        return PRIORITIES[level];
+    }
+
+    /**
+     * Moves to the next priority after a request went unanswered.
+     *
+     * @return whether the priority changed
+     */
+    synchronized boolean escalate() {
+        if (level < maxLevel) {
+            level++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Resets to the lowest priority after a fix was delivered.
+     */
+    void onFix() {
+        level = 0;
+    }
+
+    /**
+     * Counts a location request issued to the fused provider.
+     */
+    void recordRequest() {
+        metrics.locationRequests.increment();
+    }
+
+    /**
+     * Counts a collection served by a cached fix.
+     */
+    void recordCacheHit() {
+        metrics.locationCacheHits.increment();
+    }
+}
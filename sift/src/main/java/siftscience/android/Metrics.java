@@ -0,0 +1,214 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Registry of the SDK's internal counters and latency histograms.
+ *
+ * Counters are striped by thread over padded slots of one array, so the
+ * lanes updating the same counter do not contend on a cache line. Recording
+ * never allocates; reading sums the stripes into a MetricsSnapshot.
+ *
+ * It also holds the optional EventListener, so that everything recording
+ * metrics can report lifecycle callbacks at the same points.
+ */
+class Metrics {
+    // Power of two; the SDK has one thread per lane plus the caller threads
+    private static final int STRIPES = 8;
+    // Longs per stripe, so that two stripes never share a 64 byte cache line
+    private static final int PADDING = 8;
+
+    /** Upper bounds in milliseconds of the latency histogram buckets. */
+    static final long[] LATENCY_BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+
+    static final String EVENTS_APPENDED = "events.appended";
+    static final String EVENTS_DEDUPED = "events.deduped";
+    static final String EVENTS_DROPPED = "events.dropped";
+    static final String EVENTS_REJECTED = "events.rejected";
+    static final String EVENTS_SPILLED = "events.spilled";
+    static final String EVENTS_REHYDRATED = "events.rehydrated";
+    static final String FLUSHES_SIZE = "queue.flushes.size";
+    static final String FLUSHES_AGE = "queue.flushes.age";
+    static final String FLUSHES_FORCED = "queue.flushes.forced";
+    static final String FLUSHES_STOP = "queue.flushes.stop";
+    static final String FLUSHES_RESUME = "queue.flushes.resume";
+    static final String FLUSHES_PIGGYBACK = "queue.flushes.piggyback";
+    static final String UPLOAD_ATTEMPTS = "upload.attempts";
+    static final String UPLOAD_RETRIES = "upload.retries";
+    static final String UPLOAD_ERRORS = "upload.errors";
+    static final String UPLOADS_HELD = "upload.held";
+    static final String UPLOADS_DEFERRED = "upload.deferred";
+    static final String UPLOAD_BYTES = "upload.bytes";
+    static final String UPLOAD_BYTES_GZIP = "upload.bytes_gzip";
+    static final String UPLOAD_STATUS_PREFIX = "upload.status.";
+    // Counts the responses whose code is not a valid HTTP status code
+    static final String UPLOAD_STATUS_OTHER = UPLOAD_STATUS_PREFIX + "other";
+    static final String ARCHIVES = "archive.writes";
+    static final String ARCHIVE_CHARS = "archive.chars";
+    static final String ARCHIVE_EVENT_BYTES = "archive.event_bytes";
+    static final String LOCATION_REQUESTS = "location.requests";
+    static final String LOCATION_CACHE_HITS = "location.cache_hits";
+    static final String UPLOAD_LATENCY = "upload.latency_ms";
+    static final String ARCHIVE_LATENCY = "archive.latency_ms";
+
+    static final class Counter {
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+        void increment() {
+            add(1);
+        }
+
+        void add(long delta) {
+            cells.getAndAdd(stripe() * PADDING, delta);
+        }
+
+        long sum() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += cells.get(i * PADDING);
+            }
+            return sum;
+        }
+    }
+
+    static final class Histogram {
+        private final long[] bounds;
+        // One counter per bucket plus one for values above the last bound
+        private final Counter[] buckets;
+        private final Counter sum = new Counter();
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new Counter[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new Counter();
+            }
+        }
+
+        void record(long value) {
+            int bucket = 0;
+            while (bucket < bounds.length && value > bounds[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            sum.add(value);
+        }
+
+        MetricsSnapshot.Histogram snapshot() {
+            long[] counts = new long[buckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+            }
+            return new MetricsSnapshot.Histogram(bounds.clone(), counts, sum.sum());
+        }
+    }
+
+    final Counter eventsAppended = new Counter();
+    final Counter eventsDeduped = new Counter();
+    final Counter eventsRejected = new Counter();
+    final Counter eventsSpilled = new Counter();
+    final Counter eventsRehydrated = new Counter();
+    final Counter flushesSize = new Counter();
+    final Counter flushesAge = new Counter();
+    final Counter flushesForced = new Counter();
+    final Counter flushesStop = new Counter();
+    final Counter flushesResume = new Counter();
+    final Counter flushesPiggyback = new Counter();
+    final Counter uploadAttempts = new Counter();
+    final Counter uploadRetries = new Counter();
+    final Counter uploadErrors = new Counter();
+    final Counter uploadsHeld = new Counter();
+    final Counter uploadsDeferred = new Counter();
+    final Counter uploadBytes = new Counter();
+    final Counter uploadBytesGzip = new Counter();
+    final Counter archives = new Counter();
+    final Counter archiveChars = new Counter();
+    final Counter archiveEventBytes = new Counter();
+    final Counter locationRequests = new Counter();
+    final Counter locationCacheHits = new Counter();
+    final Histogram uploadLatency = new Histogram(LATENCY_BOUNDS);
+    final Histogram archiveLatency = new Histogram(LATENCY_BOUNDS);
+
+    // Set with Sift.setEventListener(); null unless tracing
+    volatile EventListener eventListener;
+
+    private static final int MIN_STATUS_CODE = 100;
+    private static final int MAX_STATUS_CODE = 599;
+
+    // Indexed by code; few distinct codes are ever seen, so counters are
+    // created on first use
+    private final AtomicReferenceArray<Counter> statusCodes =
+            new AtomicReferenceArray<>(MAX_STATUS_CODE - MIN_STATUS_CODE + 1);
+    private final Counter otherStatusCodes = new Counter();
+
+    void recordStatusCode(int code) {
+        if (code < MIN_STATUS_CODE || code > MAX_STATUS_CODE) {
+            otherStatusCodes.increment();
+            return;
+        }
+        int index = code - MIN_STATUS_CODE;
+        Counter counter = statusCodes.get(index);
+        if (counter == null) {
+            statusCodes.compareAndSet(index, null, new Counter());
+            counter = statusCodes.get(index);
+        }
+        counter.increment();
+    }
+
+    /**
+     * @param queueDepths the current number of events in each queue
+     * @param droppedEvents the number of events dropped so far
+     */
+    MetricsSnapshot snapshot(Map<String, Integer> queueDepths, long droppedEvents) {
+        Map<String, Long> counters = new HashMap<>();
+        counters.put(EVENTS_APPENDED, eventsAppended.sum());
+        counters.put(EVENTS_DEDUPED, eventsDeduped.sum());
+        counters.put(EVENTS_DROPPED, droppedEvents);
+        counters.put(EVENTS_REJECTED, eventsRejected.sum());
+        counters.put(EVENTS_SPILLED, eventsSpilled.sum());
+        counters.put(EVENTS_REHYDRATED, eventsRehydrated.sum());
+        counters.put(FLUSHES_SIZE, flushesSize.sum());
+        counters.put(FLUSHES_AGE, flushesAge.sum());
+        counters.put(FLUSHES_FORCED, flushesForced.sum());
+        counters.put(FLUSHES_STOP, flushesStop.sum());
+        counters.put(FLUSHES_RESUME, flushesResume.sum());
+        counters.put(FLUSHES_PIGGYBACK, flushesPiggyback.sum());
+        counters.put(UPLOAD_ATTEMPTS, uploadAttempts.sum());
+        counters.put(UPLOAD_RETRIES, uploadRetries.sum());
+        counters.put(UPLOAD_ERRORS, uploadErrors.sum());
+        counters.put(UPLOADS_HELD, uploadsHeld.sum());
+        counters.put(UPLOADS_DEFERRED, uploadsDeferred.sum());
+        counters.put(UPLOAD_BYTES, uploadBytes.sum());
+        counters.put(UPLOAD_BYTES_GZIP, uploadBytesGzip.sum());
+        counters.put(ARCHIVES, archives.sum());
+        counters.put(ARCHIVE_CHARS, archiveChars.sum());
+        counters.put(ARCHIVE_EVENT_BYTES, archiveEventBytes.sum());
+        counters.put(LOCATION_REQUESTS, locationRequests.sum());
+        counters.put(LOCATION_CACHE_HITS, locationCacheHits.sum());
+        for (int i = 0; i < statusCodes.length(); i++) {
+            Counter counter = statusCodes.get(i);
+            if (counter != null) {
+                counters.put(UPLOAD_STATUS_PREFIX + (MIN_STATUS_CODE + i), counter.sum());
+            }
+        }
+        long other = otherStatusCodes.sum();
+        if (other > 0) {
+            counters.put(UPLOAD_STATUS_OTHER, other);
+        }
+
+        Map<String, MetricsSnapshot.Histogram> histograms = new HashMap<>();
+        histograms.put(UPLOAD_LATENCY, uploadLatency.snapshot());
+        histograms.put(ARCHIVE_LATENCY, archiveLatency.snapshot());
+
+        return new MetricsSnapshot(counters, histograms, new HashMap<>(queueDepths));
+    }
+
+    private static int stripe() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+}
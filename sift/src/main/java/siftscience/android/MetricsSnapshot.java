@@ -0,0 +1,103 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import com.google.gson.annotations.SerializedName;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A point-in-time copy of the SDK's metrics, returned by Sift.getMetrics().
+ *
+ * Counters are totals since Sift.open(). Serialize the snapshot with Gson
+ * to ship it with your own telemetry.
+ */
+public final class MetricsSnapshot {
+
+    /**
+     * Counts of values in fixed buckets. counts[i] is the number of values
+     * at most bounds[i] and above the previous bound; the last count is for
+     * values above the last bound.
+     */
+    public static final class Histogram {
+        @SerializedName("bounds")
+        private final long[] bounds;
+        @SerializedName("counts")
+        private final long[] counts;
+        @SerializedName("sum")
+        private final long sum;
+
+        Histogram(long[] bounds, long[] counts, long sum) {
+            this.bounds = bounds;
+            this.counts = counts;
+            this.sum = sum;
+        }
+
+        public long[] getBounds() {
+            return bounds.clone();
+        }
+
+        public long[] getCounts() {
+            return counts.clone();
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+    }
+
+    @SerializedName("counters")
+    private final Map<String, Long> counters;
+    @SerializedName("histograms")
+    private final Map<String, Histogram> histograms;
+    @SerializedName("queue_depths")
+    private final Map<String, Integer> queueDepths;
+
+    MetricsSnapshot(Map<String, Long> counters,
+                    Map<String, Histogram> histograms,
+                    Map<String, Integer> queueDepths) {
+        this.counters = Collections.unmodifiableMap(counters);
+        this.histograms = Collections.unmodifiableMap(histograms);
+        this.queueDepths = Collections.unmodifiableMap(queueDepths);
+    }
+
+    /**
+     * @return the counter totals by name, such as "events.appended",
+     * "upload.attempts" or "upload.status.200"
+     */
+    public Map<String, Long> getCounters() {
+        return counters;
+    }
+
+    /**
+     * @return the value of a counter, or 0 if it was never recorded
+     */
+    public long getCounter(String name) {
+        Long value = counters.get(name);
+        return value != null ? value : 0;
+    }
+
+    /**
+     * @return the latency histograms in milliseconds by name, such as
+     * "upload.latency_ms" and "archive.latency_ms"
+     */
+    public Map<String, Histogram> getHistograms() {
+        return histograms;
+    }
+
+    /**
+     * @return the number of events waiting in each queue, by queue identifier
+     */
+    public Map<String, Integer> getQueueDepths() {
+        return queueDepths;
+    }
+}
@@ -0,0 +1,41 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Source of the charging state of the device, injected so that tests can
+ * plug and unplug the device on the JVM.
+ */
+interface PowerSource {
+
+    /** A source that never reports charging, for when power is unknown. */
+    PowerSource UNKNOWN = new PowerSource() {
+        @Override
+        public boolean isCharging() {
+            return false;
+        }
+
+        @Override
+        public void setListener(@Nullable Listener listener) {
+        }
+    };
+
+    interface Listener {
+        /**
+         * Called when the device is plugged in or unplugged, on any thread.
+         */
+        void onChargingChanged(boolean charging);
+    }
+
+    /**
+     * Return whether the device is plugged in.
+     */
+    boolean isCharging();
+
+    /**
+     * Sets the listener of charging changes, or null to remove it.
+     */
+    void setListener(@Nullable Listener listener);
+}
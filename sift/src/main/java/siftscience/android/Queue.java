@@ -3,15 +3,17 @@
 package siftscience.android;
 
 import androidx.annotation.NonNull;
-import android.util.Log;
 
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonSyntaxException;
 import com.google.gson.annotations.SerializedName;
 import com.sift.api.representations.MobileEventJson;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Queue for holding events until they are ready for upload.
@@ -21,6 +23,21 @@ public class Queue {
     private final UserIdProvider userIdProvider;
     private final UploadRequester uploadRequester;
 
+    /**
+     * How eagerly a queue that is due for upload is sent.
+     */
+    public enum Tier {
+        /** Sent as soon as the queue is due and the device is online. */
+        @SerializedName("urgent")
+        URGENT,
+        /**
+         * Sent on unmetered networks, while charging or along with another
+         * upload; otherwise held up to the max deferral of the Sift config.
+         */
+        @SerializedName("bulk")
+        BULK
+    }
+
     /**
      * Configuration for Queue's batching policy.
      */
@@ -44,12 +61,24 @@ public class Queue {
         @SerializedName(value="upload_when_older_than", alternate={"uploadWhenOlderThan"})
         private final long uploadWhenOlderThan;
 
+        /**
+         * Upload tier; null in archives of older versions.
+         */
+        @SerializedName("tier")
+        private final Tier tier;
+
         private Config(long acceptSameEventAfter,
                        int uploadWhenMoreThan,
-                       long uploadWhenOlderThan) {
+                       long uploadWhenOlderThan,
+                       Tier tier) {
             this.acceptSameEventAfter = acceptSameEventAfter;
             this.uploadWhenMoreThan = uploadWhenMoreThan;
             this.uploadWhenOlderThan = uploadWhenOlderThan;
+            this.tier = tier;
+        }
+
+        Tier getTier() {
+            return tier != null ? tier : Tier.URGENT;
         }
 
         @Override
@@ -60,30 +89,38 @@ public class Queue {
             Config that = (Config) other;
             return acceptSameEventAfter == that.acceptSameEventAfter &&
                     uploadWhenMoreThan == that.uploadWhenMoreThan &&
-                    uploadWhenOlderThan == that.uploadWhenOlderThan;
+                    uploadWhenOlderThan == that.uploadWhenOlderThan &&
+                    getTier() == that.getTier();
         }
 
         public static class Builder {
             private long acceptSameEventAfter = 0;
-            Builder withAcceptSameEventAfter(long acceptSameEventAfter) {
+            public Builder withAcceptSameEventAfter(long acceptSameEventAfter) {
                 this.acceptSameEventAfter = acceptSameEventAfter;
                 return this;
             }
 
             private int uploadWhenMoreThan = 0;
-            Builder withUploadWhenMoreThan(int uploadWhenMoreThan) {
+            public Builder withUploadWhenMoreThan(int uploadWhenMoreThan) {
                 this.uploadWhenMoreThan = uploadWhenMoreThan;
                 return this;
             }
 
             private long uploadWhenOlderThan = 0;
-            Builder withUploadWhenOlderThan(long uploadWhenOlderThan) {
+            public Builder withUploadWhenOlderThan(long uploadWhenOlderThan) {
                 this.uploadWhenOlderThan = uploadWhenOlderThan;
                 return this;
             }
 
+            private Tier tier = Tier.URGENT;
+            public Builder withTier(Tier tier) {
+                this.tier = tier;
+                return this;
+            }
+
             public Config build() {
-                return new Config(acceptSameEventAfter, uploadWhenMoreThan, uploadWhenOlderThan);
+                return new Config(acceptSameEventAfter, uploadWhenMoreThan, uploadWhenOlderThan,
+                        tier);
             }
         }
     }
@@ -94,62 +131,234 @@ public class Queue {
 
     interface UploadRequester {
         void requestUpload(List<MobileEventJson> events);
+
+        /**
+         * Return whether a queue that is due for upload should keep its
+         * events for now, even past its batching thresholds, instead of
+         * flushing.
+         *
+         * @param tier the upload tier of the queue
+         * @param waited how long the oldest queued event has waited, in
+         *               milliseconds
+         */
+        default boolean isDeferred(Tier tier, long waited) {
+            return false;
+        }
     }
 
+    /**
+     * Max difference between the boot times estimated at archive and at
+     * unarchive for the elapsed realtime baselines to be reused as is.
+     */
+    private static final long BOOT_TIME_TOLERANCE = TimeUnit.MINUTES.toMillis(1);
+
     private static class State {
+        // Archived so that queues created at runtime restore with their config
         @SerializedName("config")
         Config config;
+        // Only in archives of older versions; see archiveState()
         @SerializedName("queue")
         List<MobileEventJson> queue;
         @SerializedName(value="last_event", alternate={"lastEvent"})
         MobileEventJson lastEvent;
+        // Wall time of the last upload; kept for archives of older versions
         @SerializedName(value="last_upload_timestamp", alternate={"lastUploadTimestamp"})
         long lastUploadTimestamp;
+        // Elapsed realtime of the last upload and last event, or -1 if unknown
+        @SerializedName("last_upload_elapsed")
+        long lastUploadElapsed;
+        @SerializedName("last_event_elapsed")
+        long lastEventElapsed;
+        // Wall time and elapsed realtime of the archive, to rebase the above
+        @SerializedName("archived_at")
+        long archivedAt;
+        @SerializedName("archived_at_elapsed")
+        long archivedAtElapsed;
+        // Events moved to disk under memory pressure, older than the queue,
+        // and the wall time of the oldest of them
+        @SerializedName("spilled")
+        int spilled;
+        @SerializedName("spilled_since")
+        long spilledSince;
 
         State() {
             queue = new ArrayList<>();
             lastEvent = null;
             lastUploadTimestamp = 0;
+            lastUploadElapsed = -1;
+            lastEventElapsed = -1;
+            archivedAt = 0;
+            archivedAtElapsed = -1;
+            spilled = 0;
+            spilledSince = 0;
         }
     }
 
     private final State state;
-    private final Config config;
+    private Config config;
+    private final Clock clock;
+    private final Metrics metrics;
+    // Reported to the event listener; null for queues outside of SiftImpl
+    private final String identifier;
+    // Where events go under memory pressure; null for queues outside of SiftImpl
+    private final SpillStore spillStore;
+    // Mirrors the queue size for readers on other threads
+    private volatile int depth;
+    // Whether the flush that is due was already counted as deferred
+    private boolean deferralCounted = false;
 
     Queue(String archive,
           UserIdProvider userIdProvider,
           UploadRequester uploadRequester,
           Queue.Config config) {
+        this(archive, userIdProvider, uploadRequester, config, Clock.SYSTEM);
+    }
+
+    Queue(String archive,
+          UserIdProvider userIdProvider,
+          UploadRequester uploadRequester,
+          Queue.Config config,
+          Clock clock) {
+        this(null, archive, userIdProvider, uploadRequester, config, clock, new Metrics());
+    }
+
+    Queue(String identifier,
+          String archive,
+          UserIdProvider userIdProvider,
+          UploadRequester uploadRequester,
+          Queue.Config config,
+          Clock clock,
+          Metrics metrics) {
+        this(identifier, archive, userIdProvider, uploadRequester, config, clock, metrics, null);
+    }
+
+    Queue(String identifier,
+          String archive,
+          UserIdProvider userIdProvider,
+          UploadRequester uploadRequester,
+          Queue.Config config,
+          Clock clock,
+          Metrics metrics,
+          SpillStore spillStore) {
+        this.identifier = identifier;
+        this.clock = clock;
+        this.metrics = metrics;
+        this.spillStore = identifier != null ? spillStore : null;
         state = unarchive(archive);
+        depth = size();
 
+        // Without a config, use the archived one
+        if (config == null) {
+            config = state.config != null ? state.config : new Config.Builder().build();
+        }
         this.config = config;
+        state.config = config;
         this.userIdProvider = userIdProvider;
         this.uploadRequester = uploadRequester;
     }
 
     String archive() throws JsonParseException {
+        state.archivedAt = clock.now();
+        state.archivedAtElapsed = clock.elapsedRealtime();
         return Sift.GSON.toJson(state);
     }
 
+    /**
+     * Archives the state without the in-memory events, which the caller
+     * persists in a more compact encoding.
+     *
+     * @see #getEvents()
+     */
+    String archiveState() throws JsonParseException {
+        List<MobileEventJson> queue = state.queue;
+        // Null fields are left out
+        state.queue = null;
+        try {
+            return archive();
+        } finally {
+            state.queue = queue;
+        }
+    }
+
+    /**
+     * @return the events in memory, oldest first, not counting spilled ones
+     */
+    List<MobileEventJson> getEvents() {
+        return Collections.unmodifiableList(state.queue);
+    }
+
     State unarchive(String archive) {
         if (archive == null) {
             return new State();
         }
 
         try {
-            return Sift.GSON.fromJson(archive, State.class);
+            State state = Sift.GSON.fromJson(archive, State.class);
+            rebase(state);
+            return state;
         } catch (JsonSyntaxException e) {
-            Log.d(TAG, "Encountered exception in Queue.State unarchive", e);
+            SiftLog.d(TAG, "Encountered exception in Queue.State unarchive", e);
             return new State();
         }
     }
 
+    /**
+     * Moves the elapsed realtime baselines of an archived state onto the
+     * current boot. Within the same boot they are kept as is. Otherwise the
+     * age of each baseline at archive time is carried over, plus the wall
+     * time since the archive; legacy archives fall back to wall times.
+     */
+    private void rebase(State state) {
+        long now = clock.now();
+        long elapsed = clock.elapsedRealtime();
+        boolean hasElapsed = state.archivedAt > 0 && state.archivedAtElapsed >= 0;
+
+        if (hasElapsed && elapsed >= state.archivedAtElapsed &&
+                Math.abs((now - elapsed) - (state.archivedAt - state.archivedAtElapsed)) <=
+                        BOOT_TIME_TOLERANCE) {
+            return;
+        }
+
+        long sinceArchive = hasElapsed ? Math.max(0, now - state.archivedAt) : 0;
+        long lastEventTime = state.lastEvent != null ? state.lastEvent.getTime() : 0;
+        state.lastUploadElapsed = rebase(state.lastUploadElapsed, state.lastUploadTimestamp,
+                hasElapsed ? state.archivedAtElapsed : -1, sinceArchive, now, elapsed);
+        state.lastEventElapsed = rebase(state.lastEventElapsed, lastEventTime,
+                hasElapsed ? state.archivedAtElapsed : -1, sinceArchive, now, elapsed);
+    }
+
+    private static long rebase(long baselineElapsed, long baselineTime, long archivedAtElapsed,
+                               long sinceArchive, long now, long elapsed) {
+        long age;
+        if (archivedAtElapsed >= 0 && baselineElapsed >= 0) {
+            age = Math.max(0, archivedAtElapsed - baselineElapsed) + sinceArchive;
+        } else if (baselineTime > 0) {
+            age = Math.max(0, now - baselineTime);
+        } else {
+            return -1;
+        }
+        return elapsed - age >= 0 ? elapsed - age : -1;
+    }
+
     Config getConfig() {
         return this.config;
     }
 
+    /**
+     * @return the number of events in a batch flushed for its size
+     */
+    int getBatchSize() {
+        return (int) Math.min(Integer.MAX_VALUE,
+                Math.max(1L, this.config.uploadWhenMoreThan + 1L));
+    }
+
+    void setConfig(@NonNull Config config) {
+        this.config = config;
+        state.config = config;
+    }
+
     void append(@NonNull MobileEventJson event) {
-        long now = Time.now();
+        long now = clock.elapsedRealtime();
 
         if (event.getUserId() == null) {
             event.setUserId(userIdProvider.getUserId());
@@ -157,38 +366,202 @@ public class Queue {
 
         if (this.config.acceptSameEventAfter > 0 &&
                 state.lastEvent != null &&
-                now < state.lastEvent.getTime() + this.config.acceptSameEventAfter &&
+                state.lastEventElapsed >= 0 &&
+                now < state.lastEventElapsed + this.config.acceptSameEventAfter &&
                 Utils.eventsAreBasicallyEqual(state.lastEvent, event)) {
-            Log.d(TAG, String.format("Drop duplicate event: %s", event.toString()));
+            SiftLog.d(TAG, "Drop duplicate event: %s", event);
+            metrics.eventsDeduped.increment();
+            EventListener listener = metrics.eventListener;
+            if (listener != null) {
+                listener.onDeduped(identifier, event, now);
+            }
             return;
         }
 
-        Log.d(TAG, String.format("Append event: %s", event.toString()));
+        SiftLog.d(TAG, "Append event: %s", event);
         state.queue.add(event);
+        depth = size();
         state.lastEvent = event;
+        state.lastEventElapsed = now;
+        metrics.eventsAppended.increment();
+        EventListener listener = metrics.eventListener;
+        if (listener != null) {
+            listener.onAppended(identifier, event, now);
+        }
 
-        if (this.isReadyForUpload(now)) {
-            state.lastUploadTimestamp = now;
+        if (this.isReadyForUpload(now) && !this.isDeferred()) {
+            if (size() > this.config.uploadWhenMoreThan) {
+                metrics.flushesSize.increment();
+            } else {
+                metrics.flushesAge.increment();
+            }
+            markUploaded(now);
             this.uploadRequester.requestUpload(flush());
         }
     }
 
+    /**
+     * Flushes the queue regardless of its batching thresholds and tier;
+     * only an offline device keeps the events.
+     */
     void forceUpload() {
-        if (!state.queue.isEmpty()) {
-            state.lastUploadTimestamp = Time.now();
+        if (size() > 0 && !this.uploadRequester.isDeferred(Tier.URGENT, 0)) {
+            metrics.flushesForced.increment();
+            markUploaded(clock.elapsedRealtime());
             this.uploadRequester.requestUpload(flush());
         }
     }
 
+    private void markUploaded(long now) {
+        state.lastUploadElapsed = now;
+        state.lastUploadTimestamp = clock.now();
+    }
+
+    /**
+     * Puts events that could not be uploaded back at the head of the queue.
+     */
+    void requeue(@NonNull List<MobileEventJson> events) {
+        state.queue.addAll(0, events);
+        depth = size();
+    }
+
+    /**
+     * Moves the queued events to disk to free memory. They are read back
+     * when the queue flushes; if the write fails, they stay in memory.
+     *
+     * @return the number of events moved to disk
+     */
+    int spill() {
+        if (spillStore == null || state.queue.isEmpty()) {
+            return 0;
+        }
+        try {
+            spillStore.write(identifier, state.queue);
+        } catch (IOException e) {
+            SiftLog.e(TAG, "Encountered exception spilling events", e);
+            return 0;
+        }
+
+        int count = state.queue.size();
+        long oldest = oldestTime();
+        state.spilled += count;
+        state.spilledSince = oldest;
+        state.queue = new ArrayList<>();
+        metrics.eventsSpilled.add(count);
+        return count;
+    }
+
+    /**
+     * Flushes the queue if it is due for upload, for a batch that combines
+     * several queues.
+     *
+     * @param piggyback whether the batch is sent anyway, so that a queue
+     *                  whose upload was deferred may join it
+     * @return the flushed events, empty if the queue is not due
+     */
+    List<MobileEventJson> flushIfReady(boolean piggyback) {
+        long now = clock.elapsedRealtime();
+        if (!this.isReadyForUpload(now) || (!piggyback && this.isDeferred())) {
+            return Collections.emptyList();
+        }
+        if (piggyback) {
+            metrics.flushesPiggyback.increment();
+        } else {
+            metrics.flushesResume.increment();
+        }
+        markUploaded(now);
+        return flush();
+    }
+
+    /**
+     * Asks whether to keep the events of a queue that is due. The wait is
+     * read from the wall time of the oldest event, so that it carries over
+     * restarts.
+     */
+    private boolean isDeferred() {
+        long waited = 0;
+        long time = oldestTime();
+        if (time > 0) {
+            waited = Math.max(0, clock.now() - time);
+        }
+        boolean deferred = this.uploadRequester.isDeferred(this.config.getTier(), waited);
+        // Every append asks again; a held flush is only counted once
+        if (deferred && !deferralCounted) {
+            deferralCounted = true;
+            metrics.uploadsDeferred.increment();
+        }
+        return deferred;
+    }
+
+    /**
+     * @return the wall time of the oldest event, on disk or in memory, or 0
+     * if unknown
+     */
+    private long oldestTime() {
+        long oldest = state.spilled > 0 ? state.spilledSince : 0;
+        Long time = state.queue.isEmpty() ? null : state.queue.get(0).getTime();
+        if (time != null && (oldest <= 0 || time < oldest)) {
+            oldest = time;
+        }
+        return oldest;
+    }
+
+    /**
+     * Empties the queue, reading back the events that were spilled to disk.
+     *
+     * @return the events, spilled ones first
+     */
     List<MobileEventJson> flush() {
         List<MobileEventJson> events = state.queue;
+        if (state.spilled > 0) {
+            events = rehydrate();
+            events.addAll(state.queue);
+        }
         state.queue = new ArrayList<>();
+        depth = 0;
+        deferralCounted = false;
         return events;
     }
 
+    private List<MobileEventJson> rehydrate() {
+        List<MobileEventJson> events = new ArrayList<>();
+        if (spillStore != null) {
+            try {
+                events = spillStore.read(identifier);
+            } catch (IOException e) {
+                SiftLog.e(TAG, "Encountered exception reading spilled events", e);
+            }
+        }
+        if (events.size() < state.spilled) {
+            SiftLog.e(TAG, "Lost %s spilled events", state.spilled - events.size());
+        }
+        metrics.eventsRehydrated.add(events.size());
+        state.spilled = 0;
+        state.spilledSince = 0;
+        return events;
+    }
+
+    /**
+     * @return the number of queued events, in memory and on disk
+     */
+    private int size() {
+        return state.queue.size() + state.spilled;
+    }
+
+    /**
+     * @return the number of queued events; safe to call from any thread
+     */
+    int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @param now the current elapsed realtime
+     */
     boolean isReadyForUpload(long now) {
-        return (state.queue.size() > this.config.uploadWhenMoreThan) ||
-               (!state.queue.isEmpty() &&
-                now > state.lastUploadTimestamp + this.config.uploadWhenOlderThan);
+        return (size() > this.config.uploadWhenMoreThan) ||
+               (size() > 0 &&
+                (state.lastUploadElapsed < 0 ||
+                 now > state.lastUploadElapsed + this.config.uploadWhenOlderThan));
     }
 }
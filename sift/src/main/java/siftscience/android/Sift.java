@@ -6,10 +6,11 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.StringJoiner;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.os.Build;
 import android.text.TextUtils;
-import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.RequiresApi;
@@ -19,8 +20,6 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.annotations.SerializedName;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -45,7 +44,37 @@ public final class Sift {
     private static volatile AppStateCollector appStateCollector;
     private static volatile String unboundUserId;
     private static volatile boolean hasUnboundUserId = false;
-    private static volatile ExecutorService executors;
+    private static volatile EventListener eventListener;
+    private static final TaskManager taskManager = new TaskManager();
+    private static final CollectorScheduler collectorScheduler =
+            new CollectorScheduler(taskManager);
+
+    // Moves queued events to disk when the system is low on memory
+    private static final ComponentCallbacks2 memoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            // Hiding the UI frees memory but does not mean it is short
+            if (level >= TRIM_MEMORY_RUNNING_LOW && level != TRIM_MEMORY_UI_HIDDEN) {
+                spill();
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            spill();
+        }
+
+        @Override
+        public void onConfigurationChanged(@NonNull Configuration newConfig) {
+        }
+
+        private void spill() {
+            SiftImpl sift = instance;
+            if (sift != null) {
+                sift.spill();
+            }
+        }
+    };
 
     //================================================================================
     // Static API
@@ -55,7 +84,10 @@ public final class Sift {
      * Call Sift.open() in the onCreate() callback of each Activity.
      *
      * Creates the Sift singleton and collectors if they do not exist,
-     * and passes along the current Activity context.
+     * and passes along the current Activity context. This does not touch
+     * the disk: persisted state is restored and location services are set
+     * up on the SDK threads, and calls made in the meantime are applied
+     * once that is done.
      *
      * For your application's main Activity, make sure to provide a Sift.Config
      * object as the second parameter.
@@ -76,9 +108,26 @@ public final class Sift {
         synchronized (Sift.class) {
             if (instance == null) {
                 Context c = context.getApplicationContext();
-                instance = new SiftImpl(c, config, unboundUserId, hasUnboundUserId);
+                // Uploads wait for the connectivity and power that the
+                // collector monitors
+                DeviceStateMonitor deviceStateMonitor = new DeviceStateMonitor(c);
+                instance = new SiftImpl(c, config, unboundUserId, hasUnboundUserId,
+                        taskManager, Clock.SYSTEM, deviceStateMonitor, deviceStateMonitor);
+                instance.setEventListener(eventListener);
                 devicePropertiesCollector = new DevicePropertiesCollector(instance, c);
-                appStateCollector = new AppStateCollector(instance, c);
+                appStateCollector = new AppStateCollector(instance, c, deviceStateMonitor);
+                collectorScheduler.register(appStateCollector);
+                collectorScheduler.register(devicePropertiesCollector);
+                c.registerComponentCallbacks(memoryCallbacks);
+
+                // Get the location clients ready before the first collect
+                final AppStateCollector localAppStateCollector = appStateCollector;
+                taskManager.submit(TaskManager.Lane.COLLECT, new Runnable() {
+                    @Override
+                    public void run() {
+                        localAppStateCollector.init();
+                    }
+                });
                 unboundUserId = null;
                 hasUnboundUserId = false;
             } else {
@@ -107,20 +156,125 @@ public final class Sift {
     /**
      * Call Sift.collect() after the Sift.open() call in each Activity.
      *
-     * Collect SDK events for Device Properties and Application State.
+     * Collect SDK events for Device Properties and Application State, and
+     * run any registered custom collectors that are due. Calls made while a
+     * collection is pending, or shortly after one ran, are coalesced into a
+     * single collection.
      */
     public static void collect() {
-        if (executors == null || (executors != null && executors.isShutdown())) {
-            executors = Executors.newSingleThreadScheduledExecutor();
+        collectorScheduler.requestCycle();
+    }
+
+    /**
+     * Registers a custom collector to run alongside the built-in collectors
+     * whenever Sift.collect() is called and its interval has elapsed.
+     *
+     * @param collector the collector
+     */
+    public static void registerCollector(@NonNull Collector collector) {
+        collectorScheduler.register(collector);
+    }
+
+    /**
+     * Tracks a custom in-app event, such as a screen timing or a checkout
+     * step. Events are batched and persisted like the events Sift collects.
+     * Events tracked before Sift.open() are dropped.
+     *
+     * @param event the event
+     */
+    public static void track(@NonNull Event event) {
+        SiftImpl localInstance = instance;
+        if (localInstance != null) {
+            localInstance.track(event);
+        } else {
+            SiftLog.d(TAG, "Dropped %s event tracked before open", event.getType());
+        }
+    }
+
+    /**
+     * Tracks a custom in-app event without fields.
+     *
+     * @param type the type of the event
+     * @param path a logical path describing where in the app the event occurred
+     */
+    public static void track(@NonNull String type, String path) {
+        track(new Event.Builder(type).withPath(path).build());
+    }
+
+    /**
+     * Tracks a custom in-app event into a queue created with
+     * Sift.registerQueue(). Events for an unknown queue are dropped.
+     *
+     * @param queueIdentifier the identifier of the queue
+     * @param event the event
+     */
+    public static void track(@NonNull String queueIdentifier, @NonNull Event event) {
+        SiftImpl localInstance = instance;
+        if (localInstance != null) {
+            localInstance.track(queueIdentifier, event);
+        } else {
+            SiftLog.d(TAG, "Dropped %s event tracked before open", event.getType());
+        }
+    }
+
+    /**
+     * Registers a queue for custom events with its own batching policy, so
+     * that high-volume streams can be batched separately. The queue and its
+     * config are persisted and restored on the next start. Registering an
+     * existing queue replaces its config.
+     *
+     * Call it after Sift.open().
+     *
+     * @param identifier the identifier of the queue
+     * @param config the batching policy of the queue
+     * @throws IllegalArgumentException if the identifier starts with
+     * "siftscience.android.", which is reserved for Sift's own queues
+     */
+    public static void registerQueue(@NonNull String identifier, @NonNull Queue.Config config) {
+        SiftImpl localInstance = instance;
+        if (localInstance != null) {
+            localInstance.registerQueue(identifier, config);
+        } else {
+            SiftLog.d(TAG, "Ignored %s queue registered before open", identifier);
+        }
+    }
+
+    /**
+     * Returns a snapshot of the SDK's metrics: counters for appended and
+     * deduplicated events, flushes by trigger, upload attempts, retries,
+     * status codes and bytes, archive writes, latency histograms for uploads
+     * and archives, and the depth of each queue.
+     *
+     * @return the snapshot, or null before Sift.open()
+     */
+    public static MetricsSnapshot getMetrics() {
+        SiftImpl localInstance = instance;
+        return localInstance != null ? localInstance.getMetrics() : null;
+    }
+
+    /**
+     * Sets the lowest priority of the messages the SDK logs. Defaults to
+     * Log.INFO; pass Log.DEBUG to trace the SDK, or Log.ASSERT to silence
+     * it. Messages below the level are discarded before being formatted.
+     *
+     * @param priority one of the android.util.Log priorities
+     */
+    public static void setLogLevel(int priority) {
+        SiftLog.setLevel(priority);
+    }
+
+    /**
+     * Sets a listener that is called as events are collected, appended,
+     * batched, uploaded and dropped, to trace their latency through the SDK.
+     * A listener set before Sift.open() is applied when it is called.
+     *
+     * @param listener the listener, or null to remove it
+     */
+    public static synchronized void setEventListener(EventListener listener) {
+        eventListener = listener;
+        if (instance != null) {
+            instance.setEventListener(listener);
         }
-        Runnable runnable = new Runnable() {
-            @Override
-            public void run() {
-                appStateCollector.collect();
-                devicePropertiesCollector.collect();
-            }
-        };
-        executors.submit(runnable);
     }
 
     /**
@@ -136,6 +290,7 @@ public final class Sift {
         if (instance != null) {
             instance.forceUploadAppStateEvent();
             instance.forceUploadDevicePropertiesEvent();
+            instance.forceUploadCustomEvents();
         }
     }
 
@@ -172,19 +327,12 @@ public final class Sift {
     /**
      * Call Sift.close() in the onDestroy() callback of each Activity.
      *
-     * Terminate executor used for collecting Device Properties and Application State.
+     * Cancels any pending collection of Device Properties and Application State.
+     * The SDK threads are daemon threads shared by all Activities and are not
+     * torn down.
      */
     public static void close() {
-        if (executors != null && !executors.isShutdown()){
-            executors.shutdown();
-            try {
-                if (!executors.awaitTermination(1, TimeUnit.SECONDS)) {
-                    Log.d(TAG, "Some tasks are not terminated yet before timeout");
-                }
-            } catch (InterruptedException e) {
-                Log.e(TAG, "Interrupted when awaiting executor termination", e);
-            }
-        }
+        collectorScheduler.cancel();
     }
 
     public static synchronized void setUserId(String userId) {
@@ -210,6 +358,15 @@ public final class Sift {
     public static class Config {
         private static final String DEFAULT_SERVER_URL_FORMAT =
                 "https://api3.siftscience.com/v3/accounts/%s/mobile_events";
+        private static final long DEFAULT_APP_STATE_HEARTBEAT_INTERVAL =
+                TimeUnit.MINUTES.toMillis(15);
+        private static final double DEFAULT_APP_STATE_BATTERY_LEVEL_THRESHOLD = 0.05;
+        private static final double DEFAULT_APP_STATE_LOCATION_THRESHOLD = 100;
+        private static final long DEFAULT_LOCATION_MAX_AGE = TimeUnit.MINUTES.toMillis(10);
+        private static final long DEFAULT_DEVICE_PROPERTIES_COLLECT_INTERVAL =
+                TimeUnit.MINUTES.toMillis(1);
+        private static final long DEFAULT_UPLOAD_MAX_DEFERRAL = TimeUnit.HOURS.toMillis(6);
+        private static final long DEFAULT_DAILY_UPLOAD_BYTE_BUDGET = 1024 * 1024;
 
         /** Your account ID; defaults to null. */
         @SerializedName(value="account_id", alternate={"accountId"})
@@ -227,18 +384,93 @@ public final class Sift {
         @SerializedName(value="disallow_location_collection", alternate={"disallowLocationCollection"})
         public final boolean disallowLocationCollection;
 
+        /**
+         * Max time in milliseconds between two App State events. An unchanged
+         * App State is not sent again until this much time has passed; set it
+         * to 0 to send every collected App State. Defaults to 15 minutes.
+         */
+        @SerializedName(value="app_state_heartbeat_interval", alternate={"appStateHeartbeatInterval"})
+        public final long appStateHeartbeatInterval;
+
+        /**
+         * Change in battery level (from 0 to 1) at which an App State counts
+         * as changed; defaults to 0.05.
+         */
+        @SerializedName(value="app_state_battery_level_threshold",
+                alternate={"appStateBatteryLevelThreshold"})
+        public final double appStateBatteryLevelThreshold;
+
+        /**
+         * Distance in meters the device has to move before an App State
+         * counts as changed; defaults to 100.
+         */
+        @SerializedName(value="app_state_location_threshold", alternate={"appStateLocationThreshold"})
+        public final double appStateLocationThreshold;
+
+        /**
+         * Max age in milliseconds of a location fix that is reused instead of
+         * requesting a new one; defaults to 10 minutes.
+         */
+        @SerializedName(value="location_max_age", alternate={"locationMaxAge"})
+        public final long locationMaxAge;
+
+        /**
+         * Whether location requests may escalate to high accuracy when a
+         * balanced power request does not produce a fix; defaults to true.
+         */
+        @SerializedName(value="allow_high_accuracy_location", alternate={"allowHighAccuracyLocation"})
+        public final boolean allowHighAccuracyLocation;
+
+        /**
+         * Min time in milliseconds between two App State collections; calls
+         * to Sift.collect() in between skip App State. Defaults to 0.
+         */
+        @SerializedName(value="app_state_collect_interval", alternate={"appStateCollectInterval"})
+        public final long appStateCollectInterval;
+
+        /**
+         * Min time in milliseconds between two Device Properties collections;
+         * calls to Sift.collect() in between skip Device Properties. Defaults
+         * to 1 minute.
+         */
+        @SerializedName(value="device_properties_collect_interval",
+                alternate={"devicePropertiesCollectInterval"})
+        public final long devicePropertiesCollectInterval;
+
+        /**
+         * Max time in milliseconds that events of bulk queues, such as
+         * Device Properties, wait for an unmetered network or for the device
+         * to charge before they are sent anyway. Defaults to 6 hours.
+         */
+        @SerializedName(value="upload_max_deferral", alternate={"uploadMaxDeferral"})
+        public final long uploadMaxDeferral;
+
+        /**
+         * Compressed bytes the SDK may upload per day before bulk queues
+         * stop sending on metered networks; urgent events are always sent.
+         * Set it to 0 for no budget. Defaults to 1 MiB.
+         */
+        @SerializedName(value="daily_upload_byte_budget", alternate={"dailyUploadByteBudget"})
+        public final long dailyUploadByteBudget;
+
         Config() {
-            this(null, null, DEFAULT_SERVER_URL_FORMAT, false);
+            this(new Builder());
         }
 
-        private Config(String accountId,
-                       String beaconKey,
-                       String serverUrlFormat,
-                       boolean disallowLocationCollection) {
-            this.accountId = accountId;
-            this.beaconKey = beaconKey;
-            this.serverUrlFormat = serverUrlFormat;
-            this.disallowLocationCollection = disallowLocationCollection;
+        private Config(Builder builder) {
+            this.accountId = builder.accountId;
+            this.beaconKey = builder.beaconKey;
+            this.serverUrlFormat = builder.serverUrlFormat;
+            this.disallowLocationCollection = builder.disallowLocationCollection;
+            this.appStateHeartbeatInterval = builder.appStateHeartbeatInterval;
+            this.appStateBatteryLevelThreshold = builder.appStateBatteryLevelThreshold;
+            this.appStateLocationThreshold = builder.appStateLocationThreshold;
+            this.locationMaxAge = builder.locationMaxAge;
+            this.allowHighAccuracyLocation = builder.allowHighAccuracyLocation;
+            this.appStateCollectInterval = builder.appStateCollectInterval;
+            this.devicePropertiesCollectInterval = builder.devicePropertiesCollectInterval;
+            this.uploadMaxDeferral = builder.uploadMaxDeferral;
+            this.dailyUploadByteBudget = builder.dailyUploadByteBudget;
         }
 
         boolean isValid() {
@@ -259,7 +491,7 @@ public final class Sift {
             boolean valid = configurationErrors.size() == 0;
 
             if (!valid) {
-                Log.d(TAG, "The following configuration properties are missing or empty: " +
+                SiftLog.d(TAG, "The following configuration properties are missing or empty: " +
                         TextUtils.join(",", configurationErrors));
             }
 
@@ -275,7 +507,16 @@ public final class Sift {
             return Utils.equals(accountId, that.accountId) &&
                     Utils.equals(beaconKey, that.beaconKey) &&
                     Utils.equals(serverUrlFormat, that.serverUrlFormat) &&
-                    Utils.equals(disallowLocationCollection, that.disallowLocationCollection);
+                    Utils.equals(disallowLocationCollection, that.disallowLocationCollection) &&
+                    appStateHeartbeatInterval == that.appStateHeartbeatInterval &&
+                    appStateBatteryLevelThreshold == that.appStateBatteryLevelThreshold &&
+                    appStateLocationThreshold == that.appStateLocationThreshold &&
+                    locationMaxAge == that.locationMaxAge &&
+                    allowHighAccuracyLocation == that.allowHighAccuracyLocation &&
+                    appStateCollectInterval == that.appStateCollectInterval &&
+                    devicePropertiesCollectInterval == that.devicePropertiesCollectInterval &&
+                    uploadMaxDeferral == that.uploadMaxDeferral &&
+                    dailyUploadByteBudget == that.dailyUploadByteBudget;
         }
 
         public static class Builder {
@@ -289,6 +530,15 @@ public final class Sift {
                 beaconKey = config.beaconKey;
                 serverUrlFormat = config.serverUrlFormat;
                 disallowLocationCollection = config.disallowLocationCollection;
+                appStateHeartbeatInterval = config.appStateHeartbeatInterval;
+                appStateBatteryLevelThreshold = config.appStateBatteryLevelThreshold;
+                appStateLocationThreshold = config.appStateLocationThreshold;
+                locationMaxAge = config.locationMaxAge;
+                allowHighAccuracyLocation = config.allowHighAccuracyLocation;
+                appStateCollectInterval = config.appStateCollectInterval;
+                devicePropertiesCollectInterval = config.devicePropertiesCollectInterval;
+                uploadMaxDeferral = config.uploadMaxDeferral;
+                dailyUploadByteBudget = config.dailyUploadByteBudget;
             }
 
             private String accountId;
@@ -315,9 +565,65 @@ public final class Sift {
                 return this;
             }
 
+            private long appStateHeartbeatInterval = DEFAULT_APP_STATE_HEARTBEAT_INTERVAL;
+            public Builder withAppStateHeartbeatInterval(long appStateHeartbeatInterval) {
+                this.appStateHeartbeatInterval = appStateHeartbeatInterval;
+                return this;
+            }
+
+            private double appStateBatteryLevelThreshold =
+                    DEFAULT_APP_STATE_BATTERY_LEVEL_THRESHOLD;
+            public Builder withAppStateBatteryLevelThreshold(double appStateBatteryLevelThreshold) {
+                this.appStateBatteryLevelThreshold = appStateBatteryLevelThreshold;
+                return this;
+            }
+
+            private double appStateLocationThreshold = DEFAULT_APP_STATE_LOCATION_THRESHOLD;
+            public Builder withAppStateLocationThreshold(double appStateLocationThreshold) {
+                this.appStateLocationThreshold = appStateLocationThreshold;
+                return this;
+            }
+
+            private long locationMaxAge = DEFAULT_LOCATION_MAX_AGE;
+            public Builder withLocationMaxAge(long locationMaxAge) {
+                this.locationMaxAge = locationMaxAge;
+                return this;
+            }
+
+            private boolean allowHighAccuracyLocation = true;
+            public Builder withAllowHighAccuracyLocation(boolean allowHighAccuracyLocation) {
+                this.allowHighAccuracyLocation = allowHighAccuracyLocation;
+                return this;
+            }
+
+            private long appStateCollectInterval;
+            public Builder withAppStateCollectInterval(long appStateCollectInterval) {
+                this.appStateCollectInterval = appStateCollectInterval;
+                return this;
+            }
+
+            private long devicePropertiesCollectInterval =
+                    DEFAULT_DEVICE_PROPERTIES_COLLECT_INTERVAL;
+            public Builder withDevicePropertiesCollectInterval(
+                    long devicePropertiesCollectInterval) {
+                this.devicePropertiesCollectInterval = devicePropertiesCollectInterval;
+                return this;
+            }
+
+            private long uploadMaxDeferral = DEFAULT_UPLOAD_MAX_DEFERRAL;
+            public Builder withUploadMaxDeferral(long uploadMaxDeferral) {
+                this.uploadMaxDeferral = uploadMaxDeferral;
+                return this;
+            }
+
+            private long dailyUploadByteBudget = DEFAULT_DAILY_UPLOAD_BYTE_BUDGET;
+            public Builder withDailyUploadByteBudget(long dailyUploadByteBudget) {
+                this.dailyUploadByteBudget = dailyUploadByteBudget;
+                return this;
+            }
+
             public Config build() {
-                return new Config(accountId, beaconKey, serverUrlFormat,
-                        disallowLocationCollection);
+                return new Config(this);
             }
         }
     }
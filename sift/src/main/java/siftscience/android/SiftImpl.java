@@ -4,15 +4,23 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-import android.util.Log;
+import androidx.annotation.VisibleForTesting;
 
 import com.google.gson.JsonSyntaxException;
 import com.sift.api.representations.MobileEventJson;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Implementation for Sift instance.
@@ -23,30 +31,65 @@ class SiftImpl {
 
     static final String DEVICE_PROPERTIES_QUEUE_IDENTIFIER = "siftscience.android.device";
     static final String APP_STATE_QUEUE_IDENTIFIER = "siftscience.android.app";
+    static final String CUSTOM_EVENT_QUEUE_IDENTIFIER = "siftscience.android.custom";
+    // Identifiers with this prefix are reserved for the built-in queues
+    private static final String BUILT_IN_QUEUE_PREFIX = "siftscience.android.";
 
+    // Device Properties rarely change and are not needed right away
     private static final Queue.Config DEVICE_PROPERTIES_QUEUE_CONFIG = new Queue.Config.Builder()
             .withAcceptSameEventAfter(TimeUnit.HOURS.toMillis(1))
             .withUploadWhenMoreThan(0)
             .withUploadWhenOlderThan(TimeUnit.MINUTES.toMillis(1))
+            .withTier(Queue.Tier.BULK)
             .build();
 
+    static final long DEFAULT_STOP_TIMEOUT = TimeUnit.SECONDS.toMillis(3);
+
     private static final Queue.Config APP_STATE_QUEUE_CONFIG = new Queue.Config.Builder()
             .withUploadWhenMoreThan(8)
             .withUploadWhenOlderThan(TimeUnit.MINUTES.toMillis(1))
             .build();
 
+    // Custom events come in bursts of hundreds per session, so batch more
+    private static final Queue.Config CUSTOM_EVENT_QUEUE_CONFIG = new Queue.Config.Builder()
+            .withUploadWhenMoreThan(63)
+            .withUploadWhenOlderThan(TimeUnit.MINUTES.toMillis(1))
+            .build();
+
+    // Built-in queues always use the config of the running SDK version
+    private static final Map<String, Queue.Config> BUILT_IN_QUEUE_CONFIGS;
+    static {
+        Map<String, Queue.Config> configs = new HashMap<>();
+        configs.put(DEVICE_PROPERTIES_QUEUE_IDENTIFIER, DEVICE_PROPERTIES_QUEUE_CONFIG);
+        configs.put(APP_STATE_QUEUE_IDENTIFIER, APP_STATE_QUEUE_CONFIG);
+        configs.put(CUSTOM_EVENT_QUEUE_IDENTIFIER, CUSTOM_EVENT_QUEUE_CONFIG);
+        BUILT_IN_QUEUE_CONFIGS = Collections.unmodifiableMap(configs);
+    }
+
 
 
     //================================================================================
     // Instance members
     //================================================================================
 
-    private final SharedPreferences archives;
+    private final Context context;
+    private SharedPreferences archives;
     private final TaskManager taskManager;
-    private Sift.Config config;
-    private String userId;
+    private final Clock clock;
+    // Written on the ingest lane only; read from any thread without locking
+    private volatile Settings settings;
+    // The archived config, parsed at most once for reads before unarchiving
+    private Sift.Config archivedConfig;
     private final Map<String, Queue> queues;
     private final Uploader uploader;
+    private final SpillStore spillStore;
+    private final EventArchive eventArchive;
+    private final ConnectivitySource connectivity;
+    private final PowerSource power;
+    private final UploadPolicy uploadPolicy;
+    private volatile boolean stopped = false;
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private final Metrics metrics = new Metrics();
 
     private final Queue.UserIdProvider userIdProvider = new Queue.UserIdProvider() {
         @Override
@@ -55,10 +98,57 @@ class SiftImpl {
         }
     };
 
-    private final Queue.UploadRequester uploadRequester = new Queue.UploadRequester() {
+    /**
+     * Uploads the batches of one queue, marked with its identifier.
+     */
+    private class QueueUploadRequester implements Queue.UploadRequester {
+        private final String identifier;
+
+        QueueUploadRequester(String identifier) {
+            this.identifier = identifier;
+        }
+
         @Override
         public void requestUpload(List<MobileEventJson> events) {
-            SiftImpl.this.upload(events);
+            SiftImpl.this.upload(piggyback(new Batch(identifier, events)));
+        }
+
+        // Offline, queues keep their events instead of flushing batches
+        // that could not be sent; bulk queues wait for cheaper conditions
+        @Override
+        public boolean isDeferred(Queue.Tier tier, long waited) {
+            return uploadPolicy.isDeferred(tier, waited);
+        }
+    }
+
+    private final Uploader.BatchHolder batchHolder = new Uploader.BatchHolder() {
+        @Override
+        public void hold(Batch batch) {
+            if (stopped) {
+                droppedEvents.addAndGet(batch.size());
+                dropped(batch, EventListener.DropReason.STOPPED);
+                return;
+            }
+            taskManager.submit(new HoldTask(batch));
+        }
+    };
+
+    private final ConnectivitySource.Listener connectivityListener =
+            new ConnectivitySource.Listener() {
+                @Override
+                public void onConnectivityChanged(boolean connected) {
+                    if (connected) {
+                        resumeUploads();
+                    }
+                }
+            };
+
+    private final PowerSource.Listener powerListener = new PowerSource.Listener() {
+        @Override
+        public void onChargingChanged(boolean charging) {
+            if (charging) {
+                resumeUploads();
+            }
         }
     };
 
@@ -69,6 +159,36 @@ class SiftImpl {
         }
     };
 
+    /**
+     * Immutable config and user ID. Changes publish a new copy, so readers
+     * always see a consistent pair.
+     */
+    private static final class Settings {
+        final Sift.Config config;
+        final String userId;
+
+        Settings(Sift.Config config, String userId) {
+            this.config = config;
+            this.userId = userId;
+        }
+
+        Settings withConfig(Sift.Config config) {
+            return new Settings(config, this.userId);
+        }
+
+        Settings withUserId(String userId) {
+            return new Settings(this.config, userId);
+        }
+    }
+
+    // Keys of the tasks that coalesce with a pending task of the same kind
+    private enum TaskKey {
+        ARCHIVE,
+        COMMIT_ARCHIVE,
+        RESUME_UPLOADS,
+        SPILL
+    }
+
     private enum ArchiveKey {
         CONFIG("config"),
         USER_ID("user_id"),
@@ -98,10 +218,11 @@ class SiftImpl {
     }
 
     String archiveConfig() {
-        return Sift.GSON.toJson(config);
+        return Sift.GSON.toJson(settings.config);
     }
 
     Sift.Config unarchiveConfig(String archive) {
+        Sift.Config config = settings.config;
         if (archive == null) {
             return config == null ? new Sift.Config() : config;
         }
@@ -109,7 +230,7 @@ class SiftImpl {
         try {
             return Sift.GSON.fromJson(archive, Sift.Config.class);
         } catch (JsonSyntaxException e) {
-            Log.d(TAG, "Encountered exception in Sift.Config unarchive", e);
+            SiftLog.d(TAG, "Encountered exception in Sift.Config unarchive", e);
             return config == null ? new Sift.Config() : config;
         }
     }
@@ -122,27 +243,84 @@ class SiftImpl {
 
     SiftImpl(Context context, Sift.Config conf, String unboundUserId, boolean hasUnboundUserId,
              TaskManager taskManager) {
-        this.archives = context.getSharedPreferences(ARCHIVE_NAME, Context.MODE_PRIVATE);
+        this(context, conf, unboundUserId, hasUnboundUserId, taskManager, Clock.SYSTEM);
+    }
+
+    SiftImpl(Context context, Sift.Config conf, String unboundUserId, boolean hasUnboundUserId,
+             TaskManager taskManager, Clock clock) {
+        this(context, conf, unboundUserId, hasUnboundUserId, taskManager, clock,
+                ConnectivitySource.ALWAYS_CONNECTED);
+    }
+
+    SiftImpl(Context context, Sift.Config conf, String unboundUserId, boolean hasUnboundUserId,
+             TaskManager taskManager, Clock clock, ConnectivitySource connectivity) {
+        this(context, conf, unboundUserId, hasUnboundUserId, taskManager, clock, connectivity,
+                PowerSource.UNKNOWN);
+    }
+
+    SiftImpl(Context context, Sift.Config conf, String unboundUserId, boolean hasUnboundUserId,
+             TaskManager taskManager, Clock clock, ConnectivitySource connectivity,
+             PowerSource power) {
+        this(context, conf, unboundUserId, hasUnboundUserId, taskManager, clock, connectivity,
+                power, new EventArchive(context));
+    }
+
+    SiftImpl(Context context, Sift.Config conf, String unboundUserId, boolean hasUnboundUserId,
+             TaskManager taskManager, Clock clock, ConnectivitySource connectivity,
+             PowerSource power, EventArchive eventArchive) {
+        // Opening the archives reads them from disk; it is left to the ingest lane
+        this.context = context;
         this.taskManager = taskManager;
-        this.config = conf;
+        this.clock = clock;
+        this.settings = new Settings(conf, hasUnboundUserId ? unboundUserId : null);
         if (hasUnboundUserId) {
-            this.userId = unboundUserId;
-            Log.d(TAG, String.format("Using unbound User ID: %s", userId));
+            SiftLog.d(TAG, "Using unbound User ID: %s", unboundUserId);
         }
-        this.queues = new HashMap<>();
-        this.uploader = new Uploader(taskManager, configProvider);
+        // Written on the ingest lane, read from any thread
+        this.queues = new ConcurrentHashMap<>();
+        this.connectivity = connectivity;
+        this.power = power;
+        this.uploadPolicy = new UploadPolicy(connectivity, power, configProvider, clock, metrics);
+        this.uploader = new Uploader(taskManager, configProvider, clock, metrics,
+                connectivity, batchHolder);
+        this.spillStore = new SpillStore(context);
+        this.eventArchive = eventArchive;
         this.taskManager.submit(new UnarchiveTask(hasUnboundUserId));
+        connectivity.setListener(connectivityListener);
+        power.setListener(powerListener);
+    }
+
+    private synchronized SharedPreferences getArchives() {
+        if (archives == null) {
+            archives = context.getSharedPreferences(ARCHIVE_NAME, Context.MODE_PRIVATE);
+        }
+        return archives;
+    }
+
+    /**
+     * @return the clock that timestamps and batches events
+     */
+    Clock getClock() {
+        return clock;
     }
 
     /**
      * @return the configuration for the Sift instance
      */
-    synchronized Sift.Config getConfig() {
-        if (config != null) {
-            return config;
-        } else {
-            return unarchiveConfig(archives.getString(ArchiveKey.CONFIG.key, null));
+    Sift.Config getConfig() {
+        Sift.Config config = settings.config;
+        return config != null ? config : getArchivedConfig();
+    }
+
+    /**
+     * @return the archived config, parsed on first use
+     */
+    private synchronized Sift.Config getArchivedConfig() {
+        if (archivedConfig == null) {
+            archivedConfig = unarchiveConfig(
+                    getArchives().getString(ArchiveKey.CONFIG.key, null));
         }
+        return archivedConfig;
     }
 
     /**
@@ -157,8 +335,8 @@ class SiftImpl {
     /**
      * @return the user ID for the Sift instance
      */
-    synchronized String getUserId() {
-        return this.userId;
+    String getUserId() {
+        return settings.userId;
     }
 
     /**
@@ -186,51 +364,312 @@ class SiftImpl {
      * Prefer to use the static method Sift.pause() instead.
      */
     void save() {
-        this.taskManager.submit(new ArchiveTask());
+        if (stopped) {
+            return;
+        }
+        this.taskManager.submit(TaskManager.Lane.INGEST, TaskKey.ARCHIVE, new ArchiveTask());
+    }
+
+    /**
+     * Moves the queued events to disk when the system is low on memory.
+     * They are read back one queue at a time, as each queue is uploaded.
+     * Calls made while one is pending coalesce into it.
+     */
+    void spill() {
+        if (stopped) {
+            return;
+        }
+        this.taskManager.submit(TaskManager.Lane.INGEST, TaskKey.SPILL, new SpillTask());
     }
 
     void stop() {
+        stop(DEFAULT_STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the instance within a deadline.
+     *
+     * New input is rejected. Pending appends are drained, then all queued
+     * events and the batches of scheduled upload retries get one upload
+     * attempt. Whatever was not uploaded is put back into the queues and
+     * persisted. Events that could not be persisted before the deadline are
+     * counted as dropped.
+     *
+     * @param timeout the deadline for the whole shutdown
+     * @param unit the unit of the timeout
+     */
+    void stop(long timeout, TimeUnit unit) {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        connectivity.setListener(null);
+        power.setListener(null);
+
+        long start = System.nanoTime();
+        long deadline = start + unit.toNanos(timeout);
+        // Keep a share of the budget for writing to disk
+        long uploadDeadline = deadline - unit.toNanos(timeout) / 4;
+
+        // Appends submitted before stop() run before the drain task
+        DrainTask drainTask = new DrainTask();
+        Future<?> drain = taskManager.schedule(TaskManager.Lane.INGEST,
+                drainTask, 0, TimeUnit.MILLISECONDS);
+        if (!await(drain, uploadDeadline)) {
+            SiftLog.d(TAG, "Timed out draining pending tasks");
+            drain.cancel(false);
+        }
+        // A drain that is still running leaves the rest of the queues alone
+        List<Batch> batches = drainTask.close();
+        batches.addAll(uploader.cancelPendingUploads());
+
+        FinalUploadTask finalUpload = new FinalUploadTask(batches, uploadDeadline);
+        await(taskManager.schedule(TaskManager.Lane.NETWORK,
+                finalUpload, 0, TimeUnit.MILLISECONDS), uploadDeadline);
+        List<Batch> remaining = finalUpload.abort();
+
+        int remainingEvents = 0;
+        for (List<MobileEventJson> batch : remaining) {
+            remainingEvents += batch.size();
+        }
+
+        Snapshot snapshot = new Snapshot();
+        boolean persisted = await(taskManager.schedule(TaskManager.Lane.INGEST,
+                new RequeueTask(remaining, snapshot), 0, TimeUnit.MILLISECONDS), deadline) &&
+                await(taskManager.schedule(TaskManager.Lane.PERSIST,
+                        new CommitArchiveTask(snapshot, true), 0, TimeUnit.MILLISECONDS),
+                        deadline);
+
+        if (!persisted) {
+            droppedEvents.addAndGet(remainingEvents);
+            for (List<MobileEventJson> batch : remaining) {
+                dropped(batch, EventListener.DropReason.STOPPED);
+            }
+        }
+
+        SiftLog.d(TAG, "Stopped in %d ms: %d events kept, %d dropped",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                persisted ? remainingEvents : 0, droppedEvents.get());
+
         this.taskManager.shutdown();
     }
 
+    /**
+     * @return the number of events that were dropped because the instance
+     * was stopping or stopped
+     */
+    long getDroppedEventCount() {
+        return droppedEvents.get();
+    }
+
+    /**
+     * @return a snapshot of the counters, histograms and queue depths
+     */
+    MetricsSnapshot getMetrics() {
+        Map<String, Integer> depths = new HashMap<>();
+        for (Map.Entry<String, Queue> entry : queues.entrySet()) {
+            depths.put(entry.getKey(), entry.getValue().getDepth());
+        }
+        return metrics.snapshot(depths, droppedEvents.get());
+    }
+
+    /**
+     * @return the registry the collectors record their counters in
+     */
+    Metrics getMetricsRegistry() {
+        return metrics;
+    }
+
+    /**
+     * Sets the listener of event lifecycle callbacks, or null to remove it.
+     */
+    void setEventListener(@Nullable EventListener listener) {
+        metrics.eventListener = listener;
+    }
+
+    private void dropped(List<MobileEventJson> events, EventListener.DropReason reason) {
+        EventListener listener = metrics.eventListener;
+        if (listener != null && !events.isEmpty()) {
+            listener.onDropped(EventListener.NO_BATCH, events, reason, clock.elapsedRealtime());
+        }
+    }
+
+    /**
+     * Accounts for the events of a task that its lane rejected.
+     */
+    private void rejected(List<MobileEventJson> events) {
+        SiftLog.d(TAG, "Task rejected, dropping %d events", events.size());
+        metrics.eventsRejected.add(events.size());
+        dropped(events, EventListener.DropReason.TASK_REJECTED);
+    }
+
     void appendAppStateEvent(MobileEventJson event) {
-        this.taskManager.submit(new AppendTask(
-                APP_STATE_QUEUE_IDENTIFIER,
-                event
-        ));
+        append(APP_STATE_QUEUE_IDENTIFIER, event);
     }
 
     void appendDevicePropertiesEvent(MobileEventJson event) {
-        this.taskManager.submit(new AppendTask(
-                DEVICE_PROPERTIES_QUEUE_IDENTIFIER,
-                event
-        ));
+        append(DEVICE_PROPERTIES_QUEUE_IDENTIFIER, event);
+    }
+
+    @VisibleForTesting
+    void append(String queueIdentifier, MobileEventJson event) {
+        if (stopped) {
+            droppedEvents.incrementAndGet();
+            dropped(Collections.singletonList(event), EventListener.DropReason.STOPPED);
+            return;
+        }
+        EventListener listener = metrics.eventListener;
+        if (listener != null) {
+            listener.onCollected(queueIdentifier, event, clock.elapsedRealtime());
+        }
+        this.taskManager.submit(new AppendTask(queueIdentifier, event));
+    }
+
+    /**
+     * Appends a custom event. The event is converted on the ingest lane.
+     */
+    void track(Event event) {
+        track(CUSTOM_EVENT_QUEUE_IDENTIFIER, event);
+    }
+
+    void track(String queueIdentifier, Event event) {
+        if (stopped) {
+            droppedEvents.incrementAndGet();
+            if (metrics.eventListener != null) {
+                dropped(Collections.singletonList(event.toMobileEventJson(clock.now())),
+                        EventListener.DropReason.STOPPED);
+            }
+            return;
+        }
+        // The elapsed realtime is only needed to report the event as collected
+        long elapsed = metrics.eventListener != null ? clock.elapsedRealtime() : -1;
+        this.taskManager.submit(new TrackTask(queueIdentifier, event, clock.now(), elapsed));
+    }
+
+    /**
+     * Registers a queue for custom events. The queue and its config are
+     * archived with the rest of the state and restored on the next start;
+     * registering it again replaces its config.
+     *
+     * @throws IllegalArgumentException if the identifier is reserved for a
+     * built-in queue
+     */
+    void registerQueue(@NonNull String identifier, @NonNull Queue.Config config) {
+        if (identifier.startsWith(BUILT_IN_QUEUE_PREFIX)) {
+            throw new IllegalArgumentException(
+                    String.format("Reserved queue identifier: %s", identifier));
+        }
+        if (stopped) {
+            return;
+        }
+        this.taskManager.submit(new RegisterQueueTask(identifier, config));
     }
 
     void forceUploadAppStateEvent() {
-        this.taskManager.submit(new ForceUploadTask(
-                APP_STATE_QUEUE_IDENTIFIER
-        ));
+        if (stopped) {
+            return;
+        }
+        this.taskManager.submit(TaskManager.Lane.INGEST,
+                getForceUploadKey(APP_STATE_QUEUE_IDENTIFIER),
+                new ForceUploadTask(APP_STATE_QUEUE_IDENTIFIER));
     }
 
     void forceUploadDevicePropertiesEvent() {
-        this.taskManager.submit(new ForceUploadTask(
-                DEVICE_PROPERTIES_QUEUE_IDENTIFIER
-        ));
+        if (stopped) {
+            return;
+        }
+        this.taskManager.submit(TaskManager.Lane.INGEST,
+                getForceUploadKey(DEVICE_PROPERTIES_QUEUE_IDENTIFIER),
+                new ForceUploadTask(DEVICE_PROPERTIES_QUEUE_IDENTIFIER));
+    }
+
+    /**
+     * Uploads the custom event queue and every registered custom queue.
+     */
+    void forceUploadCustomEvents() {
+        if (stopped) {
+            return;
+        }
+        for (String identifier : queues.keySet()) {
+            if (identifier.equals(CUSTOM_EVENT_QUEUE_IDENTIFIER) ||
+                    !identifier.startsWith(BUILT_IN_QUEUE_PREFIX)) {
+                this.taskManager.submit(TaskManager.Lane.INGEST,
+                        getForceUploadKey(identifier), new ForceUploadTask(identifier));
+            }
+        }
+    }
+
+    private static String getForceUploadKey(String queueIdentifier) {
+        return String.format("force_upload/%s", queueIdentifier);
     }
 
-    void upload(List<MobileEventJson> events) {
+
+    /**
+     * Waits for a task until the deadline.
+     *
+     * @return whether the task completed
+     */
+    private static boolean await(Future<?> future, long deadlineNanos) {
+        try {
+            future.get(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            SiftLog.e(TAG, "Encountered exception in shutdown task", e);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    void upload(Batch events) {
         this.uploader.upload(events);
     }
 
+    /**
+     * Flushes a queue for the final upload on shutdown, on the ingest lane.
+     */
+    List<MobileEventJson> flushForStop(Queue queue) {
+        return queue.flush();
+    }
+
+    /**
+     * Adds the queues that are due but deferred to a batch that is sent
+     * anyway, so that they do not wake the radio on their own later.
+     */
+    private Batch piggyback(Batch batch) {
+        if (!uploadPolicy.mayPiggyback()) {
+            return batch;
+        }
+        for (Map.Entry<String, Queue> entry : queues.entrySet()) {
+            batch.add(entry.getKey(), entry.getValue().flushIfReady(true));
+        }
+        return batch;
+    }
+
+    /**
+     * Uploads the queues that became due while offline or deferred, in a
+     * single request. Calls made while one is pending coalesce into it.
+     */
+    void resumeUploads() {
+        if (stopped) {
+            return;
+        }
+        this.taskManager.submit(TaskManager.Lane.INGEST, TaskKey.RESUME_UPLOADS,
+                new ResumeUploadTask());
+    }
+
     Queue createQueue(@NonNull String identifier, Queue.Config config) {
         if (getQueue(identifier) != null) {
             throw new IllegalStateException(String.format("Queue exists: %s", identifier));
         }
 
-        Queue queue = new Queue(null, userIdProvider, uploadRequester, config);
+        Queue queue = new Queue(identifier, null, userIdProvider,
+                new QueueUploadRequester(identifier), config, clock, metrics, spillStore);
         queues.put(identifier, queue);
-        Log.i(TAG, String.format("Created new %s queue", identifier));
+        SiftLog.i(TAG, "Created new %s queue", identifier);
         return queue;
     }
 
@@ -246,25 +685,316 @@ class SiftImpl {
     //================================================================================
 
     /**
-     * Saves all of the Sift instance state to disk.
+     * Snapshots all of the Sift instance state on the ingest lane and hands
+     * it to the persist lane to be written to disk.
      */
     private class ArchiveTask implements Runnable {
         @Override
         public void run() {
-            SharedPreferences.Editor editor = archives.edit();
+            Snapshot snapshot = new Snapshot();
+            snapshot(snapshot);
+            taskManager.submit(TaskManager.Lane.PERSIST, TaskKey.COMMIT_ARCHIVE,
+                    new CommitArchiveTask(snapshot, false));
+        }
+    }
+
+    /**
+     * The state to write to disk: the config, user ID and queue states go to
+     * the preferences, the queued events to the event archive.
+     */
+    private static class Snapshot {
+        final Map<String, String> preferences = new HashMap<>();
+        // Null if no queue holds events
+        byte[] events;
+    }
+
+    private void snapshot(Snapshot snapshot) {
+        snapshot.preferences.put(ArchiveKey.CONFIG.key, archiveConfig());
+        snapshot.preferences.put(ArchiveKey.USER_ID.key, getUserId());
+        Map<String, List<MobileEventJson>> events = new HashMap<>();
+        for (Map.Entry<String, Queue> entry : queues.entrySet()) {
+            Queue queue = entry.getValue();
+            snapshot.preferences.put(ArchiveKey.getKeyForQueueIdentifier(entry.getKey()),
+                    queue.archiveState());
+            if (!queue.getEvents().isEmpty()) {
+                events.put(entry.getKey(), queue.getEvents());
+            }
+        }
+        snapshot.events = events.isEmpty() ? null : EventCodec.encode(events);
+    }
+
+    /**
+     * Moves the events of all queues to disk, then archives the emptied
+     * queues so that a restart doesn't restore the spilled events from the
+     * event archive as well.
+     */
+    private class SpillTask implements Runnable {
+        @Override
+        public void run() {
+            int spilled = 0;
+            for (Queue queue : queues.values()) {
+                spilled += queue.spill();
+            }
+            if (spilled > 0) {
+                SiftLog.d(TAG, "Spilled %d events to disk", spilled);
+                new ArchiveTask().run();
+            }
+        }
+    }
+
+    /**
+     * Writes a state snapshot to disk.
+     */
+    private class CommitArchiveTask implements Runnable {
+        private final Snapshot snapshot;
+        private final boolean synchronous;
+
+        CommitArchiveTask(Snapshot snapshot, boolean synchronous) {
+            this.snapshot = snapshot;
+            this.synchronous = synchronous;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            long chars = 0;
+
+            // The events go first, so that the queue states never lack them.
+            // If they cannot be written, the previous queue states are kept
+            // with the previous events, which they describe.
+            try {
+                eventArchive.write(snapshot.events);
+                metrics.archiveEventBytes.add(
+                        snapshot.events != null ? snapshot.events.length : 0);
+            } catch (IOException e) {
+                SiftLog.e(TAG, "Encountered exception archiving events", e);
+                return;
+            }
+
+            SharedPreferences.Editor editor = getArchives().edit();
             editor.clear();
             try {
-                editor.putString(ArchiveKey.CONFIG.key, archiveConfig());
-                Log.d(TAG, String.format("Archived Sift.Config: %s", archiveConfig()));
-                editor.putString(ArchiveKey.USER_ID.key, getUserId());
-                Log.d(TAG, String.format("Archived User ID: %s", getUserId()));
-                for (Map.Entry<String, Queue> entry : queues.entrySet()) {
-                    String identifier = ArchiveKey.getKeyForQueueIdentifier(entry.getKey());
-                    Log.d(TAG, String.format("Archived %s Queue", identifier));
-                    editor.putString(identifier, entry.getValue().archive());
+                for (Map.Entry<String, String> entry : snapshot.preferences.entrySet()) {
+                    editor.putString(entry.getKey(), entry.getValue());
+                    chars += entry.getValue() != null ? entry.getValue().length() : 0;
+                    SiftLog.d(TAG, "Archived %s", entry.getKey());
                 }
             } finally {
-                editor.apply();
+                if (synchronous) {
+                    editor.commit();
+                } else {
+                    editor.apply();
+                }
+                metrics.archives.increment();
+                metrics.archiveChars.add(chars);
+                metrics.archiveLatency.record(
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        }
+    }
+
+    /**
+     * Flushes all queues for the final upload on shutdown. A queue flushed
+     * after stop() took the batches is put back.
+     */
+    private class DrainTask implements Runnable {
+        // Guarded by this
+        private final List<Batch> batches = new ArrayList<>();
+        private boolean closed = false;
+
+        @Override
+        public void run() {
+            for (Map.Entry<String, Queue> entry : queues.entrySet()) {
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                }
+                Queue queue = entry.getValue();
+                List<MobileEventJson> batch = flushForStop(queue);
+                if (batch.isEmpty()) {
+                    continue;
+                }
+                synchronized (this) {
+                    if (!closed) {
+                        metrics.flushesStop.increment();
+                        batches.add(new Batch(entry.getKey(), batch));
+                        continue;
+                    }
+                }
+                // Too late for the final upload; the queue keeps its events
+                // and is persisted with the rest of the state
+                queue.requeue(batch);
+                return;
+            }
+        }
+
+        /**
+         * Hands over the batches drained so far. Queues that are not
+         * drained yet keep their events.
+         */
+        synchronized List<Batch> close() {
+            closed = true;
+            return new ArrayList<>(batches);
+        }
+    }
+
+    /**
+     * Makes one upload attempt per batch until the deadline.
+     */
+    private class FinalUploadTask implements Runnable {
+        private final List<Batch> remaining;
+        private final List<Batch> failed = new ArrayList<>();
+        private final long deadline;
+        private boolean aborted = false;
+
+        FinalUploadTask(List<Batch> batches, long deadline) {
+            this.remaining = new ArrayList<>(batches);
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Batch batch;
+                synchronized (this) {
+                    if (aborted || remaining.isEmpty()) {
+                        return;
+                    }
+                    batch = remaining.get(0);
+                }
+
+                long timeout = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                // Offline, the batches are persisted without trying
+                if (timeout <= 0 || !connectivity.isConnected()) {
+                    return;
+                }
+
+                boolean uploaded = uploader.uploadNow(batch, (int) timeout);
+                synchronized (this) {
+                    if (aborted) {
+                        return;
+                    }
+                    remaining.remove(0);
+                    if (!uploaded) {
+                        failed.add(batch);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Stops after the current attempt.
+         *
+         * @return the batches that were not uploaded
+         */
+        synchronized List<Batch> abort() {
+            aborted = true;
+            List<Batch> batches = new ArrayList<>(failed);
+            batches.addAll(remaining);
+            return batches;
+        }
+    }
+
+    /**
+     * Puts events that were not uploaded back into their queues and
+     * snapshots the state for the final write.
+     */
+    private class RequeueTask implements Runnable {
+        private final List<Batch> batches;
+        private final Snapshot snapshot;
+
+        RequeueTask(List<Batch> batches, Snapshot snapshot) {
+            this.batches = batches;
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public void run() {
+            requeue(batches);
+            snapshot(snapshot);
+        }
+    }
+
+    /**
+     * Puts back a batch that was not sent because the device is offline.
+     */
+    private class HoldTask implements TaskManager.Rejectable {
+        private final Batch batch;
+
+        HoldTask(Batch batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void run() {
+            requeue(Collections.singletonList(batch));
+        }
+
+        @Override
+        public void rejected() {
+            SiftImpl.this.rejected(batch);
+        }
+    }
+
+    /**
+     * Flushes the queues that are due and no longer deferred, once back
+     * online or charging. The backlog of each queue is cut at its batch
+     * size, and the first cut of every queue shares the first batch, so a
+     * short backlog still goes in a single request.
+     */
+    private class ResumeUploadTask implements Runnable {
+        @Override
+        public void run() {
+            if (!connectivity.isConnected()) {
+                return;
+            }
+            List<Batch> batches = new ArrayList<>();
+            for (Map.Entry<String, Queue> entry : queues.entrySet()) {
+                Queue queue = entry.getValue();
+                List<MobileEventJson> events = queue.flushIfReady(false);
+                int size = queue.getBatchSize();
+                int start = 0;
+                for (int i = 0; start < events.size(); i++) {
+                    if (i == batches.size()) {
+                        batches.add(new Batch());
+                    }
+                    int end = start + Math.min(size, events.size() - start);
+                    batches.get(i).add(entry.getKey(), events.subList(start, end));
+                    start = end;
+                }
+            }
+            for (Batch batch : batches) {
+                SiftLog.d(TAG, "Uploading %d held events", batch.size());
+                upload(batch);
+            }
+        }
+    }
+
+    /**
+     * Puts the events of batches back into the queues they were flushed
+     * from, ahead of the events queued since.
+     */
+    private void requeue(List<Batch> batches) {
+        Map<String, List<MobileEventJson>> events = new HashMap<>();
+        for (Batch batch : batches) {
+            for (Map.Entry<String, List<MobileEventJson>> entry : batch.byQueue().entrySet()) {
+                List<MobileEventJson> list = events.get(entry.getKey());
+                if (list == null) {
+                    events.put(entry.getKey(), entry.getValue());
+                } else {
+                    list.addAll(entry.getValue());
+                }
+            }
+        }
+
+        for (Map.Entry<String, List<MobileEventJson>> entry : events.entrySet()) {
+            Queue queue = getQueue(entry.getKey());
+            if (queue != null) {
+                queue.requeue(entry.getValue());
+            } else {
+                droppedEvents.addAndGet(entry.getValue().size());
+                dropped(entry.getValue(), EventListener.DropReason.UNKNOWN_QUEUE);
             }
         }
     }
@@ -281,55 +1011,61 @@ class SiftImpl {
 
         @Override
         public void run() {
-            String archive;
+            SharedPreferences archives = getArchives();
+            Settings restored = settings;
 
             // Unarchive Sift config if we don't have one
-            if (config == null) {
-                archive = archives.getString(ArchiveKey.CONFIG.key, null);
-                config = unarchiveConfig(archive);
-                Log.d(TAG, String.format("Unarchived Sift.Config: %s", archive));
+            if (restored.config == null) {
+                restored = restored.withConfig(getArchivedConfig());
+                SiftLog.d(TAG, "Unarchived Sift.Config: %s",
+                        archives.getString(ArchiveKey.CONFIG.key, null));
             }
 
             // Unarchive User ID if we didn't have an unbound one from the Sift class
             if (!this.hasUnboundUserId) {
-                userId = archives.getString(ArchiveKey.USER_ID.key, null);
-                Log.d(TAG, String.format("Unarchived User ID: %s", userId));
+                restored = restored.withUserId(archives.getString(ArchiveKey.USER_ID.key, null));
+                SiftLog.d(TAG, "Unarchived User ID: %s", restored.userId);
             }
+            settings = restored;
 
-            // Unarchive Queues
+            // Unarchive Queues; custom queues restore with their archived config
             for (Map.Entry<String, ?> entry : archives.getAll().entrySet()) {
                 String identifier = ArchiveKey.getQueueIdentifier(entry.getKey());
-                archive = (String) entry.getValue();
-
-                if (identifier != null) {
-                    if (identifier.equals(DEVICE_PROPERTIES_QUEUE_IDENTIFIER)) {
-                        Queue queue = new Queue(archive, userIdProvider, uploadRequester,
-                                DEVICE_PROPERTIES_QUEUE_CONFIG);
-                        Log.d(TAG, "Unarchived Device Properties Queue");
-                        queues.put(identifier, queue);
-                    }
-
-                    if (identifier.equals(APP_STATE_QUEUE_IDENTIFIER)) {
-                        Queue queue = new Queue(archive, userIdProvider, uploadRequester,
-                                APP_STATE_QUEUE_CONFIG);
-                        Log.d(TAG, "Unarchived App State Queue");
-                        queues.put(identifier, queue);
-                    }
+                if (identifier == null || !(entry.getValue() instanceof String)) {
+                    continue;
                 }
+
+                Queue queue = new Queue(identifier, (String) entry.getValue(), userIdProvider,
+                        new QueueUploadRequester(identifier),
+                        BUILT_IN_QUEUE_CONFIGS.get(identifier), clock, metrics, spillStore);
+                queues.put(identifier, queue);
+                SiftLog.d(TAG, "Unarchived %s queue", identifier);
             }
 
-            if (!queues.containsKey(DEVICE_PROPERTIES_QUEUE_IDENTIFIER)) {
-                createQueue(DEVICE_PROPERTIES_QUEUE_IDENTIFIER, DEVICE_PROPERTIES_QUEUE_CONFIG);
+            for (Map.Entry<String, Queue.Config> entry : BUILT_IN_QUEUE_CONFIGS.entrySet()) {
+                if (!queues.containsKey(entry.getKey())) {
+                    createQueue(entry.getKey(), entry.getValue());
+                }
             }
 
-            if (!queues.containsKey(APP_STATE_QUEUE_IDENTIFIER)) {
-                createQueue(APP_STATE_QUEUE_IDENTIFIER, APP_STATE_QUEUE_CONFIG);
+            // Queued events are archived apart from the queue states
+            for (Map.Entry<String, List<MobileEventJson>> entry :
+                    eventArchive.read().entrySet()) {
+                Queue queue = queues.get(entry.getKey());
+                if (queue != null) {
+                    queue.requeue(entry.getValue());
+                    SiftLog.d(TAG, "Unarchived %d %s events",
+                            entry.getValue().size(), entry.getKey());
+                } else {
+                    droppedEvents.addAndGet(entry.getValue().size());
+                    dropped(entry.getValue(), EventListener.DropReason.UNKNOWN_QUEUE);
+                }
             }
         }
     }
 
     private class SetUserIdTask implements Runnable {
-        private String userId;
+        private final String userId;
 
         SetUserIdTask(String userId) {
             this.userId = userId;
@@ -337,14 +1073,12 @@ class SiftImpl {
 
         @Override
         public void run() {
-            synchronized (this) {
-                SiftImpl.this.userId = this.userId;
-            }
+            settings = settings.withUserId(this.userId);
         }
     }
 
     private class SetConfigTask implements Runnable {
-        private Sift.Config config;
+        private final Sift.Config config;
 
         SetConfigTask(Sift.Config config) {
             this.config = config;
@@ -352,16 +1086,14 @@ class SiftImpl {
 
         @Override
         public void run() {
-            synchronized (this) {
-                SiftImpl.this.config = this.config;
-            }
+            settings = settings.withConfig(this.config);
         }
     }
 
     /**
      * Appends an event to the specified queue.
      */
-    private class AppendTask implements Runnable {
+    private class AppendTask implements TaskManager.Rejectable {
         private String queueIdentifier;
         private MobileEventJson event;
 
@@ -375,6 +1107,82 @@ class SiftImpl {
             Queue queue = getQueue(this.queueIdentifier);
             if (queue != null) {
                 queue.append(this.event);
+            } else {
+                droppedEvents.incrementAndGet();
+                dropped(Collections.singletonList(this.event),
+                        EventListener.DropReason.UNKNOWN_QUEUE);
+            }
+        }
+
+        @Override
+        public void rejected() {
+            SiftImpl.this.rejected(Collections.singletonList(this.event));
+        }
+    }
+
+    /**
+     * Appends a custom event to the specified queue.
+     */
+    private class TrackTask implements TaskManager.Rejectable {
+        private final String queueIdentifier;
+        private final Event event;
+        private final long time;
+        private final long elapsed;
+
+        TrackTask(String queueIdentifier, Event event, long time, long elapsed) {
+            this.queueIdentifier = queueIdentifier;
+            this.event = event;
+            this.time = time;
+            this.elapsed = elapsed;
+        }
+
+        @Override
+        public void run() {
+            MobileEventJson mobileEvent = this.event.toMobileEventJson(this.time);
+            EventListener listener = metrics.eventListener;
+            if (listener != null && this.elapsed >= 0) {
+                listener.onCollected(this.queueIdentifier, mobileEvent, this.elapsed);
+            }
+
+            Queue queue = getQueue(this.queueIdentifier);
+            if (queue != null) {
+                queue.append(mobileEvent);
+            } else {
+                SiftLog.d(TAG, "Dropped event for unknown queue %s",
+                        this.queueIdentifier);
+                droppedEvents.incrementAndGet();
+                dropped(Collections.singletonList(mobileEvent),
+                        EventListener.DropReason.UNKNOWN_QUEUE);
+            }
+        }
+
+        @Override
+        public void rejected() {
+            SiftImpl.this.rejected(Collections.singletonList(
+                    this.event.toMobileEventJson(this.time)));
+        }
+    }
+
+    /**
+     * Creates a custom queue, or updates its config if it exists.
+     */
+    private class RegisterQueueTask implements Runnable {
+        private final String identifier;
+        private final Queue.Config config;
+
+        RegisterQueueTask(String identifier, Queue.Config config) {
+            this.identifier = identifier;
+            this.config = config;
+        }
+
+        @Override
+        public void run() {
+            Queue queue = getQueue(this.identifier);
+            if (queue == null) {
+                createQueue(this.identifier, this.config);
+            } else if (!this.config.equals(queue.getConfig())) {
+                queue.setConfig(this.config);
+                SiftLog.d(TAG, "Updated config of %s queue", this.identifier);
             }
         }
     }
@@ -0,0 +1,107 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import android.util.Log;
+
+/**
+ * Level-gated logging for the SDK.
+ *
+ * Messages below the level set with Sift.setLogLevel() are discarded before
+ * anything is formatted. Format arguments are passed separately, with long
+ * overloads for numbers, so a disabled call costs a single comparison and
+ * allocates nothing as long as its arguments already exist.
+ */
+final class SiftLog {
+    private static volatile int level = Log.INFO;
+
+    private SiftLog() {
+    }
+
+    /**
+     * @param priority the lowest android.util.Log priority to log
+     */
+    static void setLevel(int priority) {
+        level = priority;
+    }
+
+    static int getLevel() {
+        return level;
+    }
+
+    static boolean isLoggable(int priority) {
+        return priority >= level;
+    }
+
+    static void d(String tag, String msg) {
+        if (Log.DEBUG >= level) {
+            Log.d(tag, msg);
+        }
+    }
+
+    static void d(String tag, String msg, Throwable tr) {
+        if (Log.DEBUG >= level) {
+            Log.d(tag, msg, tr);
+        }
+    }
+
+    static void d(String tag, String format, Object arg) {
+        if (Log.DEBUG >= level) {
+            Log.d(tag, String.format(format, arg));
+        }
+    }
+
+    static void d(String tag, String format, long arg) {
+        if (Log.DEBUG >= level) {
+            Log.d(tag, String.format(format, arg));
+        }
+    }
+
+    static void d(String tag, String format, Object arg1, Object arg2) {
+        if (Log.DEBUG >= level) {
+            Log.d(tag, String.format(format, arg1, arg2));
+        }
+    }
+
+    static void d(String tag, String format, Object arg1, long arg2) {
+        if (Log.DEBUG >= level) {
+            Log.d(tag, String.format(format, arg1, arg2));
+        }
+    }
+
+    static void d(String tag, String format, long arg1, long arg2, long arg3) {
+        if (Log.DEBUG >= level) {
+            Log.d(tag, String.format(format, arg1, arg2, arg3));
+        }
+    }
+
+    static void i(String tag, String msg) {
+        if (Log.INFO >= level) {
+            Log.i(tag, msg);
+        }
+    }
+
+    static void i(String tag, String format, Object arg) {
+        if (Log.INFO >= level) {
+            Log.i(tag, String.format(format, arg));
+        }
+    }
+
+    static void e(String tag, String msg) {
+        if (Log.ERROR >= level) {
+            Log.e(tag, msg);
+        }
+    }
+
+    static void e(String tag, String msg, Throwable tr) {
+        if (Log.ERROR >= level) {
+            Log.e(tag, msg, tr);
+        }
+    }
+
+    static void e(String tag, String format, Object arg) {
+        if (Log.ERROR >= level) {
+            Log.e(tag, String.format(format, arg));
+        }
+    }
+}
@@ -0,0 +1,124 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import com.sift.api.representations.MobileEventJson;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the events of queues on disk while memory is low, in one file per
+ * queue. Each spill appends an {@link EventCodec} block, so a file reads
+ * back in the order it was written.
+ *
+ * Used on the ingest lane only.
+ */
+class SpillStore {
+    private static final String TAG = SpillStore.class.getName();
+    private static final String DIRECTORY_NAME = "siftscience-spill";
+
+    private final Context context;
+    private File directory;
+
+    SpillStore(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Appends events to the file of a queue. A failed write leaves the file
+     * as it was.
+     */
+    void write(@NonNull String identifier, @NonNull List<MobileEventJson> events)
+            throws IOException {
+        File file = getFile(identifier);
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+
+        byte[] block = EventCodec.encode(Collections.singletonMap(identifier, events));
+        long length = file.length();
+        try {
+            FileOutputStream out = new FileOutputStream(file, true);
+            try {
+                out.write(block);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            truncate(file, length);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads back and deletes the file of a queue. Events after a corrupt
+     * part of the file are lost.
+     *
+     * @return the spilled events, oldest first
+     */
+    @NonNull
+    List<MobileEventJson> read(@NonNull String identifier) throws IOException {
+        File file = getFile(identifier);
+        if (!file.exists()) {
+            return new ArrayList<>();
+        }
+
+        Map<String, List<MobileEventJson>> streams = new HashMap<>();
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try {
+                while (EventCodec.decode(in, streams)) {
+                    // Each spill is a block of its own
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            SiftLog.e(TAG, "Encountered exception reading spilled events", e);
+        }
+
+        if (!file.delete()) {
+            SiftLog.d(TAG, "Could not delete %s", file);
+        }
+        List<MobileEventJson> events = streams.get(identifier);
+        return events != null ? events : new ArrayList<MobileEventJson>();
+    }
+
+    private File getFile(String identifier) throws IOException {
+        if (directory == null) {
+            directory = new File(Utils.getNoBackupFilesDir(context), DIRECTORY_NAME);
+        }
+        // Custom queue identifiers may contain any character
+        return new File(directory, URLEncoder.encode(identifier, "UTF-8"));
+    }
+
+    private static void truncate(File file, long length) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(length);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            SiftLog.e(TAG, "Encountered exception truncating spilled events", e);
+        }
+    }
+}
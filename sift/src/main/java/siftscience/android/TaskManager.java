@@ -2,48 +2,246 @@
 
 package siftscience.android;
 
-import android.util.Log;
+import android.os.Process;
 
-import java.util.concurrent.Executors;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Wrapper around executor that abstracts exception handling and shutdown logic
+ * Wrapper around executors that abstracts exception handling and shutdown logic.
+ *
+ * Work is split into lanes, each served by its own named daemon thread at
+ * background priority, so that slow collection, disk or network work does
+ * not delay appends. Tasks on the same lane run in submission order.
+ *
+ * The ingest and network lanes are unbounded, so appends and upload retries
+ * are never dropped. The other lanes have a queue limit. A task that a full
+ * or shut down lane rejects fails its future with a
+ * RejectedExecutionException, and a {@link Rejectable} task is told so that
+ * it can account for the work it carries.
+ *
+ * Delayed tasks wait in a shared timer wheel and enter their lane when due.
+ * Delayed tasks that are still waiting at shutdown are rejected.
+ *
+ * Idempotent tasks can be submitted with a key. While a task with the same
+ * key is pending, a new submission replaces it instead of queueing another.
  */
 class TaskManager {
     private static final String TAG = TaskManager.class.getName();
-    private final ScheduledExecutorService executor;
+
+    enum Lane {
+        /** Appends and state changes; the owner of SiftImpl and Queue state. */
+        INGEST("ingest", Integer.MAX_VALUE),
+        /** Collector cycles. */
+        COLLECT("collect", 16),
+        /** SharedPreferences writes. */
+        PERSIST("persist", 16),
+        /** Uploads and their retries. */
+        NETWORK("network", Integer.MAX_VALUE);
+
+        final String threadName;
+        final int capacity;
+
+        Lane(String name, int capacity) {
+            this.threadName = "sift-" + name;
+            this.capacity = capacity;
+        }
+    }
+
+    /**
+     * A task that carries work, such as events, which must be accounted for
+     * if the task never runs.
+     */
+    interface Rejectable extends Runnable {
+        /**
+         * Called instead of run() when the lane rejects the task, on the
+         * thread that submitted it, the timer thread or the shutdown thread.
+         */
+        void rejected();
+    }
+
+    private final ThreadPoolExecutor[] executors =
+            new ThreadPoolExecutor[Lane.values().length];
+    private final TimerWheel timerWheel = new TimerWheel();
+    // The latest task for each pending key
+    private final Map<Object, Runnable> pendingByKey = new HashMap<>();
 
     TaskManager() {
-        this.executor = Executors.newSingleThreadScheduledExecutor();
+        for (Lane lane : Lane.values()) {
+            executors[lane.ordinal()] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(lane.capacity),
+                    new LaneThreadFactory(lane));
+        }
     }
 
+    /**
+     * Submits a task to the ingest lane.
+     */
     void submit(Runnable task) {
-        try {
-            this.executor.submit(task);
-        } catch (RejectedExecutionException e) {
-            Log.d(TAG, "Dropped submitted task due to RejectedExecutionException");
+        submit(Lane.INGEST, task);
+    }
+
+    void submit(Lane lane, Runnable task) {
+        schedule(lane, task, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Submits a task that coalesces with a pending task of the same key. Only
+     * the latest task submitted before the pending one starts is run.
+     */
+    void submit(Lane lane, final Object key, Runnable task) {
+        synchronized (pendingByKey) {
+            boolean pending = pendingByKey.containsKey(key);
+            pendingByKey.put(key, task);
+            if (pending) {
+                return;
+            }
+        }
+
+        schedule(lane, new Rejectable() {
+            @Override
+            public void run() {
+                Runnable latest = latest();
+                if (latest != null) {
+                    latest.run();
+                }
+            }
+
+            @Override
+            public void rejected() {
+                Runnable latest = latest();
+                if (latest instanceof Rejectable) {
+                    ((Rejectable) latest).rejected();
+                }
+            }
+
+            private Runnable latest() {
+                synchronized (pendingByKey) {
+                    return pendingByKey.remove(key);
+                }
+            }
+        }, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the future of the scheduled task, which fails with a
+     * RejectedExecutionException if the lane rejects the task
+     */
+    Future<?> schedule(final Lane lane, Runnable task, long delay, TimeUnit unit) {
+        final LaneTask laneTask = new LaneTask(task);
+        if (delay <= 0) {
+            execute(lane, laneTask);
+            return laneTask;
+        }
+
+        TimerWheel.Timeout timeout = timerWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                execute(lane, laneTask);
+            }
+        }, delay, unit);
+
+        if (timeout == null) {
+            SiftLog.d(TAG, "Rejected scheduled task after shutdown");
+            laneTask.reject();
+            return laneTask;
         }
+        laneTask.timeout = timeout;
+        return laneTask;
     }
 
-    void schedule(Runnable task, long delay, TimeUnit unit) {
+    private void execute(Lane lane, LaneTask task) {
         try {
-            this.executor.schedule(task, delay, unit);
+            executors[lane.ordinal()].execute(task);
         } catch (RejectedExecutionException e) {
-            Log.d(TAG, "Dropped scheduled task due to RejectedExecutionException");
+            SiftLog.d(TAG, "Rejected task on %s lane", lane.threadName);
+            task.reject();
         }
     }
 
     void shutdown() {
-        this.executor.shutdown();
+        for (ThreadPoolExecutor executor : executors) {
+            executor.shutdown();
+        }
+        // The lanes no longer accept tasks, so this rejects the delayed
+        // tasks that did not come due
+        for (Runnable expiry : timerWheel.stop()) {
+            expiry.run();
+        }
         try {
-            if (!this.executor.awaitTermination(1, TimeUnit.SECONDS)) {
-                Log.d(TAG, "Some tasks are not terminated yet before timeout");
+            for (ThreadPoolExecutor executor : executors) {
+                if (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    SiftLog.d(TAG, "Some tasks are not terminated yet before timeout");
+                }
             }
         } catch (InterruptedException e) {
-            Log.e(TAG, "Interrupted when awaiting executor termination", e);
+            SiftLog.e(TAG, "Interrupted when awaiting executor termination", e);
+        }
+    }
+
+    /**
+     * A task submitted to a lane. If it waits in the timer wheel,
+     * cancelling it also frees its slot.
+     */
+    static class LaneTask extends FutureTask<Void> {
+        private final Runnable task;
+        private volatile TimerWheel.Timeout timeout;
+
+        LaneTask(Runnable task) {
+            super(task, null);
+            this.task = task;
+        }
+
+        /**
+         * Fails the future and tells a Rejectable task, unless the task was
+         * cancelled.
+         */
+        void reject() {
+            if (isDone()) {
+                return;
+            }
+            setException(new RejectedExecutionException());
+            if (!isCancelled() && task instanceof Rejectable) {
+                ((Rejectable) task).rejected();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            TimerWheel.Timeout timeout = this.timeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+            return super.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    private static class LaneThreadFactory implements ThreadFactory {
+        private final Lane lane;
+
+        LaneThreadFactory(Lane lane) {
+            this.lane = lane;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // Keep SDK work from contending with the UI thread
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, lane.threadName);
+            thread.setDaemon(true);
+            return thread;
         }
     }
 }
@@ -0,0 +1,377 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hashed timer wheel for delayed tasks.
+ *
+ * Scheduling and cancelling are O(1): new and cancelled timeouts are handed
+ * to the timer thread through lock-free queues and moved in or out of their
+ * bucket on the next tick. Timeouts fire with tick granularity. The timer
+ * thread is started on first use and sleeps without ticking while no
+ * timeouts are pending.
+ *
+ * Expired tasks run on the timer thread and must only hand work off.
+ */
+class TimerWheel {
+    private static final String TAG = TimerWheel.class.getName();
+
+    static final long DEFAULT_TICK = TimeUnit.MILLISECONDS.toNanos(100);
+    static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static final int ST_PENDING = 0;
+    private static final int ST_CANCELLED = 1;
+    private static final int ST_EXPIRED = 2;
+
+    static final class Timeout {
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final TimerWheel wheel;
+        private final Runnable task;
+        // Nanoseconds since the wheel was created
+        private final long deadline;
+        private volatile int state = ST_PENDING;
+
+        // Owned by the timer thread
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout prev;
+
+        Timeout(TimerWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return whether the timeout was pending and is now cancelled
+         */
+        boolean cancel() {
+            if (!STATE.compareAndSet(this, ST_PENDING, ST_CANCELLED)) {
+                return false;
+            }
+            wheel.cancelled.add(this);
+            return true;
+        }
+
+        boolean isCancelled() {
+            return state == ST_CANCELLED;
+        }
+
+        boolean isExpired() {
+            return state == ST_EXPIRED;
+        }
+
+        private void expire() {
+            if (!STATE.compareAndSet(this, ST_PENDING, ST_EXPIRED)) {
+                return;
+            }
+            wheel.pendingTimeouts.decrementAndGet();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                SiftLog.e(TAG, "Encountered exception in timer task", e);
+            }
+        }
+    }
+
+    /**
+     * Doubly linked list of the timeouts that hash to one slot.
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        Timeout remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+            return next;
+        }
+
+        /**
+         * @param deadline the deadline of the current tick
+         * @param roundDuration the duration of one turn of the wheel
+         */
+        void expire(long deadline, long roundDuration) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                if (timeout.remainingRounds <= 0) {
+                    if (timeout.deadline > deadline) {
+                        // Not due yet; it stays until the first turn that
+                        // reaches its deadline
+                        timeout.remainingRounds =
+                                (timeout.deadline - deadline - 1) / roundDuration;
+                        timeout = timeout.next;
+                        continue;
+                    }
+                    Timeout next = remove(timeout);
+                    timeout.expire();
+                    timeout = next;
+                } else {
+                    timeout.remainingRounds--;
+                    timeout = timeout.next;
+                }
+            }
+        }
+    }
+
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long tickDuration;
+    private final long roundDuration;
+    private final long startTime = System.nanoTime();
+
+    private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingTimeouts = new AtomicLong();
+
+    private final Object lock = new Object();
+    private Thread worker;
+    private volatile boolean idle = false;
+    private volatile boolean stopped = false;
+
+    // Owned by the timer thread
+    private long tick;
+
+    TimerWheel() {
+        this(DEFAULT_TICK, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param tickDuration the duration of one tick in nanoseconds
+     * @param wheelSize the number of slots, rounded up to a power of two
+     */
+    TimerWheel(long tickDuration, int wheelSize) {
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            this.wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.tickDuration = tickDuration;
+        this.roundDuration = tickDuration * size;
+    }
+
+    /**
+     * @return the timeout, or null if the wheel is stopped
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (stopped) {
+            return null;
+        }
+        startWorker();
+
+        Timeout timeout = new Timeout(this, task,
+                System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay)));
+        pendingTimeouts.incrementAndGet();
+        scheduled.add(timeout);
+        // Lost the race with stop(), which may have already collected the queue
+        if (stopped && scheduled.remove(timeout)) {
+            pendingTimeouts.decrementAndGet();
+            return null;
+        }
+
+        if (idle) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+        return timeout;
+    }
+
+    /**
+     * @return the number of timeouts that are neither expired nor cancelled
+     */
+    long getPendingTimeouts() {
+        return pendingTimeouts.get();
+    }
+
+    boolean isIdle() {
+        return idle;
+    }
+
+    /**
+     * Stops the timer thread and waits for it to exit. Pending timeouts
+     * never fire.
+     *
+     * @return the tasks of the pending timeouts
+     */
+    List<Runnable> stop() {
+        stopped = true;
+        Thread worker;
+        synchronized (lock) {
+            lock.notifyAll();
+            worker = this.worker;
+        }
+        if (worker != null && worker != Thread.currentThread()) {
+            worker.interrupt();
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new ArrayList<>();
+            }
+        }
+
+        // The timer thread has exited, so the buckets can be read here
+        List<Runnable> tasks = new ArrayList<>();
+        for (Bucket bucket : wheel) {
+            Timeout timeout;
+            while ((timeout = bucket.head) != null) {
+                bucket.remove(timeout);
+                collect(timeout, tasks);
+            }
+        }
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            collect(timeout, tasks);
+        }
+        return tasks;
+    }
+
+    private void collect(Timeout timeout, List<Runnable> tasks) {
+        if (Timeout.STATE.compareAndSet(timeout, ST_PENDING, ST_CANCELLED)) {
+            pendingTimeouts.decrementAndGet();
+            tasks.add(timeout.task);
+        }
+    }
+
+    private void startWorker() {
+        synchronized (lock) {
+            if (worker != null) {
+                return;
+            }
+            worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWorker();
+                }
+            }, "sift-timer");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    private void runWorker() {
+        tick = currentTick();
+        while (!stopped) {
+            long deadline = waitForNextTick();
+            if (deadline < 0) {
+                break;
+            }
+
+            removeCancelled();
+            transferScheduled();
+            wheel[(int) (tick & mask)].expire(deadline, roundDuration);
+            tick++;
+        }
+
+        long dropped = pendingTimeouts.get();
+        if (dropped > 0) {
+            SiftLog.d(TAG, "Stopped with %d pending timeouts", dropped);
+        }
+    }
+
+    /**
+     * Sleeps until the end of the current tick, or until a timeout is
+     * scheduled if none is pending.
+     *
+     * @return the deadline of the current tick, or -1 if stopped
+     */
+    private long waitForNextTick() {
+        if (pendingTimeouts.get() == 0) {
+            synchronized (lock) {
+                idle = true;
+                try {
+                    while (pendingTimeouts.get() == 0 && !stopped) {
+                        lock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    return -1;
+                } finally {
+                    idle = false;
+                }
+            }
+            // All buckets are empty, so the wheel can jump to the current time
+            tick = currentTick();
+        }
+
+        long deadline = tickDuration * (tick + 1);
+        while (!stopped) {
+            long sleep = deadline - (System.nanoTime() - startTime);
+            if (sleep <= 0) {
+                return deadline;
+            }
+            try {
+                Thread.sleep(TimeUnit.NANOSECONDS.toMillis(sleep + 999999));
+            } catch (InterruptedException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private long currentTick() {
+        return (System.nanoTime() - startTime) / tickDuration;
+    }
+
+    private void transferScheduled() {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            long calculated = timeout.deadline / tickDuration;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+            long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+            pendingTimeouts.decrementAndGet();
+        }
+    }
+}
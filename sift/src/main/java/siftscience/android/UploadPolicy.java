@@ -0,0 +1,98 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether a queue that is due for upload may flush, so that bulk
+ * uploads wait for cheap networks and ride along with uploads that wake
+ * the radio anyway.
+ *
+ * Nothing flushes while offline. Urgent queues flush whenever online. Bulk
+ * queues flush on unmetered networks; on metered ones they wait for the
+ * device to charge or for their oldest event to reach the max deferral of
+ * the config, and stop for the day once the daily byte budget is spent.
+ * Every upload counts against the budget, which is kept per process.
+ *
+ * Used on the ingest lane only.
+ */
+class UploadPolicy {
+    private static final String TAG = UploadPolicy.class.getName();
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final Sift.Config DEFAULT_CONFIG = new Sift.Config();
+
+    private final ConnectivitySource connectivity;
+    private final PowerSource power;
+    private final Uploader.ConfigProvider configProvider;
+    private final Clock clock;
+    private final Metrics metrics;
+
+    // Elapsed realtime and uploaded bytes at the start of the budget day
+    private long budgetStart = -1;
+    private long budgetStartBytes;
+    private boolean budgetSpent = false;
+
+    UploadPolicy(ConnectivitySource connectivity,
+                 PowerSource power,
+                 Uploader.ConfigProvider configProvider,
+                 Clock clock,
+                 Metrics metrics) {
+        this.connectivity = connectivity;
+        this.power = power;
+        this.configProvider = configProvider;
+        this.clock = clock;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param tier the upload tier of the queue
+     * @param waited how long the oldest queued event has waited, in milliseconds
+     * @return whether the queue keeps its events for now
+     */
+    boolean isDeferred(Queue.Tier tier, long waited) {
+        if (!connectivity.isConnected()) {
+            return true;
+        }
+        if (tier == Queue.Tier.URGENT || !connectivity.isMetered()) {
+            return false;
+        }
+
+        return !hasBudget() ||
+                (!power.isCharging() && waited < getConfig().uploadMaxDeferral);
+    }
+
+    /**
+     * @return whether deferred queues may join a batch that is sent anyway
+     */
+    boolean mayPiggyback() {
+        return connectivity.isConnected() && (!connectivity.isMetered() || hasBudget());
+    }
+
+    private Sift.Config getConfig() {
+        Sift.Config config = configProvider.getConfig();
+        return config != null ? config : DEFAULT_CONFIG;
+    }
+
+    private boolean hasBudget() {
+        long budget = getConfig().dailyUploadByteBudget;
+        if (budget <= 0) {
+            return true;
+        }
+
+        long now = clock.elapsedRealtime();
+        long bytes = metrics.uploadBytesGzip.sum();
+        if (budgetStart < 0 || now - budgetStart >= DAY) {
+            budgetStart = now;
+            budgetStartBytes = bytes;
+            budgetSpent = false;
+        }
+
+        if (!budgetSpent && bytes - budgetStartBytes >= budget) {
+            budgetSpent = true;
+            SiftLog.i(TAG, "Daily upload budget of %d bytes spent, bulk uploads wait " +
+                    "for an unmetered network", budget);
+        }
+        return !budgetSpent;
+    }
+}
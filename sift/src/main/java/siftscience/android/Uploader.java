@@ -8,12 +8,12 @@ import androidx.annotation.VisibleForTesting;
 
 import android.os.Build;
 import android.util.Base64;
-import android.util.Log;
 
 import com.sift.api.representations.ListRequestJson;
 import com.sift.api.representations.MobileEventJson;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -23,15 +23,19 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPOutputStream;
 
 /**
- * Stateless utility class for sending MobileEventJson batches to Sift backend
+ * Utility class for sending MobileEventJson batches to Sift backend
  */
 public class Uploader {
     private static final String TAG = Uploader.class.getName();
@@ -45,13 +49,31 @@ public class Uploader {
     @VisibleForTesting
     static final int MAX_RETRIES = 3;
 
+    // Batch identifiers are only drawn while an event listener is set
+    private static final AtomicLong nextBatchId = new AtomicLong();
+
     private final TaskManager taskManager;
     private final ConfigProvider configProvider;
+    private final Clock clock;
+    private final Metrics metrics;
+    private final ConnectivitySource connectivity;
+    @Nullable
+    private final BatchHolder holder;
+    // Upload attempts that are scheduled but have not started yet
+    private final Set<UploadTask> pendingUploads = new HashSet<>();
 
     interface ConfigProvider {
         Sift.Config getConfig();
     }
 
+    interface BatchHolder {
+        /**
+         * Takes back a batch that was not sent because the device is
+         * offline, to be uploaded once it is back online.
+         */
+        void hold(Batch batch);
+    }
+
     static class Request {
         private String method;
         private URL url;
@@ -99,52 +121,190 @@ public class Uploader {
     }
 
     Uploader(TaskManager taskManager, ConfigProvider configProvider) {
+        this(taskManager, configProvider, Clock.SYSTEM, new Metrics());
+    }
+
+    Uploader(TaskManager taskManager, ConfigProvider configProvider, Clock clock,
+             Metrics metrics) {
+        this(taskManager, configProvider, clock, metrics,
+                ConnectivitySource.ALWAYS_CONNECTED, null);
+    }
+
+    /**
+     * @param holder takes back the batches that were not sent because the
+     *               device is offline; without one, they are dropped
+     */
+    Uploader(TaskManager taskManager, ConfigProvider configProvider, Clock clock,
+             Metrics metrics, ConnectivitySource connectivity, @Nullable BatchHolder holder) {
         this.taskManager = taskManager;
         this.configProvider = configProvider;
+        this.clock = clock;
+        this.metrics = metrics;
+        this.connectivity = connectivity;
+        this.holder = holder;
     }
 
-    public void upload(List<MobileEventJson> batch) {
+    public void upload(Batch batch) {
+        // Do not spend the encoding on a batch that cannot be sent
+        if (held(batch)) {
+            return;
+        }
+        long batchId = flushed(batch);
         // Kick-off the first upload
         try {
             Request request = makeRequest(batch);
             if (request != null) {
-                Log.d(TAG, String.format("Uploading batch of size %d", batch.size()));
-                this.doUpload(request, MAX_RETRIES);
+                SiftLog.d(TAG, "Uploading batch of size %d", batch.size());
+                this.doUpload(batch, batchId, request, MAX_RETRIES);
+            } else {
+                dropped(batchId, batch, EventListener.DropReason.NOT_CONFIGURED);
             }
         } catch (IOException e) {
-            Log.e(TAG, "Encountered IOException in upload", e);
+            SiftLog.e(TAG, "Encountered IOException in upload", e);
+            dropped(batchId, batch, EventListener.DropReason.IO_ERROR);
         }
     }
 
-    private void doUpload(Request request, int retriesRemaining) {
+    /**
+     * Makes a single upload attempt on the calling thread.
+     *
+     * @param timeout the connect and read timeout in milliseconds
+     * @return whether the batch no longer needs to be sent, either because
+     * it was accepted or because it was rejected as malformed
+     */
+    boolean uploadNow(Batch batch, int timeout) {
+        long batchId = flushed(batch);
+        try {
+            Request request = makeRequest(batch);
+            if (request == null) {
+                return batch == null || batch.isEmpty();
+            }
+            started(batchId, 1);
+            int code = send(request, timeout);
+            completed(batchId, batch, code);
+            return code == 200 || code == 400;
+        } catch (IOException e) {
+            SiftLog.e(TAG, "Encountered IOException in upload", e);
+            return false;
+        }
+    }
+
+    /**
+     * Cancels the scheduled upload attempts.
+     *
+     * @return the batches of the cancelled attempts
+     */
+    List<Batch> cancelPendingUploads() {
+        List<Batch> batches = new ArrayList<>();
+        synchronized (pendingUploads) {
+            for (UploadTask task : pendingUploads) {
+                task.cancelled = true;
+                batches.add(task.batch);
+            }
+            pendingUploads.clear();
+        }
+        return batches;
+    }
+
+    private void doUpload(Batch batch, long batchId, Request request,
+                          int retriesRemaining) {
         if (retriesRemaining == 0) {
+            dropped(batchId, batch, EventListener.DropReason.RETRIES_EXHAUSTED);
             return;
         }
+        if (retriesRemaining < MAX_RETRIES) {
+            metrics.uploadRetries.increment();
+        }
+
+        UploadTask task = new UploadTask(this, batch, batchId, request, retriesRemaining);
+        synchronized (pendingUploads) {
+            pendingUploads.add(task);
+        }
 
         this.taskManager.schedule(
-                new UploadTask(this, request, retriesRemaining),
+                TaskManager.Lane.NETWORK,
+                task,
                 (long) (Math.pow(MAX_RETRIES - retriesRemaining, BACKOFF_EXPONENT) * BACKOFF_MULTIPLIER),
                 BACKOFF_UNIT
         );
     }
 
+    /**
+     * Hands a batch to the holder if the device is offline.
+     *
+     * @return whether the batch was held
+     */
+    private boolean held(Batch batch) {
+        if (holder == null || connectivity.isConnected() || batch == null || batch.isEmpty()) {
+            return false;
+        }
+        SiftLog.d(TAG, "Offline, holding batch of size %d", batch.size());
+        metrics.uploadsHeld.increment();
+        holder.hold(batch);
+        return true;
+    }
+
+    /**
+     * Reports a batch to the event listener, if any.
+     *
+     * @return the identifier of the batch, or NO_BATCH without a listener
+     */
+    private long flushed(List<MobileEventJson> batch) {
+        EventListener listener = metrics.eventListener;
+        if (listener == null || batch == null || batch.isEmpty()) {
+            return EventListener.NO_BATCH;
+        }
+        long batchId = nextBatchId.incrementAndGet();
+        listener.onFlushed(batchId, batch, clock.elapsedRealtime());
+        return batchId;
+    }
+
+    private void started(long batchId, int attempt) {
+        EventListener listener = metrics.eventListener;
+        if (listener != null) {
+            listener.onUploadStarted(batchId, attempt, clock.elapsedRealtime());
+        }
+    }
+
+    private void completed(long batchId, List<MobileEventJson> batch, int code) {
+        EventListener listener = metrics.eventListener;
+        if (listener == null) {
+            return;
+        }
+        if (code == 200) {
+            listener.onAcknowledged(batchId, code, clock.elapsedRealtime());
+        } else if (code == 400) {
+            listener.onDropped(batchId, batch, EventListener.DropReason.REJECTED,
+                    clock.elapsedRealtime());
+        }
+    }
+
+    private void dropped(long batchId, List<MobileEventJson> batch,
+                         EventListener.DropReason reason) {
+        EventListener listener = metrics.eventListener;
+        if (listener != null && batch != null && !batch.isEmpty()) {
+            listener.onDropped(batchId, batch, reason, clock.elapsedRealtime());
+        }
+    }
+
     /** Builds a Request for the specified event batch */
     @Nullable
-    private Request makeRequest(List<MobileEventJson> batch) throws IOException {
+    @VisibleForTesting
+    Request makeRequest(List<MobileEventJson> batch) throws IOException {
         if (batch == null || batch.isEmpty()) {
-            Log.d(TAG, "Mobile events batch is empty");
+            SiftLog.d(TAG, "Mobile events batch is empty");
             return null;
         }
 
         Sift.Config config = configProvider.getConfig();
 
         if (config == null) {
-            Log.d(TAG, "Missing Sift.Config object");
+            SiftLog.d(TAG, "Missing Sift.Config object");
             return null;
         }
 
         if (!config.isValid()) {
-            Log.d(TAG, "Sift.Config is not valid");
+            SiftLog.d(TAG, "Sift.Config is not valid");
             return null;
         }
 
@@ -163,12 +323,14 @@ public class Uploader {
                 .withData(Collections.<Object>unmodifiableList(batch));
 
         ByteArrayOutputStream os = new ByteArrayOutputStream();
-        OutputStream gzip = new GZIPOutputStream(os);
+        CountingOutputStream gzip = new CountingOutputStream(new GZIPOutputStream(os));
         Writer writer = new OutputStreamWriter(gzip, UTF8);
         Sift.GSON.toJson(request, writer);
         writer.close();
+        metrics.uploadBytes.add(gzip.count);
+        metrics.uploadBytesGzip.add(os.size());
 
-        Log.d(TAG, String.format("Built HTTP request for batch of size %d", batch.size()));
+        SiftLog.d(TAG, "Built HTTP request for batch of size %d", batch.size());
 
         return new Request.Builder()
                 .withMethod("PUT")
@@ -191,75 +353,164 @@ public class Uploader {
         return new String(bytes, 0, position, UTF8);
     }
 
-    private class UploadTask implements Runnable {
+    /**
+     * Sends a request once.
+     *
+     * @param timeout the connect and read timeout in milliseconds, or 0 for none
+     * @return the HTTP status code
+     */
+    private int send(Request request, int timeout) throws IOException {
+        metrics.uploadAttempts.increment();
+        long start = System.nanoTime();
+        try {
+            int code = doSend(request, timeout);
+            metrics.recordStatusCode(code);
+            return code;
+        } catch (IOException e) {
+            metrics.uploadErrors.increment();
+            throw e;
+        } finally {
+            metrics.uploadLatency.record(
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    private int doSend(Request request, int timeout) throws IOException {
+        SiftLog.d(TAG, "Sending HTTP request");
+        HttpURLConnection connection = (HttpURLConnection) request.url.openConnection();
+        connection.setRequestMethod(request.method);
+        for (Map.Entry<String, String> header : request.headers.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        connection.setFixedLengthStreamingMode(request.body.length);
+        connection.setDoOutput(true);
+        connection.setDoInput(true);
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+
+        connection.connect();
+
+        try {
+            OutputStream out = connection.getOutputStream();
+
+            try {
+                out.write(request.body);
+            } finally {
+                out.close();
+            }
+
+            int code = connection.getResponseCode();
+            String body = null;
+            InputStream in;
+
+            if (code >= 400) {
+                in = connection.getErrorStream();
+            } else {
+                in = connection.getInputStream();
+            }
+
+            if (in != null) {
+                try {
+                    body = readInputStreamAsString(in, MAX_BYTES);
+                } finally {
+                    in.close();
+                }
+            }
+
+            if (code == 200) {
+                SiftLog.d(TAG,"HTTP 200");
+            } else {
+                SiftLog.d(TAG, "HTTP error: status=%d response=%s", code, body);
+            }
+            return code;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Counts the bytes written through it.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private class UploadTask implements TaskManager.Rejectable {
         private Uploader uploader;
+        private final Batch batch;
+        private final long batchId;
         private final Request request;
         private int retriesRemaining;
+        private volatile boolean cancelled = false;
 
-        UploadTask(Uploader uploader, Request request, int retriesRemaining) {
+        UploadTask(Uploader uploader, Batch batch, long batchId,
+                   Request request, int retriesRemaining) {
             this.uploader = uploader;
+            this.batch = batch;
+            this.batchId = batchId;
             this.request = request;
             this.retriesRemaining = retriesRemaining;
         }
 
         @Override
         public void run() {
-            Log.d(TAG, "Sending HTTP request");
-            try {
-                HttpURLConnection connection = (HttpURLConnection) this.request.url.openConnection();
-                connection.setRequestMethod(this.request.method);
-                for (Map.Entry<String, String> header : this.request.headers.entrySet()) {
-                    connection.setRequestProperty(header.getKey(), header.getValue());
+            synchronized (pendingUploads) {
+                if (this.cancelled) {
+                    return;
                 }
-                connection.setFixedLengthStreamingMode(this.request.body.length);
-                connection.setDoOutput(true);
-                connection.setDoInput(true);
+                pendingUploads.remove(this);
+            }
 
-                connection.connect();
+            // A retry that comes due while offline waits for connectivity
+            if (held(this.batch)) {
+                return;
+            }
 
-                try {
-                    OutputStream out = connection.getOutputStream();
-
-                    try {
-                        out.write(this.request.body);
-                    } finally {
-                        out.close();
-                    }
-
-                    int code = connection.getResponseCode();
-                    String body = null;
-                    InputStream in;
-
-                    if (code >= 400) {
-                        in = connection.getErrorStream();
-                    } else {
-                        in = connection.getInputStream();
-                    }
-
-                    if (in != null) {
-                        try {
-                            body = readInputStreamAsString(in, MAX_BYTES);
-                        } finally {
-                            in.close();
-                        }
-                    }
-
-                    if (code == 200) {
-                        Log.d(TAG,"HTTP 200");
-                    } else if (code == 400) {
-                        Log.d(TAG, String.format(
-                                "HTTP error: status=%d response=%s", code, body));
-                    } else {
-                        Log.d(TAG, String.format(
-                                "HTTP error: status=%d response=%s", code, body));
-                        this.uploader.doUpload(request, this.retriesRemaining - 1);
-                    }
-                } finally {
-                    connection.disconnect();
+            try {
+                started(this.batchId, MAX_RETRIES - this.retriesRemaining + 1);
+                int code = send(this.request, 0);
+                completed(this.batchId, this.batch, code);
+                if (code != 200 && code != 400) {
+                    this.uploader.doUpload(this.batch, this.batchId, this.request,
+                            this.retriesRemaining - 1);
                 }
             } catch (IOException e) {
-                Log.e(TAG, "Network error in UploadTask", e);
+                SiftLog.e(TAG, "Network error in UploadTask", e);
+                // The connection may have failed because the device went offline
+                if (!held(this.batch)) {
+                    dropped(this.batchId, this.batch, EventListener.DropReason.IO_ERROR);
+                }
+            }
+        }
+
+        @Override
+        public void rejected() {
+            synchronized (pendingUploads) {
+                // Cancelled batches were handed to the caller of cancelPendingUploads()
+                if (this.cancelled) {
+                    return;
+                }
+                pendingUploads.remove(this);
             }
+            SiftLog.d(TAG, "Upload task rejected, dropping batch of size %d", batch.size());
+            metrics.eventsRejected.add(batch.size());
+            dropped(this.batchId, this.batch, EventListener.DropReason.TASK_REJECTED);
         }
     }
 }
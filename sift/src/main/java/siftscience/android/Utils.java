@@ -2,13 +2,21 @@
 
 package siftscience.android;
 
+import android.content.Context;
+import android.os.Build;
+
 import com.sift.api.representations.MobileEventJson;
 
+import java.io.File;
+import java.io.IOException;
+
 /**
  * Util methods.
  */
 
 public class Utils {
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+
     public static boolean eventsAreBasicallyEqual(MobileEventJson first,
                                                   MobileEventJson second) {
         if (first == null ^ second == null) {
@@ -26,6 +34,32 @@ public class Utils {
         return result;
     }
 
+    /**
+     * Great-circle distance between two coordinates, in meters.
+     */
+    static double distanceBetween(double latitude1, double longitude1,
+                                  double latitude2, double longitude2) {
+        double dLatitude = Math.toRadians(latitude2 - latitude1);
+        double dLongitude = Math.toRadians(longitude2 - longitude1);
+        double a = Math.sin(dLatitude / 2) * Math.sin(dLatitude / 2) +
+                Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2)) *
+                        Math.sin(dLongitude / 2) * Math.sin(dLongitude / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+
+    /**
+     * Directory for files of the SDK that are not worth restoring onto
+     * another device.
+     */
+    static File getNoBackupFilesDir(Context context) throws IOException {
+        File directory = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ?
+                context.getNoBackupFilesDir() : context.getFilesDir();
+        if (directory == null) {
+            throw new IOException("No files directory");
+        }
+        return directory;
+    }
+
     public static boolean equals(Object a, Object b) {
         if (a == null || b == null) {
             return a == b;
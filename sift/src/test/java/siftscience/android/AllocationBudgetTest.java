@@ -0,0 +1,309 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.sift.api.representations.AndroidAppStateJson;
+import com.sift.api.representations.AndroidDeviceLocationJson;
+import com.sift.api.representations.MobileEventJson;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Guards the memory cost of the hot paths on the JVM.
+ *
+ * Allocations are read from the thread allocation counter, taking the
+ * lowest of several warmed up runs so that JIT and TLAB noise do not fail
+ * the build. Retained heap is the growth of the used heap after full
+ * collections. Budgets are about twice the current cost; when an
+ * improvement lands, lower them so that it stays an improvement.
+ */
+public class AllocationBudgetTest {
+    private static final int RUNS = 5;
+    private static final int EVENTS = 1000;
+    private static final int BATCH = 64;
+
+    /** Bytes taken by reading the allocation counter itself. */
+    private static final long SLACK = 4096;
+    /** Bytes per distinct event appended to a queue, growing its list included. */
+    private static final long APPEND_BUDGET = 32;
+    /** Bytes per event serialized and compressed into an upload request. */
+    private static final long MAKE_REQUEST_EVENT_BUDGET = 16 * 1024;
+    /** Bytes per upload request regardless of its size. */
+    private static final long MAKE_REQUEST_BASE_BUDGET = 48 * 1024;
+    /** Bytes per queued event written by an archive task. */
+    private static final long ARCHIVE_EVENT_BUDGET = 1024;
+    /** Bytes per archive task regardless of the queued events. */
+    private static final long ARCHIVE_BASE_BUDGET = 32 * 1024;
+    /** Bytes of heap held per event waiting in a queue, event included. */
+    private static final long RETAINED_EVENT_BUDGET = 768;
+    /** Bytes of heap held per event spilled to disk. */
+    private static final long SPILLED_EVENT_BUDGET = 8;
+
+    private static final Queue.UserIdProvider USER_ID_PROVIDER = new Queue.UserIdProvider() {
+        @Override
+        public String getUserId() {
+            return "gary";
+        }
+    };
+
+    private static final Queue.UploadRequester UPLOAD_REQUESTER = new Queue.UploadRequester() {
+        @Override
+        public void requestUpload(List<MobileEventJson> events) {
+        }
+    };
+
+    private static final Queue.Config QUEUE_CONFIG = new Queue.Config.Builder()
+            .withAcceptSameEventAfter(TimeUnit.HOURS.toMillis(1))
+            .withUploadWhenMoreThan(Integer.MAX_VALUE)
+            .withUploadWhenOlderThan(TimeUnit.HOURS.toMillis(1))
+            .build();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean()
+                instanceof com.sun.management.ThreadMXBean);
+    }
+
+    @Test
+    public void testQueueAppend() {
+        final List<MobileEventJson> events = appStates(EVENTS);
+
+        long distinct = lowest(new Measurement() {
+            @Override
+            public long run() {
+                Queue queue = newQueue();
+                long start = allocatedBytes();
+                appendAll(queue, events);
+                return allocatedBytes() - start;
+            }
+        });
+
+        long duplicates = lowest(new Measurement() {
+            @Override
+            public long run() {
+                Queue queue = newQueue();
+                MobileEventJson event = events.get(0);
+                queue.append(event);
+
+                long start = allocatedBytes();
+                for (int i = 0; i < EVENTS; i++) {
+                    queue.append(event);
+                }
+                return allocatedBytes() - start;
+            }
+        });
+
+        assertWithin("Queue.append distinct", distinct, EVENTS * APPEND_BUDGET);
+        // Dropping a duplicate allocates nothing
+        assertWithin("Queue.append duplicate", duplicates, 0);
+    }
+
+    @Test
+    public void testMakeRequest() throws IOException {
+        final Uploader uploader = new Uploader(new VirtualTaskManager(new VirtualClock(0)),
+                new Uploader.ConfigProvider() {
+                    @Override
+                    public Sift.Config getConfig() {
+                        return new Sift.Config.Builder()
+                                .withAccountId("foo")
+                                .withBeaconKey("bar")
+                                .build();
+                    }
+                });
+
+        for (final int size : new int[]{1, BATCH}) {
+            final List<MobileEventJson> batch = appStates(size);
+            long bytes = lowest(new Measurement() {
+                @Override
+                public long run() throws IOException {
+                    long start = allocatedBytes();
+                    uploader.makeRequest(batch);
+                    return allocatedBytes() - start;
+                }
+            });
+
+            assertWithin("Uploader.makeRequest of " + size, bytes,
+                    MAKE_REQUEST_BASE_BUDGET + size * MAKE_REQUEST_EVENT_BUDGET);
+        }
+    }
+
+    @Test
+    public void testArchiveTask() {
+        for (final int size : new int[]{0, BATCH}) {
+            final MemorySharedPreferences preferences = new MemorySharedPreferences();
+            final VirtualTaskManager taskManager = new VirtualTaskManager(new VirtualClock(0));
+            final SiftImpl sift = new SiftImpl(mockContext(preferences), null, "", false,
+                    taskManager, taskManager.getClock());
+            sift.registerQueue("budget", QUEUE_CONFIG);
+            for (int i = 0; i < size; i++) {
+                sift.track("budget", new Event.Builder("checkout_step")
+                        .withPath("/checkout/" + i)
+                        .build());
+            }
+            taskManager.runUntilIdle();
+
+            long bytes = lowest(new Measurement() {
+                @Override
+                public long run() {
+                    // An archive task and the commit it hands to the persist lane
+                    long start = allocatedBytes();
+                    sift.save();
+                    taskManager.runUntilIdle();
+                    return allocatedBytes() - start;
+                }
+            });
+
+            assertWithin("ArchiveTask with " + size + " events", bytes,
+                    ARCHIVE_BASE_BUDGET + size * ARCHIVE_EVENT_BUDGET);
+        }
+    }
+
+    @Test
+    public void testRetainedHeapPerQueuedEvent() {
+        // The first event of a new queue is flushed right away
+        Queue queue = newQueue();
+        queue.append(appState(0));
+        long before = usedHeap();
+
+        // Only the queue keeps the events alive
+        for (int i = 1; i <= 10000; i++) {
+            queue.append(appState(i));
+        }
+        long retained = usedHeap() - before;
+        int count = queue.getDepth();
+
+        assertTrue(count > 0);
+        assertWithin("Retained heap per queued event", retained,
+                count * RETAINED_EVENT_BUDGET);
+    }
+
+    @Test
+    public void testRetainedHeapAfterSpill() throws IOException {
+        Context context = mock(Context.class);
+        when(context.getFilesDir()).thenReturn(folder.newFolder());
+        Queue queue = new Queue("budget", null, USER_ID_PROVIDER, UPLOAD_REQUESTER,
+                QUEUE_CONFIG, new VirtualClock(0), new Metrics(), new SpillStore(context));
+        queue.append(appState(0));
+        long before = usedHeap();
+
+        for (int i = 1; i <= 10000; i++) {
+            queue.append(appState(i));
+        }
+        int count = queue.spill();
+        long retained = usedHeap() - before;
+
+        assertTrue(count > 0);
+        assertEquals(count, queue.getDepth());
+        assertWithin("Retained heap per spilled event", retained,
+                count * SPILLED_EVENT_BUDGET);
+    }
+
+    private interface Measurement {
+        long run() throws IOException;
+    }
+
+    private static long lowest(Measurement measurement) {
+        long lowest = Long.MAX_VALUE;
+        try {
+            for (int i = 0; i < RUNS; i++) {
+                // The first runs warm up the code and are not expected to win
+                lowest = Math.min(lowest, measurement.run());
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return lowest;
+    }
+
+    private static void assertWithin(String name, long bytes, long budget) {
+        assertTrue(String.format("%s allocated %d bytes, over its budget of %d",
+                name, bytes, budget), bytes <= budget + SLACK);
+    }
+
+    private static Queue newQueue() {
+        return new Queue(null, USER_ID_PROVIDER, UPLOAD_REQUESTER, QUEUE_CONFIG,
+                new VirtualClock(0));
+    }
+
+    private static void appendAll(Queue queue, List<MobileEventJson> events) {
+        for (MobileEventJson event : events) {
+            queue.append(event);
+        }
+    }
+
+    /**
+     * @return an App State event like the ones AppStateCollector makes
+     */
+    private static MobileEventJson appState(int i) {
+        return new MobileEventJson()
+                .withTime(1500000000000L + i)
+                .withInstallationId("a1b2c3d4e5f60718")
+                .withAndroidAppState(new AndroidAppStateJson()
+                        .withActivityClassName("MainActivity")
+                        .withBatteryLevel(0.5 + (i % 50) / 100.0)
+                        .withBatteryState(2L)
+                        .withBatteryHealth(2L)
+                        .withPlugState(1L)
+                        .withNetworkAddresses(Arrays.asList(
+                                "192.168.1." + (i % 250), "fe80::1c2b:3d4e:5f60:7182"))
+                        .withSdkVersion(Sift.SDK_VERSION)
+                        .withLocation(new AndroidDeviceLocationJson()
+                                .withLatitude(37.7749 + i / 1e6)
+                                .withLongitude(-122.4194 - i / 1e6)));
+    }
+
+    private static List<MobileEventJson> appStates(int count) {
+        List<MobileEventJson> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            events.add(appState(i));
+        }
+        return events;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // A single request may not collect everything
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    private static Context mockContext(SharedPreferences preferences) {
+        Context ctx = mock(Context.class);
+        when(ctx.getSharedPreferences(anyString(), anyInt())).thenReturn(preferences);
+        when(ctx.getApplicationContext()).thenReturn(ctx);
+        return ctx;
+    }
+}
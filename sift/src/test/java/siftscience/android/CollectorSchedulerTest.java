@@ -0,0 +1,209 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CollectorSchedulerTest {
+
+    private static class FakeScheduler extends CollectorScheduler {
+        long now = TimeUnit.HOURS.toMillis(1);
+        long cpuTime = 0;
+        final List<Runnable> scheduled = new ArrayList<>();
+        final List<Long> delays = new ArrayList<>();
+        final List<Future<?>> futures = new ArrayList<>();
+
+        FakeScheduler(long budget) {
+            super(null, budget, CollectorScheduler.DEFAULT_COALESCE_WINDOW);
+        }
+
+        @Override
+        Future<?> execute(Runnable runnable, long delay) {
+            scheduled.add(runnable);
+            delays.add(delay);
+            Future<?> future = new FutureTask<Void>(runnable, null);
+            futures.add(future);
+            return future;
+        }
+
+        @Override
+        long elapsedRealtime() {
+            return now;
+        }
+
+        @Override
+        long threadCpuTime() {
+            return cpuTime;
+        }
+    }
+
+    private static class FakeCollector implements Collector {
+        private final String name;
+        private final long interval;
+        private final long cost;
+        private final FakeScheduler scheduler;
+        private final List<String> runs;
+
+        FakeCollector(String name, long interval, long cost,
+                      FakeScheduler scheduler, List<String> runs) {
+            this.name = name;
+            this.interval = interval;
+            this.cost = cost;
+            this.scheduler = scheduler;
+            this.runs = runs;
+        }
+
+        @Override
+        public void collect() {
+            runs.add(name);
+            scheduler.cpuTime += TimeUnit.MILLISECONDS.toNanos(cost);
+        }
+
+        @Override
+        public long getInterval() {
+            return interval;
+        }
+
+        @Override
+        public long getCost() {
+            return cost;
+        }
+    }
+
+    @Test
+    public void testInterval() {
+        List<String> runs = new ArrayList<>();
+        FakeScheduler scheduler = new FakeScheduler(CollectorScheduler.DEFAULT_CYCLE_BUDGET);
+        scheduler.register(new FakeCollector("every", 0, 1, scheduler, runs));
+        scheduler.register(new FakeCollector("minute", TimeUnit.MINUTES.toMillis(1), 1,
+                scheduler, runs));
+
+        scheduler.runCycle();
+        assertEquals(2, runs.size());
+
+        scheduler.now += TimeUnit.SECONDS.toMillis(30);
+        scheduler.runCycle();
+        assertEquals(3, runs.size());
+        assertEquals("every", runs.get(2));
+
+        scheduler.now += TimeUnit.SECONDS.toMillis(30);
+        scheduler.runCycle();
+        assertEquals(5, runs.size());
+    }
+
+    @Test
+    public void testRegisterTwice() {
+        List<String> runs = new ArrayList<>();
+        FakeScheduler scheduler = new FakeScheduler(CollectorScheduler.DEFAULT_CYCLE_BUDGET);
+        Collector collector = new FakeCollector("a", 0, 1, scheduler, runs);
+        scheduler.register(collector);
+        scheduler.register(collector);
+
+        scheduler.runCycle();
+        assertEquals(1, runs.size());
+    }
+
+    @Test
+    public void testBudgetDefersCollectors() {
+        List<String> runs = new ArrayList<>();
+        FakeScheduler scheduler = new FakeScheduler(TimeUnit.MILLISECONDS.toNanos(30));
+        scheduler.register(new FakeCollector("a", 0, 20, scheduler, runs));
+        scheduler.register(new FakeCollector("b", 0, 20, scheduler, runs));
+        scheduler.register(new FakeCollector("c", 0, 5, scheduler, runs));
+
+        // a runs, b does not fit the remaining budget, c does
+        scheduler.runCycle();
+        assertEquals(2, runs.size());
+        assertEquals("a", runs.get(0));
+        assertEquals("c", runs.get(1));
+
+        // b is now the most overdue collector and runs first
+        scheduler.now += 1;
+        scheduler.runCycle();
+        assertEquals("b", runs.get(2));
+    }
+
+    @Test
+    public void testFailingCollectorDoesNotStopCycle() {
+        List<String> runs = new ArrayList<>();
+        FakeScheduler scheduler = new FakeScheduler(CollectorScheduler.DEFAULT_CYCLE_BUDGET);
+        scheduler.register(new Collector() {
+            @Override
+            public void collect() {
+                throw new IllegalStateException();
+            }
+
+            @Override
+            public long getInterval() {
+                return 0;
+            }
+
+            @Override
+            public long getCost() {
+                return 0;
+            }
+        });
+        scheduler.register(new FakeCollector("a", 0, 1, scheduler, runs));
+
+        scheduler.runCycle();
+        assertEquals(1, runs.size());
+    }
+
+    @Test
+    public void testRequestsAreCoalesced() {
+        List<String> runs = new ArrayList<>();
+        FakeScheduler scheduler = new FakeScheduler(CollectorScheduler.DEFAULT_CYCLE_BUDGET);
+        scheduler.register(new FakeCollector("a", 0, 1, scheduler, runs));
+
+        for (int i = 0; i < 10; i++) {
+            scheduler.requestCycle();
+        }
+        assertEquals(1, scheduler.scheduled.size());
+        assertEquals(0, (long) scheduler.delays.get(0));
+        assertEquals(9, scheduler.getCoalescedRequests());
+
+        scheduler.scheduled.get(0).run();
+        assertEquals(1, runs.size());
+
+        // A request right after a cycle waits for the rest of the window
+        scheduler.now += 200;
+        scheduler.requestCycle();
+        scheduler.requestCycle();
+        assertEquals(2, scheduler.scheduled.size());
+        assertEquals(CollectorScheduler.DEFAULT_COALESCE_WINDOW - 200,
+                (long) scheduler.delays.get(1));
+
+        scheduler.now += CollectorScheduler.DEFAULT_COALESCE_WINDOW;
+        scheduler.scheduled.get(1).run();
+        assertEquals(2, runs.size());
+
+        // Once the window has passed, a request is scheduled immediately
+        scheduler.now += CollectorScheduler.DEFAULT_COALESCE_WINDOW;
+        scheduler.requestCycle();
+        assertEquals(0, (long) scheduler.delays.get(2));
+    }
+
+    @Test
+    public void testCancel() {
+        List<String> runs = new ArrayList<>();
+        FakeScheduler scheduler = new FakeScheduler(CollectorScheduler.DEFAULT_CYCLE_BUDGET);
+        scheduler.register(new FakeCollector("a", 0, 1, scheduler, runs));
+
+        scheduler.requestCycle();
+        scheduler.cancel();
+        assertTrue(scheduler.futures.get(0).isCancelled());
+
+        // A request after cancelling is not folded into the cancelled cycle
+        scheduler.requestCycle();
+        assertEquals(2, scheduler.scheduled.size());
+    }
+}
@@ -0,0 +1,215 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DeviceStateMonitorTest {
+
+    @Test
+    public void testUnknownBeforeStart() {
+        DeviceStateMonitor monitor = new DeviceStateMonitor(mockContext(null));
+
+        DeviceStateMonitor.Snapshot snapshot = monitor.getSnapshot();
+        assertEquals(-1, snapshot.batteryLevel, 0);
+        assertEquals(-1, snapshot.batteryState);
+        assertEquals(-1, snapshot.batteryHealth);
+        assertEquals(-1, snapshot.plugState);
+    }
+
+    @Test
+    public void testStickyBatteryOnStart() {
+        Context context = mockContext(mockBatteryIntent(50, 100, 2, 2, 1));
+        DeviceStateMonitor monitor = new DeviceStateMonitor(context);
+        monitor.start();
+        // Starting twice must not register the receivers again
+        monitor.start();
+
+        verify(context, times(2)).registerReceiver(any(BroadcastReceiver.class),
+                any(IntentFilter.class));
+
+        DeviceStateMonitor.Snapshot snapshot = monitor.getSnapshot();
+        assertEquals(0.5, snapshot.batteryLevel, 0);
+        assertEquals(2, snapshot.batteryState);
+        assertEquals(2, snapshot.batteryHealth);
+        assertEquals(1, snapshot.plugState);
+    }
+
+    @Test
+    public void testBatteryChanged() {
+        DeviceStateMonitor monitor = new DeviceStateMonitor(
+                mockContext(mockBatteryIntent(50, 100, 2, 2, 1)));
+        monitor.start();
+
+        DeviceStateMonitor.Snapshot before = monitor.getSnapshot();
+        // Reading again without a broadcast returns the same snapshot
+        assertSame(before, monitor.getSnapshot());
+
+        monitor.onBatteryChanged(mockBatteryIntent(40, 100, 3, 2, 0));
+
+        DeviceStateMonitor.Snapshot after = monitor.getSnapshot();
+        assertEquals(0.4, after.batteryLevel, 0);
+        assertEquals(3, after.batteryState);
+        assertEquals(0, after.plugState);
+        assertEquals(before.networkAddresses, after.networkAddresses);
+    }
+
+    @Test
+    public void testConnectivityChanged() {
+        DeviceStateMonitor monitor = new DeviceStateMonitor(mockContext(null));
+        final List<Boolean> changes = new ArrayList<>();
+        monitor.setListener(new ConnectivitySource.Listener() {
+            @Override
+            public void onConnectivityChanged(boolean connected) {
+                changes.add(connected);
+            }
+        });
+        // Connected until a broadcast says otherwise
+        assertTrue(monitor.isConnected());
+
+        monitor.onConnectivityChanged(mockConnectivityIntent(true));
+        assertFalse(monitor.isConnected());
+        // Repeated broadcasts of the same state are not reported again
+        monitor.onConnectivityChanged(mockConnectivityIntent(true));
+        monitor.onConnectivityChanged(mockConnectivityIntent(false));
+        assertTrue(monitor.isConnected());
+
+        assertEquals(Arrays.asList(false, true), changes);
+    }
+
+    @Test
+    public void testMeteredChanged() {
+        ConnectivityManager manager = mock(ConnectivityManager.class);
+        Context context = mockContext(null);
+        when(context.getSystemService(Context.CONNECTIVITY_SERVICE)).thenReturn(manager);
+        DeviceStateMonitor monitor = new DeviceStateMonitor(context);
+        final List<Boolean> changes = new ArrayList<>();
+        monitor.setListener(new ConnectivitySource.Listener() {
+            @Override
+            public void onConnectivityChanged(boolean connected) {
+                changes.add(connected);
+            }
+        });
+        // Unmetered until a broadcast says otherwise
+        assertFalse(monitor.isMetered());
+
+        when(manager.isActiveNetworkMetered()).thenReturn(true);
+        monitor.onConnectivityChanged(
+                mockConnectivityIntent(false, ConnectivityManager.TYPE_MOBILE, true));
+        assertTrue(monitor.isMetered());
+        when(manager.isActiveNetworkMetered()).thenReturn(false);
+        monitor.onConnectivityChanged(
+                mockConnectivityIntent(false, ConnectivityManager.TYPE_WIFI, true));
+        assertFalse(monitor.isMetered());
+        // Mobile data going down while on wifi leaves the device on wifi
+        monitor.onConnectivityChanged(
+                mockConnectivityIntent(false, ConnectivityManager.TYPE_MOBILE, false));
+        assertFalse(monitor.isMetered());
+        // Wifi went down and the device fell back to mobile data
+        when(manager.isActiveNetworkMetered()).thenReturn(true);
+        monitor.onConnectivityChanged(
+                mockConnectivityIntent(false, ConnectivityManager.TYPE_WIFI, false));
+        assertTrue(monitor.isMetered());
+
+        // Moving between networks is reported while staying connected
+        assertEquals(Arrays.asList(true, true, true), changes);
+        assertTrue(monitor.isConnected());
+    }
+
+    @Test
+    public void testUnmeteredWithoutPermission() {
+        ConnectivityManager manager = mock(ConnectivityManager.class);
+        when(manager.isActiveNetworkMetered()).thenThrow(new SecurityException());
+        Context context = mockContext(null);
+        when(context.getSystemService(Context.CONNECTIVITY_SERVICE)).thenReturn(manager);
+        DeviceStateMonitor monitor = new DeviceStateMonitor(context);
+
+        monitor.onConnectivityChanged(
+                mockConnectivityIntent(false, ConnectivityManager.TYPE_MOBILE, true));
+        assertTrue(monitor.isConnected());
+        assertFalse(monitor.isMetered());
+    }
+
+    @Test
+    public void testChargingChanged() {
+        DeviceStateMonitor monitor = new DeviceStateMonitor(
+                mockContext(mockBatteryIntent(50, 100, 3, 2, 0)));
+        final List<Boolean> changes = new ArrayList<>();
+        monitor.setListener(new PowerSource.Listener() {
+            @Override
+            public void onChargingChanged(boolean charging) {
+                changes.add(charging);
+            }
+        });
+        assertFalse(monitor.isCharging());
+
+        monitor.start();
+        assertFalse(monitor.isCharging());
+        monitor.onBatteryChanged(mockBatteryIntent(50, 100, 2, 2, 1));
+        assertTrue(monitor.isCharging());
+        // A new battery level while plugged in is not a change
+        monitor.onBatteryChanged(mockBatteryIntent(60, 100, 2, 2, 1));
+        monitor.onBatteryChanged(mockBatteryIntent(60, 100, 3, 2, 0));
+        assertFalse(monitor.isCharging());
+
+        assertEquals(Arrays.asList(true, false), changes);
+    }
+
+    private Intent mockConnectivityIntent(boolean noConnectivity) {
+        Intent intent = mock(Intent.class);
+        when(intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false))
+                .thenReturn(noConnectivity);
+        return intent;
+    }
+
+    private Intent mockConnectivityIntent(boolean noConnectivity, int type, boolean connected) {
+        NetworkInfo info = mock(NetworkInfo.class);
+        when(info.getType()).thenReturn(type);
+        when(info.isConnected()).thenReturn(connected);
+
+        Intent intent = mockConnectivityIntent(noConnectivity);
+        when(intent.<NetworkInfo>getParcelableExtra(ConnectivityManager.EXTRA_NETWORK_INFO))
+                .thenReturn(info);
+        return intent;
+    }
+
+    private Intent mockBatteryIntent(int level, int scale, int status, int health, int plugged) {
+        Intent intent = mock(Intent.class);
+        when(intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1)).thenReturn(level);
+        when(intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1)).thenReturn(scale);
+        when(intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1)).thenReturn(status);
+        when(intent.getIntExtra(BatteryManager.EXTRA_HEALTH, -1)).thenReturn(health);
+        when(intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, -1)).thenReturn(plugged);
+        return intent;
+    }
+
+    private Context mockContext(Intent stickyIntent) {
+        Context ctx = mock(Context.class);
+        when(ctx.getApplicationContext()).thenReturn(ctx);
+        when(ctx.registerReceiver(any(BroadcastReceiver.class), any(IntentFilter.class)))
+                .thenReturn(stickyIntent);
+        return ctx;
+    }
+}
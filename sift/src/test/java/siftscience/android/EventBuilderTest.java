@@ -0,0 +1,67 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import com.sift.api.representations.MobileEventJson;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class EventBuilderTest {
+
+    @Test
+    public void testToMobileEventJson() {
+        Event event = new Event.Builder("checkout_step")
+                .withPath("/checkout")
+                .withField("step", 3)
+                .withField("total", 9.5)
+                .withField("express", false)
+                .withField("coupon", "SPRING")
+                .withField("gift", "yes")
+                .build();
+
+        MobileEventJson json = event.toMobileEventJson(1000);
+        assertEquals("checkout_step", json.getMobileEventType());
+        assertEquals("/checkout", json.getPath());
+        assertEquals(1000L, (long) json.getTime());
+        assertEquals(5, json.getFields().size());
+        assertEquals("3", json.getFields().get("step"));
+        assertEquals("9.5", json.getFields().get("total"));
+        assertEquals("false", json.getFields().get("express"));
+        assertEquals("SPRING", json.getFields().get("coupon"));
+        assertEquals("yes", json.getFields().get("gift"));
+    }
+
+    @Test
+    public void testExplicitTime() {
+        Event event = new Event.Builder("screen_time").withTime(42).build();
+        MobileEventJson json = event.toMobileEventJson(1000);
+        assertEquals(42L, (long) json.getTime());
+        assertNull(json.getFields());
+    }
+
+    @Test
+    public void testFieldIsReplaced() {
+        Event event = new Event.Builder("screen_time")
+                .withField("screen", "home")
+                .withField("screen", "cart")
+                .build();
+        assertEquals(1, event.getFieldCount());
+        assertEquals("cart", event.getField("screen"));
+    }
+
+    @Test
+    public void testBuilderReuseDoesNotChangeBuiltEvents() {
+        Event.Builder builder = new Event.Builder("screen_time").withField("screen", "home");
+        Event first = builder.build();
+        Event second = builder.withField("screen", "cart").withField("ms", 12).build();
+
+        assertEquals("home", first.getField("screen"));
+        assertEquals(1, first.getFieldCount());
+        assertNull(first.getField("ms"));
+        assertEquals("cart", second.getField("screen"));
+        assertEquals(2, second.getFieldCount());
+    }
+}
@@ -0,0 +1,241 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import com.google.gson.annotations.SerializedName;
+import com.sift.api.representations.AndroidAppStateJson;
+import com.sift.api.representations.AndroidDeviceLocationJson;
+import com.sift.api.representations.AndroidDevicePropertiesJson;
+import com.sift.api.representations.AndroidInstalledAppJson;
+import com.sift.api.representations.MobileEventJson;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EventCodecTest {
+    @Test
+    public void testRoundTrip() throws IOException {
+        Map<String, String> fields = new HashMap<>();
+        fields.put("screen", "home");
+        fields.put("duration_ms", "1200");
+
+        Map<String, List<MobileEventJson>> streams = new LinkedHashMap<>();
+        streams.put("siftscience.android.app", appStates(3));
+        streams.put("siftscience.android.device", Collections.singletonList(
+                new MobileEventJson()
+                        .withTime(1500000000000L)
+                        .withInstallationId("a1b2c3d4e5f60718")
+                        .withAndroidDeviceProperties(new AndroidDevicePropertiesJson()
+                                .withAppName("Hello Sift")
+                                .withDeviceModel("Pixel")
+                                .withEvidenceFilesPresent(Arrays.asList("/system/xbin/su", null))
+                                .withInstalledApps(Arrays.asList(
+                                        new AndroidInstalledAppJson()
+                                                .withPackageName("com.example")
+                                                .withAppName("Example"),
+                                        null)))));
+        streams.put("siftscience.android.custom", Arrays.asList(
+                new MobileEventJson()
+                        .withTime(1500000005000L)
+                        .withPath("/home")
+                        .withMobileEventType("screen_time")
+                        .withUserId("gary")
+                        .withFields(fields),
+                // Events of a queue need not be in time order
+                new MobileEventJson()
+                        .withTime(1500000001000L)
+                        .withPath("/checkout"),
+                new MobileEventJson()
+                        .withPath("/untimed")));
+
+        assertEquals(streams, decode(EventCodec.encode(streams)));
+    }
+
+    @Test
+    public void testEveryPropertyRoundTrips() throws Exception {
+        // Fails when a property is added to the schema but not to the codec
+        MobileEventJson event = populate(MobileEventJson.class, new int[]{0});
+
+        MobileEventJson decoded = decode(EventCodec.encode(
+                Collections.singletonMap("q", Collections.singletonList(event))))
+                .get("q").get(0);
+
+        assertEquals(Sift.GSON.toJson(event), Sift.GSON.toJson(decoded));
+        assertEquals(event, decoded);
+    }
+
+    @Test
+    public void testSmallerThanJson() {
+        List<MobileEventJson> events = appStates(64);
+
+        int json = Sift.GSON.toJson(events).getBytes(StandardCharsets.UTF_8).length;
+        int binary = EventCodec.encode(Collections.singletonMap("q", events)).length;
+
+        assertTrue(String.format("%d bytes encoded, %d bytes of JSON", binary, json),
+                binary * 4 < json);
+    }
+
+    @Test
+    public void testAppendedBlocks() throws IOException {
+        List<MobileEventJson> events = appStates(5);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(EventCodec.encode(Collections.singletonMap("a", events.subList(0, 2))));
+        out.write(EventCodec.encode(Collections.singletonMap("b", events.subList(2, 3))));
+        out.write(EventCodec.encode(Collections.singletonMap("a", events.subList(3, 5))));
+
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        Map<String, List<MobileEventJson>> streams = new HashMap<>();
+        assertTrue(EventCodec.decode(in, streams));
+        assertTrue(EventCodec.decode(in, streams));
+        assertTrue(EventCodec.decode(in, streams));
+        assertFalse(EventCodec.decode(in, streams));
+
+        assertEquals(Arrays.asList(events.get(0), events.get(1), events.get(3), events.get(4)),
+                streams.get("a"));
+        assertEquals(events.subList(2, 3), streams.get("b"));
+    }
+
+    @Test
+    public void testSkipsUnknownFields() throws IOException {
+        byte[] payload = {
+                // Strings "q" and "/home"
+                2, 1, 'q', 5, '/', 'h', 'o', 'm', 'e',
+                // One queue "q" of one event
+                1, 1, 1,
+                // Tag 20 of a later version, a number
+                (byte) 0xa0, 1, 5,
+                // Tag 21 of a later version, an object holding a string
+                (byte) 0xab, 1, 1 << 3 | 2, 2, 0,
+                // The path
+                2 << 3 | 2, 2,
+                0
+        };
+        byte[] block = new byte[payload.length + 4];
+        block[0] = 'S';
+        block[1] = 'E';
+        block[2] = EventCodec.VERSION;
+        block[3] = (byte) payload.length;
+        System.arraycopy(payload, 0, block, 4, payload.length);
+
+        assertEquals(Collections.singletonMap("q",
+                Collections.singletonList(new MobileEventJson().withPath("/home"))),
+                decode(block));
+    }
+
+    @Test
+    public void testCorruptBlockLeavesStreams() {
+        byte[] block = EventCodec.encode(Collections.singletonMap("q", appStates(2)));
+        Map<String, List<MobileEventJson>> streams = new HashMap<>();
+
+        // Truncated
+        assertCorrupt(Arrays.copyOf(block, block.length - 1), streams);
+        // Unknown version
+        byte[] version = block.clone();
+        version[2] = EventCodec.VERSION + 1;
+        assertCorrupt(version, streams);
+        // Not a block
+        assertCorrupt("{\"queue\":[]}".getBytes(StandardCharsets.UTF_8), streams);
+
+        assertTrue(streams.isEmpty());
+    }
+
+    private static void assertCorrupt(byte[] bytes, Map<String, List<MobileEventJson>> streams) {
+        try {
+            EventCodec.decode(new ByteArrayInputStream(bytes), streams);
+            fail("Decoded a corrupt block");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private static Map<String, List<MobileEventJson>> decode(byte[] block) throws IOException {
+        Map<String, List<MobileEventJson>> streams = new HashMap<>();
+        InputStream in = new ByteArrayInputStream(block);
+        assertTrue(EventCodec.decode(in, streams));
+        assertFalse(EventCodec.decode(in, streams));
+        return streams;
+    }
+
+    private static List<MobileEventJson> appStates(int count) {
+        List<MobileEventJson> events = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            events.add(new MobileEventJson()
+                    .withTime(1500000000000L + i * 1000)
+                    .withUserId("gary")
+                    .withInstallationId("a1b2c3d4e5f60718")
+                    .withAndroidAppState(new AndroidAppStateJson()
+                            .withActivityClassName("MainActivity")
+                            .withSdkVersion("1.3.1")
+                            .withBatteryLevel(0.5 + (i % 50) / 100.0)
+                            .withBatteryState(2L)
+                            .withBatteryHealth(2L)
+                            .withPlugState(-1L)
+                            .withNetworkAddresses(Arrays.asList(
+                                    "192.168.1." + (i % 250), "fe80::1c2b:3d4e:5f60:7182"))
+                            .withLocation(new AndroidDeviceLocationJson()
+                                    .withLatitude(37.7749 + i / 1e6)
+                                    .withLongitude(-122.4194 - i / 1e6))));
+        }
+        return events;
+    }
+
+    /**
+     * Sets every property of a generated model to a distinct value.
+     */
+    private static <T> T populate(Class<T> type, int[] next) throws Exception {
+        T object = type.getDeclaredConstructor().newInstance();
+        for (Field field : type.getDeclaredFields()) {
+            if (field.getAnnotation(SerializedName.class) == null) {
+                continue;
+            }
+            field.setAccessible(true);
+            field.set(object, value(field.getGenericType(), next));
+        }
+        return object;
+    }
+
+    private static Object value(Type type, int[] next) throws Exception {
+        int i = ++next[0];
+        if (type == String.class) {
+            return "value" + i;
+        } else if (type == Long.class) {
+            return (long) -i;
+        } else if (type == Double.class) {
+            return i + 0.25;
+        } else if (type instanceof ParameterizedType) {
+            ParameterizedType parameterized = (ParameterizedType) type;
+            Type[] arguments = parameterized.getActualTypeArguments();
+            if (parameterized.getRawType() == List.class) {
+                return Arrays.asList(value(arguments[0], next), value(arguments[0], next));
+            } else if (parameterized.getRawType() == Map.class) {
+                Map<Object, Object> map = new HashMap<>();
+                map.put(value(arguments[0], next), value(arguments[1], next));
+                return map;
+            }
+        } else if (type instanceof Class &&
+                ((Class<?>) type).getName().startsWith("com.sift.api.representations.")) {
+            return populate((Class<?>) type, next);
+        }
+        throw new AssertionError("Unexpected property type " + type);
+    }
+}
@@ -0,0 +1,390 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.extension.ResponseDefinitionTransformerV2;
+import com.github.tomakehurst.wiremock.http.Fault;
+import com.github.tomakehurst.wiremock.http.ResponseDefinition;
+import com.github.tomakehurst.wiremock.stubbing.ServeEvent;
+import com.google.gson.annotations.SerializedName;
+import com.sift.api.representations.AndroidAppStateJson;
+import com.sift.api.representations.AndroidDevicePropertiesJson;
+import com.sift.api.representations.MobileEventJson;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Drives a SiftImpl with synthetic App State and device properties events
+ * against a local WireMock server that injects latency, 5xx responses and
+ * connection resets. It fails if any event is lost or dropped for another
+ * reason than the injected faults, and reports throughput, delivery
+ * latency, retry amplification and peak heap with the failure.
+ *
+ * Skipped unless sift.load is set:
+ *
+ *   ./gradlew :sift:testReleaseUnitTest --tests siftscience.android.LoadHarness \
+ *       -Dsift.load=true -Dsift.load.appStateRate=500 -Dsift.load.errorRate=0.2
+ *
+ * Rates are events per second. Error and reset rates are the fractions of
+ * requests answered with a 503 or a connection reset.
+ */
+public class LoadHarness {
+    private static final String ACCOUNT_ID = "load";
+    private static final String BEACON_KEY = "harness";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final long durationSeconds = Long.getLong("sift.load.durationSeconds", 30);
+    private final long drainSeconds = Long.getLong("sift.load.drainSeconds", 20);
+    private final double appStateRate = doubleProperty("sift.load.appStateRate", 200);
+    private final double devicePropertiesRate =
+            doubleProperty("sift.load.devicePropertiesRate", 1);
+    private final int latencyMillis = Integer.getInteger("sift.load.latencyMillis", 100);
+    private final double errorRate = doubleProperty("sift.load.errorRate", 0.05);
+    private final double resetRate = doubleProperty("sift.load.resetRate", 0.01);
+
+    private final Ingestion ingestion = new Ingestion();
+    private WireMockServer server;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(Boolean.getBoolean("sift.load"));
+
+        server = new WireMockServer(WireMockConfiguration.wireMockConfig()
+                .dynamicPort()
+                .extensions(ingestion));
+        server.start();
+        server.stubFor(WireMock.post(WireMock.urlPathEqualTo(
+                "/v3/accounts/" + ACCOUNT_ID + "/mobile_events"))
+                .willReturn(WireMock.ok()));
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testLoad() throws InterruptedException {
+        Sift.Config config = new Sift.Config.Builder()
+                .withAccountId(ACCOUNT_ID)
+                .withBeaconKey(BEACON_KEY)
+                .withServerUrlFormat(String.format(
+                        "http://localhost:%d/v3/accounts/%%s/mobile_events", server.port()))
+                .build();
+
+        DropCounter drops = new DropCounter();
+        List<MemoryPoolMXBean> heapPools = heapPools();
+        for (MemoryPoolMXBean pool : heapPools) {
+            pool.resetPeakUsage();
+        }
+
+        SiftImpl sift = new SiftImpl(mockContext(new MemorySharedPreferences()), config,
+                null, false);
+        sift.setEventListener(drops);
+
+        // Pace both streams off one clock so bursts do not pile up
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long appStateEvents = 0;
+        long devicePropertiesEvents = 0;
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            double elapsedSeconds = (now - start) / 1e9;
+            while (appStateEvents < appStateRate * elapsedSeconds) {
+                sift.appendAppStateEvent(appStateEvent(appStateEvents++));
+            }
+            while (devicePropertiesEvents < devicePropertiesRate * elapsedSeconds) {
+                sift.appendDevicePropertiesEvent(
+                        devicePropertiesEvent(devicePropertiesEvents++));
+            }
+            Thread.sleep(1);
+        }
+        long generated = appStateEvents + devicePropertiesEvents;
+        double generateSeconds = (System.nanoTime() - start) / 1e9;
+
+        // Let age based flushes and retries settle before stopping
+        Thread.sleep(TimeUnit.SECONDS.toMillis(drainSeconds));
+        sift.stop();
+        double totalSeconds = (System.nanoTime() - start) / 1e9;
+
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            peakHeap += pool.getPeakUsage().getUsed();
+        }
+
+        // Events that were not uploaded by the end are put back in the queues
+        MetricsSnapshot metrics = sift.getMetrics();
+        long persisted = 0;
+        for (int depth : metrics.getQueueDepths().values()) {
+            persisted += depth;
+        }
+        long deduped = metrics.getCounter(Metrics.EVENTS_DEDUPED);
+        long batches = metrics.getCounter(Metrics.FLUSHES_SIZE) +
+                metrics.getCounter(Metrics.FLUSHES_AGE) +
+                metrics.getCounter(Metrics.FLUSHES_FORCED) +
+                metrics.getCounter(Metrics.FLUSHES_STOP) +
+                metrics.getCounter(Metrics.FLUSHES_RESUME);
+        long attempts = metrics.getCounter(Metrics.UPLOAD_ATTEMPTS);
+
+        long delivered = ingestion.delivered();
+        long dropped = drops.total();
+        long lost = generated - deduped - delivered - persisted - dropped;
+
+        List<Long> latencies = ingestion.latencies();
+        Collections.sort(latencies);
+
+        // Reported with any failure, to tell a regression from a fault mix
+        // that is too harsh
+        String summary = String.format(
+                "%d s at %.0f app state/s and %.0f device properties/s, %d ms server " +
+                        "latency, %.0f%% 5xx, %.0f%% resets: %d events generated " +
+                        "(%.1f/s), %d delivered (%.1f/s) in %d requests, delivery latency " +
+                        "p50 %d ms p99 %d ms, %d attempts for %d batches, peak heap " +
+                        "%.1f MB, %d deduped, %d persisted, %d dropped (%s), %d lost",
+                durationSeconds, appStateRate, devicePropertiesRate, latencyMillis,
+                errorRate * 100, resetRate * 100, generated, generated / generateSeconds,
+                delivered, delivered / totalSeconds, ingestion.requests.get(),
+                percentile(latencies, 0.5), percentile(latencies, 0.99), attempts, batches,
+                peakHeap / (1024.0 * 1024.0), deduped, persisted, dropped, drops, lost);
+
+        assertEquals("Events unaccounted for: " + summary, 0, lost);
+        // Only the injected faults may drop events: resets fail a batch with
+        // an IO error and 5xx responses exhaust its retries
+        assertEquals("Unexplained drops: " + summary, 0, dropped -
+                drops.get(EventListener.DropReason.IO_ERROR) -
+                drops.get(EventListener.DropReason.RETRIES_EXHAUSTED));
+        if (resetRate == 0) {
+            assertEquals("IO errors without resets: " + summary, 0,
+                    drops.get(EventListener.DropReason.IO_ERROR));
+        }
+        if (errorRate == 0) {
+            assertEquals("Retries exhausted without 5xx: " + summary, 0,
+                    drops.get(EventListener.DropReason.RETRIES_EXHAUSTED));
+        }
+        assertEquals("Rejected tasks: " + summary, 0,
+                metrics.getCounter(Metrics.EVENTS_REJECTED));
+    }
+
+    private static MobileEventJson appStateEvent(long sequence) {
+        return new MobileEventJson()
+                .withPath("/app/" + sequence)
+                .withTime(System.currentTimeMillis())
+                .withAndroidAppState(new AndroidAppStateJson()
+                        .withActivityClassName("LoadActivity")
+                        .withBatteryLevel((double) (sequence % 100) / 100)
+                        .withBatteryState(2L)
+                        .withBatteryHealth(2L)
+                        .withPlugState(0L)
+                        .withNetworkAddresses(Collections.singletonList("10.0.0.1")));
+    }
+
+    private static MobileEventJson devicePropertiesEvent(long sequence) {
+        return new MobileEventJson()
+                .withPath("/device/" + sequence)
+                .withTime(System.currentTimeMillis())
+                .withAndroidDeviceProperties(new AndroidDevicePropertiesJson()
+                        .withAndroidId("load")
+                        .withDeviceManufacturer("sift")
+                        .withDeviceModel("harness")
+                        .withAppName("LoadHarness")
+                        .withAppVersion("1.0")
+                        .withSdkVersion("load"));
+    }
+
+    private static long percentile(List<Long> sorted, double p) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+    }
+
+    private static double doubleProperty(String key, double defaultValue) {
+        String value = System.getProperty(key);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pools.add(pool);
+            }
+        }
+        return pools;
+    }
+
+    private static Context mockContext(SharedPreferences preferences) {
+        Context ctx = mock(Context.class);
+        when(ctx.getSharedPreferences(anyString(), anyInt())).thenReturn(preferences);
+        when(ctx.getApplicationContext()).thenReturn(ctx);
+        return ctx;
+    }
+
+    private static class DropCounter implements EventListener {
+        private final AtomicLongArray counts = new AtomicLongArray(DropReason.values().length);
+
+        @Override
+        public void onDropped(long batchId, List<MobileEventJson> events, DropReason reason,
+                              long time) {
+            counts.addAndGet(reason.ordinal(), events.size());
+        }
+
+        long get(DropReason reason) {
+            return counts.get(reason.ordinal());
+        }
+
+        long total() {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                total += counts.get(i);
+            }
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (DropReason reason : DropReason.values()) {
+                long count = counts.get(reason.ordinal());
+                if (count > 0) {
+                    if (sb.length() > 0) {
+                        sb.append(", ");
+                    }
+                    sb.append(reason).append(' ').append(count);
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    // ListRequestJson does not capture the type of its data
+    private static class Batch {
+        @SerializedName("data")
+        List<MobileEventJson> data;
+    }
+
+    /**
+     * Stands in for the ingestion API. Answers each request with a
+     * connection reset, a 503 or a delayed 200, and records the events of
+     * the accepted ones.
+     */
+    private class Ingestion implements ResponseDefinitionTransformerV2 {
+        private final Random random = new Random(42);
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong duplicates = new AtomicLong();
+        private final Set<String> paths = new HashSet<>();
+        private final List<Long> latencies = new ArrayList<>();
+
+        @Override
+        public String getName() {
+            return "sift-ingestion";
+        }
+
+        @Override
+        public ResponseDefinition transform(ServeEvent serveEvent) {
+            requests.incrementAndGet();
+            double roll;
+            synchronized (random) {
+                roll = random.nextDouble();
+            }
+            if (roll < resetRate) {
+                return ResponseDefinitionBuilder.responseDefinition()
+                        .withFault(Fault.CONNECTION_RESET_BY_PEER)
+                        .build();
+            }
+            if (roll < resetRate + errorRate) {
+                return ResponseDefinitionBuilder.responseDefinition()
+                        .withStatus(503)
+                        .withFixedDelay(latencyMillis)
+                        .build();
+            }
+
+            received(serveEvent.getRequest().getBody());
+            return ResponseDefinitionBuilder.responseDefinition()
+                    .withStatus(200)
+                    .withFixedDelay(latencyMillis)
+                    .build();
+        }
+
+        private void received(byte[] body) {
+            Batch request;
+            try {
+                request = Sift.GSON.fromJson(new String(decode(body), UTF8), Batch.class);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                for (MobileEventJson event : request.data) {
+                    if (paths.add(event.getPath())) {
+                        latencies.add(now - event.getTime());
+                    } else {
+                        duplicates.incrementAndGet();
+                    }
+                }
+            }
+        }
+
+        synchronized long delivered() {
+            return paths.size();
+        }
+
+        synchronized List<Long> latencies() {
+            return new ArrayList<>(latencies);
+        }
+    }
+
+    // WireMock may or may not have inflated the body already
+    private static byte[] decode(byte[] body) throws IOException {
+        if (body.length < 2 || (body[0] & 0xff) != 0x1f || (body[1] & 0xff) != 0x8b) {
+            return body;
+        }
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(body));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
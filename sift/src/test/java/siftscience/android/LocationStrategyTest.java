@@ -0,0 +1,74 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import com.google.android.gms.location.LocationRequest;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LocationStrategyTest {
+
+    @Test
+    public void testFreshness() {
+        LocationStrategy strategy = new LocationStrategy(new Sift.Config.Builder()
+                .withLocationMaxAge(TimeUnit.MINUTES.toMillis(10))
+                .build());
+
+        long now = TimeUnit.HOURS.toNanos(1);
+
+        assertTrue(strategy.isFresh(now - TimeUnit.MINUTES.toNanos(9), now));
+        assertTrue(strategy.isFresh(now - TimeUnit.MINUTES.toNanos(10), now));
+        assertFalse(strategy.isFresh(now - TimeUnit.MINUTES.toNanos(11), now));
+        // Fixes without an elapsed realtime are never reused
+        assertFalse(strategy.isFresh(0, now));
+    }
+
+    @Test
+    public void testEscalation() {
+        LocationStrategy strategy = new LocationStrategy(new Sift.Config.Builder().build());
+
+        assertEquals(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY, strategy.getPriority());
+
+        assertTrue(strategy.escalate());
+        assertEquals(LocationRequest.PRIORITY_HIGH_ACCURACY, strategy.getPriority());
+
+        // Already at the highest priority
+        assertFalse(strategy.escalate());
+        assertEquals(LocationRequest.PRIORITY_HIGH_ACCURACY, strategy.getPriority());
+
+        strategy.onFix();
+        assertEquals(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY, strategy.getPriority());
+    }
+
+    @Test
+    public void testEscalationDisallowed() {
+        LocationStrategy strategy = new LocationStrategy(new Sift.Config.Builder()
+                .withAllowHighAccuracyLocation(false)
+                .build());
+
+        assertFalse(strategy.escalate());
+        assertEquals(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY, strategy.getPriority());
+    }
+
+    @Test
+    public void testCounters() {
+        Metrics metrics = new Metrics();
+        LocationStrategy strategy = new LocationStrategy(new Sift.Config.Builder().build(),
+                metrics);
+
+        strategy.recordRequest();
+        strategy.recordCacheHit();
+        strategy.recordCacheHit();
+
+        MetricsSnapshot snapshot = metrics.snapshot(Collections.<String, Integer>emptyMap(), 0);
+        assertEquals(1, snapshot.getCounter(Metrics.LOCATION_REQUESTS));
+        assertEquals(2, snapshot.getCounter(Metrics.LOCATION_CACHE_HITS));
+    }
+}
@@ -0,0 +1,142 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory SharedPreferences that counts its writes.
+ */
+class MemorySharedPreferences implements SharedPreferences {
+
+    Map<String, String> fields = new HashMap<>();
+    volatile int writes = 0;
+
+    class Editor implements SharedPreferences.Editor {
+
+        // Make a copy of fields
+        private final Map<String, String> newFields = new HashMap<>(fields);
+
+        @Override
+        public Editor putString(String key, String defValue) {
+            newFields.put(key, defValue);
+            return this;
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> defValues) {
+            throw new AssertionError();  // Not implemented.
+        }
+
+        @Override
+        public Editor putInt(String key, int defValue) {
+            throw new AssertionError();  // Not implemented.
+        }
+
+        @Override
+        public Editor putLong(String key, long defValue) {
+            throw new AssertionError();  // Not implemented.
+        }
+
+        @Override
+        public Editor putFloat(String key, float defValue) {
+            throw new AssertionError();  // Not implemented.
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean defValue) {
+            throw new AssertionError();  // Not implemented.
+        }
+
+        @Override
+        public Editor remove(String key) {
+            newFields.remove(key);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            newFields.clear();
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            fields = newFields;
+            writes++;
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            fields = newFields;
+            writes++;
+        }
+    }
+
+    @Override
+    public Map<String, String> getAll() {
+        return fields;
+    }
+
+    @Nullable
+    @Override
+    public String getString(String key, String defValue) {
+        String value = fields.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Nullable
+    @Override
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        throw new AssertionError();  // Not implemented
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        throw new AssertionError();  // Not implemented
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        throw new AssertionError();  // Not implemented
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        throw new AssertionError();  // Not implemented
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        throw new AssertionError();  // Not implemented
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return fields.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new Editor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(
+            OnSharedPreferenceChangeListener onSharedPreferenceChangeListener) {
+        throw new AssertionError();  // Not implemented
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(
+            OnSharedPreferenceChangeListener onSharedPreferenceChangeListener) {
+        throw new AssertionError();  // Not implemented
+    }
+}
@@ -0,0 +1,79 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+
+    @Test
+    public void testCounterSumsAcrossThreads() throws Exception {
+        final Metrics.Counter counter = new Metrics.Counter();
+        final int threads = 16;
+        final int increments = 10000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < increments; j++) {
+                        counter.increment();
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(threads * increments, counter.sum());
+    }
+
+    @Test
+    public void testHistogramBuckets() {
+        Metrics.Histogram histogram = new Metrics.Histogram(new long[]{10, 100});
+        histogram.record(0);
+        histogram.record(10);
+        histogram.record(11);
+        histogram.record(1000);
+
+        MetricsSnapshot.Histogram snapshot = histogram.snapshot();
+        assertTrue(Arrays.equals(new long[]{10, 100}, snapshot.getBounds()));
+        assertTrue(Arrays.equals(new long[]{2, 1, 1}, snapshot.getCounts()));
+        assertEquals(4, snapshot.getCount());
+        assertEquals(1021, snapshot.getSum());
+    }
+
+    @Test
+    public void testSnapshot() {
+        Metrics metrics = new Metrics();
+        metrics.uploadAttempts.increment();
+        metrics.recordStatusCode(200);
+        metrics.recordStatusCode(200);
+        metrics.recordStatusCode(503);
+        metrics.recordStatusCode(100);
+        metrics.recordStatusCode(599);
+        metrics.recordStatusCode(-1);
+        metrics.recordStatusCode(600);
+        metrics.uploadLatency.record(42);
+
+        MetricsSnapshot snapshot = metrics.snapshot(
+                Collections.singletonMap("queue", 3), 5);
+        assertEquals(1, snapshot.getCounter(Metrics.UPLOAD_ATTEMPTS));
+        assertEquals(2, snapshot.getCounter("upload.status.200"));
+        assertEquals(1, snapshot.getCounter("upload.status.503"));
+        assertEquals(0, snapshot.getCounter("upload.status.404"));
+        assertEquals(1, snapshot.getCounter("upload.status.100"));
+        assertEquals(1, snapshot.getCounter("upload.status.599"));
+        assertEquals(2, snapshot.getCounter(Metrics.UPLOAD_STATUS_OTHER));
+        assertEquals(5, snapshot.getCounter(Metrics.EVENTS_DROPPED));
+        assertEquals(1, snapshot.getHistograms().get(Metrics.UPLOAD_LATENCY).getCount());
+        assertEquals(3, (int) snapshot.getQueueDepths().get("queue"));
+    }
+}
@@ -2,15 +2,19 @@
 
 package siftscience.android;
 
+import android.content.Context;
+
 import com.sift.api.representations.AndroidAppStateJson;
 import com.sift.api.representations.AndroidDevicePropertiesJson;
 import com.sift.api.representations.MobileEventJson;
 
-import org.junit.After;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -19,17 +23,15 @@ import java.util.concurrent.TimeUnit;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.verifyNoInteractions;
 
 public class QueueTest {
-
-    @After
-    public void tearDown() {
-        Time.currentTime = 0;
-    }
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
 
     private static final Queue.UserIdProvider USER_ID_PROVIDER = new Queue.UserIdProvider() {
         @Override
@@ -97,64 +99,68 @@ public class QueueTest {
     public void testAcceptSameEventAfter() throws IOException {
         Queue.UploadRequester uploadRequester = mock(Queue.UploadRequester.class);
 
+        VirtualClock clock = new VirtualClock(1000);
         Queue queue = new Queue(null, USER_ID_PROVIDER, uploadRequester,
                 new Queue.Config.Builder()
                         .withAcceptSameEventAfter(60000)
                         .withUploadWhenOlderThan(TimeUnit.HOURS.toMillis(1))
                         .withUploadWhenMoreThan(10)
-                        .build());
+                        .build(),
+                clock);
 
         MobileEventJson event0, event1;
 
-        Time.currentTime = 1000;
         event0 = new MobileEventJson()
                 .withAndroidDeviceProperties(new AndroidDevicePropertiesJson()
                         .withAndroidId("foo0")
                         .withDeviceManufacturer("bar0")
                         .withDeviceModel("baz0")
                 )
-                .withTime(Time.currentTime)
+                .withTime(clock.now())
                 .withUserId("gary");
+        // The first event is uploaded right away since nothing was uploaded before
         queue.append(event0);
+        verify(uploadRequester).requestUpload(Collections.singletonList(event0));
+        reset(uploadRequester);
 
-        Time.currentTime++;
+        clock.advance(1);
         event1 = new MobileEventJson()
                 .withAndroidDeviceProperties(new AndroidDevicePropertiesJson()
                         .withAndroidId("foo0")
                         .withDeviceManufacturer("bar0")
                         .withDeviceModel("baz0")
                 )
-                .withTime(Time.currentTime)
+                .withTime(clock.now())
                 .withUserId("gary");
-        assertTrue(Time.currentTime == event1.getTime());
+        assertTrue(clock.now() == event1.getTime());
         queue.append(event1);
 
-        Time.currentTime++;
+        clock.advance(1);
         event1 = new MobileEventJson()
                 .withAndroidDeviceProperties(new AndroidDevicePropertiesJson()
                         .withAndroidId("foo0")
                         .withDeviceManufacturer("bar0")
                         .withDeviceModel("baz0")
                 )
-                .withTime(Time.currentTime)
+                .withTime(clock.now())
                 .withUserId("gary");
-        assertTrue(Time.currentTime == event1.getTime());
+        assertTrue(clock.now() == event1.getTime());
         queue.append(event1);
 
         verifyNoInteractions(uploadRequester);
 
-        assertEquals(Collections.singletonList(event0), queue.flush());
+        assertTrue(queue.flush().isEmpty());
 
-        Time.currentTime = 1000 + 60000;
+        clock.advance(60000 - 2);
         event1 = new MobileEventJson()
                 .withAndroidDeviceProperties(new AndroidDevicePropertiesJson()
                         .withAndroidId("foo0")
                         .withDeviceManufacturer("bar0")
                         .withDeviceModel("baz0")
                 )
-                .withTime(Time.currentTime)
+                .withTime(clock.now())
                 .withUserId("gary");
-        assertTrue(Time.currentTime == event1.getTime());
+        assertTrue(clock.now() == event1.getTime());
         queue.append(event1);
 
         verifyNoInteractions(uploadRequester);
@@ -198,9 +204,8 @@ public class QueueTest {
         Queue queue = new Queue(null, USER_ID_PROVIDER, uploadRequester,
                 new Queue.Config.Builder()
                         .withUploadWhenOlderThan(1)
-                        .build());
-
-        Time.currentTime = 1000;
+                        .build(),
+                new VirtualClock(1000));
 
         MobileEventJson event = new MobileEventJson()
                 .withAndroidDeviceProperties(new AndroidDevicePropertiesJson()
@@ -240,15 +245,17 @@ public class QueueTest {
 
     // Checks that appending after waiting will request an upload
     @Test
-    public void testUploadEventAfterWait() throws IOException, InterruptedException {
+    public void testUploadEventAfterWait() throws IOException {
         Queue.UploadRequester uploadRequester = mock(Queue.UploadRequester.class);
 
         // note that this TTL is 1 second
+        VirtualClock clock = new VirtualClock(System.currentTimeMillis());
         Queue queue = new Queue(null, USER_ID_PROVIDER, uploadRequester,
                 new Queue.Config.Builder()
                         .withUploadWhenMoreThan(5)
                         .withUploadWhenOlderThan(1000)
-                        .build());
+                        .build(),
+                clock);
 
         MobileEventJson event = new MobileEventJson()
                 .withAndroidDeviceProperties(new AndroidDevicePropertiesJson()
@@ -263,8 +270,8 @@ public class QueueTest {
         verify(uploadRequester).requestUpload(Collections.singletonList(event));
         reset(uploadRequester);
 
-        // Sleep for 2 seconds (in excess of TTL)
-        Thread.sleep(2000);
+        // Wait for 2 seconds (in excess of TTL)
+        clock.advance(2000);
 
         // Should have uploaded the second event (sufficiently stale)
         queue.append(event);
@@ -311,10 +318,16 @@ public class QueueTest {
                 "\"sdk_version\":\"0.9.7\",\"battery_level\":0.5,\"battery_state\":2," +
                 "\"battery_health\":2,\"plug_state\":1," +
                 "\"network_addresses\":[\"10.0.2.15\",\"fe80::5054:ff:fe12:3456\"]}}," +
-                "\"last_upload_timestamp\":1513206386326}";
+                "\"last_upload_timestamp\":1513206386326,\"last_upload_elapsed\":1326," +
+                "\"last_event_elapsed\":-1,\"archived_at\":1513206390000," +
+                "\"archived_at_elapsed\":5000,\"spilled\":0,\"spilled_since\":0}";
+
+        // Same boot as the archive, so the elapsed realtime baselines are kept
+        VirtualClock clock = new VirtualClock(1513206385000L);
+        clock.advance(5000);
 
         // First, test that we can construct a State from the archive
-        Object q = new Queue(queueState, USER_ID_PROVIDER, uploadRequester, null)
+        Object q = new Queue(queueState, USER_ID_PROVIDER, uploadRequester, null, clock)
                 .unarchive(queueState);
 
         Field field = q.getClass().getDeclaredField("config");
@@ -348,7 +361,8 @@ public class QueueTest {
         );
 
         // Next, test that we can archive back to the expected string
-        String archive = new Queue(queueState, USER_ID_PROVIDER, uploadRequester, config).archive();
+        String archive = new Queue(queueState, USER_ID_PROVIDER, uploadRequester, config, clock)
+                .archive();
         assertEquals(archive, queueState);
     }
 
@@ -410,4 +424,160 @@ public class QueueTest {
 
         assertEquals(queue.size(), 0);
     }
+
+    @Test
+    public void testDeferredQueueKeepsEvents() throws IOException {
+        final List<MobileEventJson> uploaded = new ArrayList<>();
+        final List<Long> waits = new ArrayList<>();
+        Queue.UploadRequester uploadRequester = new Queue.UploadRequester() {
+            @Override
+            public void requestUpload(List<MobileEventJson> events) {
+                uploaded.addAll(events);
+            }
+
+            @Override
+            public boolean isDeferred(Queue.Tier tier, long waited) {
+                waits.add(waited);
+                return tier == Queue.Tier.BULK;
+            }
+        };
+
+        VirtualClock clock = new VirtualClock(1000);
+        Metrics metrics = new Metrics();
+        Queue.Config config = new Queue.Config.Builder()
+                .withUploadWhenMoreThan(0)
+                .withTier(Queue.Tier.BULK)
+                .build();
+        Queue queue = new Queue(null, null, USER_ID_PROVIDER, uploadRequester, config, clock,
+                metrics);
+
+        queue.append(new MobileEventJson().withTime(clock.now()));
+        clock.advance(5000);
+        queue.append(new MobileEventJson().withTime(clock.now()));
+
+        // The wait is measured from the oldest event
+        assertEquals(Arrays.asList(0L, 5000L), waits);
+        assertTrue(uploaded.isEmpty());
+        assertTrue(queue.flushIfReady(false).isEmpty());
+        assertEquals(2, queue.getDepth());
+        // The held flush is counted once, not on every append
+        assertEquals(1, metrics.uploadsDeferred.sum());
+        assertEquals(2, queue.flushIfReady(true).size());
+
+        // The next held flush counts again
+        queue.append(new MobileEventJson().withTime(clock.now()));
+        assertEquals(2, metrics.uploadsDeferred.sum());
+        assertEquals(1, queue.flushIfReady(true).size());
+
+        // Forced uploads are not deferred by the tier
+        queue.append(new MobileEventJson().withTime(clock.now()));
+        queue.forceUpload();
+        assertEquals(1, uploaded.size());
+
+        // The tier is archived with the config
+        assertTrue(queue.archive().contains("\"tier\":\"bulk\""));
+        assertEquals(config, new Queue(queue.archive(), USER_ID_PROVIDER, uploadRequester, null,
+                clock).getConfig());
+    }
+
+    @Test
+    public void testSpill() throws IOException {
+        Queue.UploadRequester uploadRequester = mock(Queue.UploadRequester.class);
+        Context context = mock(Context.class);
+        when(context.getFilesDir()).thenReturn(folder.newFolder());
+        SpillStore spillStore = new SpillStore(context);
+
+        VirtualClock clock = new VirtualClock(1000);
+        Queue.Config config = new Queue.Config.Builder()
+                .withUploadWhenMoreThan(3)
+                .withUploadWhenOlderThan(TimeUnit.HOURS.toMillis(1))
+                .build();
+        Metrics metrics = new Metrics();
+        Queue queue = new Queue("checkout", null, USER_ID_PROVIDER, uploadRequester, config,
+                clock, metrics, spillStore);
+
+        // The first event is uploaded right away
+        queue.append(new MobileEventJson().withTime(clock.now()).withPath("/0"));
+        queue.append(new MobileEventJson().withTime(clock.now()).withPath("/1"));
+        queue.append(new MobileEventJson().withTime(clock.now()).withPath("/2"));
+        assertEquals(2, queue.spill());
+        assertEquals(0, queue.spill());
+        assertEquals(2, queue.getDepth());
+        assertEquals(2, metrics.eventsSpilled.sum());
+
+        // Spilled events count toward the batch size and survive an archive
+        queue.append(new MobileEventJson().withTime(clock.now()).withPath("/3"));
+        Queue restored = new Queue("checkout", queue.archive(), USER_ID_PROVIDER,
+                uploadRequester, config, clock, metrics, spillStore);
+        assertEquals(3, restored.getDepth());
+
+        restored.append(new MobileEventJson().withTime(clock.now()).withPath("/4"));
+        verify(uploadRequester).requestUpload(Arrays.asList(
+                new MobileEventJson().withTime(1000L).withPath("/1"),
+                new MobileEventJson().withTime(1000L).withPath("/2"),
+                new MobileEventJson().withTime(1000L).withPath("/3"),
+                new MobileEventJson().withTime(1000L).withPath("/4")));
+        assertEquals(0, restored.getDepth());
+        assertEquals(2, metrics.eventsRehydrated.sum());
+    }
+
+    @Test
+    public void testWallClockChangeDoesNotTriggerUpload() throws IOException {
+        Queue.UploadRequester uploadRequester = mock(Queue.UploadRequester.class);
+
+        VirtualClock clock = new VirtualClock(System.currentTimeMillis());
+        Queue queue = new Queue(null, USER_ID_PROVIDER, uploadRequester,
+                new Queue.Config.Builder()
+                        .withUploadWhenMoreThan(5)
+                        .withUploadWhenOlderThan(TimeUnit.MINUTES.toMillis(1))
+                        .build(),
+                clock);
+
+        MobileEventJson event = new MobileEventJson().withTime(clock.now());
+        queue.append(event);
+        verify(uploadRequester).requestUpload(Collections.singletonList(event));
+        reset(uploadRequester);
+
+        // The user moves the clock a day forward; the batch is not any older
+        clock.set(clock.now() + TimeUnit.DAYS.toMillis(1));
+        queue.append(event);
+        verifyNoInteractions(uploadRequester);
+
+        clock.advance(TimeUnit.MINUTES.toMillis(1) + 1);
+        queue.append(event);
+        verify(uploadRequester).requestUpload(Arrays.asList(event, event));
+    }
+
+    @Test
+    public void testUnarchiveAfterReboot() throws IOException {
+        Queue.UploadRequester uploadRequester = mock(Queue.UploadRequester.class);
+        Queue.Config config = new Queue.Config.Builder()
+                .withUploadWhenMoreThan(5)
+                .withUploadWhenOlderThan(TimeUnit.MINUTES.toMillis(1))
+                .build();
+
+        VirtualClock clock = new VirtualClock(TimeUnit.DAYS.toMillis(1));
+        clock.advance(TimeUnit.HOURS.toMillis(1));
+        Queue queue = new Queue(null, USER_ID_PROVIDER, uploadRequester, config, clock);
+        MobileEventJson event = new MobileEventJson().withTime(clock.now());
+        queue.append(event);
+        reset(uploadRequester);
+
+        clock.advance(TimeUnit.SECONDS.toMillis(20));
+        String archive = queue.archive();
+
+        // Reopen 30 s later on a device that rebooted 2 min ago; the upload
+        // 20 s before the archive is now 50 s old
+        VirtualClock rebooted = new VirtualClock(clock.now() + TimeUnit.SECONDS.toMillis(30) -
+                TimeUnit.MINUTES.toMillis(2));
+        rebooted.advance(TimeUnit.MINUTES.toMillis(2));
+        queue = new Queue(archive, USER_ID_PROVIDER, uploadRequester, config, rebooted);
+
+        queue.append(event);
+        verifyNoInteractions(uploadRequester);
+
+        rebooted.advance(TimeUnit.SECONDS.toMillis(11));
+        queue.append(event);
+        verify(uploadRequester).requestUpload(Arrays.asList(event, event));
+    }
 }
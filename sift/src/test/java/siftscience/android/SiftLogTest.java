@@ -0,0 +1,146 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import android.util.Log;
+
+import com.sift.api.representations.MobileEventJson;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SiftLogTest {
+    private static final int EVENTS = 10000;
+
+    private static final Queue.UserIdProvider USER_ID_PROVIDER = new Queue.UserIdProvider() {
+        @Override
+        public String getUserId() {
+            return null;
+        }
+    };
+
+    private static final Queue.UploadRequester UPLOAD_REQUESTER = new Queue.UploadRequester() {
+        @Override
+        public void requestUpload(List<MobileEventJson> events) {
+        }
+    };
+
+    private final int defaultLevel = SiftLog.getLevel();
+
+    @After
+    public void tearDown() {
+        SiftLog.setLevel(defaultLevel);
+    }
+
+    @Test
+    public void testDisabledLevelsAreNotFormatted() {
+        final int[] formatted = {0};
+        Object arg = new Object() {
+            @Override
+            public String toString() {
+                formatted[0]++;
+                return "arg";
+            }
+        };
+
+        SiftLog.setLevel(Log.INFO);
+        SiftLog.d("tag", "debug %s", arg);
+        assertEquals(0, formatted[0]);
+        SiftLog.i("tag", "info %s", arg);
+        assertEquals(1, formatted[0]);
+
+        SiftLog.setLevel(Log.ASSERT);
+        SiftLog.e("tag", "error %s", arg);
+        assertEquals(1, formatted[0]);
+        assertTrue(SiftLog.isLoggable(Log.ASSERT));
+    }
+
+    /**
+     * Checks the bytes allocated by Queue.append() with debug logging off
+     * and on. Appending a duplicate allocates nothing at all unless it is
+     * logged.
+     */
+    @Test
+    public void testAppendAllocations() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean()
+                instanceof com.sun.management.ThreadMXBean);
+
+        SiftLog.setLevel(Log.INFO);
+        // Warm up both paths
+        for (int i = 0; i < 5; i++) {
+            appendDuplicates();
+            appendDistinct();
+        }
+        long duplicateBytes = appendDuplicates();
+        long distinctBytes = appendDistinct();
+
+        SiftLog.setLevel(Log.DEBUG);
+        long loggedDuplicateBytes = appendDuplicates();
+
+        // Leave room for the measurement itself
+        assertTrue(String.format("Duplicates allocated %d bytes", duplicateBytes),
+                duplicateBytes < 4096);
+        // Only the growth of the queue's list, a few bytes per event
+        assertTrue(String.format("Distinct events allocated %d bytes", distinctBytes),
+                distinctBytes < EVENTS * 32L);
+        assertTrue(String.format("Logged duplicates allocated %d bytes", loggedDuplicateBytes),
+                loggedDuplicateBytes > EVENTS * 100L);
+    }
+
+    private static long appendDuplicates() {
+        Queue queue = newQueue();
+        MobileEventJson event = newEvent(0);
+        queue.append(event);
+
+        long start = allocatedBytes();
+        for (int i = 0; i < EVENTS; i++) {
+            queue.append(event);
+        }
+        return allocatedBytes() - start;
+    }
+
+    private static long appendDistinct() {
+        Queue queue = newQueue();
+        MobileEventJson[] events = new MobileEventJson[EVENTS];
+        for (int i = 0; i < EVENTS; i++) {
+            events[i] = newEvent(i);
+        }
+
+        long start = allocatedBytes();
+        for (int i = 0; i < EVENTS; i++) {
+            queue.append(events[i]);
+        }
+        return allocatedBytes() - start;
+    }
+
+    private static Queue newQueue() {
+        return new Queue(null, USER_ID_PROVIDER, UPLOAD_REQUESTER,
+                new Queue.Config.Builder()
+                        .withAcceptSameEventAfter(TimeUnit.HOURS.toMillis(1))
+                        .withUploadWhenMoreThan(Integer.MAX_VALUE)
+                        .withUploadWhenOlderThan(TimeUnit.HOURS.toMillis(1))
+                        .build(),
+                new VirtualClock(0));
+    }
+
+    private static MobileEventJson newEvent(long time) {
+        return new MobileEventJson()
+                .withMobileEventType("screen")
+                .withPath("/home/" + time)
+                .withTime(time)
+                .withUserId("gary");
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -6,31 +6,36 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.location.Location;
 
-import androidx.annotation.Nullable;
-
 import com.google.android.gms.location.FusedLocationProviderClient;
 import com.sift.api.representations.AndroidAppStateJson;
 import com.sift.api.representations.AndroidDeviceLocationJson;
+import com.sift.api.representations.AndroidDevicePropertiesJson;
 import com.sift.api.representations.MobileEventJson;
 
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -47,6 +52,8 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 public class SiftTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
     private ScheduledExecutorService executor;
 
     @Before
@@ -60,131 +67,6 @@ public class SiftTest {
         executor.awaitTermination(1, TimeUnit.SECONDS);
     }
 
-    private static class MemorySharedPreferences implements SharedPreferences {
-
-        private Map<String, String> fields = new HashMap<>();
-
-        private class Editor implements SharedPreferences.Editor {
-
-            // Make a copy of fields
-            private final Map<String, String> newFields = new HashMap<>(fields);
-
-            @Override
-            public Editor putString(String key, String defValue) {
-                newFields.put(key, defValue);
-                return this;
-            }
-
-            @Override
-            public Editor putStringSet(String key, Set<String> defValues) {
-                throw new AssertionError();  // Not implemented.
-            }
-
-            @Override
-            public Editor putInt(String key, int defValue) {
-                throw new AssertionError();  // Not implemented.
-            }
-
-            @Override
-            public Editor putLong(String key, long defValue) {
-                throw new AssertionError();  // Not implemented.
-            }
-
-            @Override
-            public Editor putFloat(String key, float defValue) {
-                throw new AssertionError();  // Not implemented.
-            }
-
-            @Override
-            public Editor putBoolean(String key, boolean defValue) {
-                throw new AssertionError();  // Not implemented.
-            }
-
-            @Override
-            public Editor remove(String key) {
-                newFields.remove(key);
-                return this;
-            }
-
-            @Override
-            public Editor clear() {
-                newFields.clear();
-                return this;
-            }
-
-            @Override
-            public boolean commit() {
-                fields = newFields;
-                return true;
-            }
-
-            @Override
-            public void apply() {
-                fields = newFields;
-            }
-        }
-
-        @Override
-        public Map<String, String> getAll() {
-            return fields;
-        }
-
-        @Nullable
-        @Override
-        public String getString(String key, String defValue) {
-            String value = fields.get(key);
-            return value != null ? value : defValue;
-        }
-
-        @Nullable
-        @Override
-        public Set<String> getStringSet(String key, Set<String> defValues) {
-            throw new AssertionError();  // Not implemented
-        }
-
-        @Override
-        public int getInt(String key, int defValue) {
-            throw new AssertionError();  // Not implemented
-        }
-
-        @Override
-        public long getLong(String key, long defValue) {
-            throw new AssertionError();  // Not implemented
-        }
-
-        @Override
-        public float getFloat(String key, float defValue) {
-            throw new AssertionError();  // Not implemented
-        }
-
-        @Override
-        public boolean getBoolean(String key, boolean defValue) {
-            throw new AssertionError();  // Not implemented
-        }
-
-        @Override
-        public boolean contains(String key) {
-            return fields.containsKey(key);
-        }
-
-        @Override
-        public Editor edit() {
-            return new Editor();
-        }
-
-        @Override
-        public void registerOnSharedPreferenceChangeListener(
-                OnSharedPreferenceChangeListener onSharedPreferenceChangeListener) {
-            throw new AssertionError();  // Not implemented
-        }
-
-        @Override
-        public void unregisterOnSharedPreferenceChangeListener(
-                OnSharedPreferenceChangeListener onSharedPreferenceChangeListener) {
-            throw new AssertionError();  // Not implemented
-        }
-    }
-
     @Test
     public void testSift() throws Exception {
         MemorySharedPreferences preferences = new MemorySharedPreferences();
@@ -294,7 +176,16 @@ public class SiftTest {
                 "{\"account_id\":\"a\"," +
                         "\"beacon_key\":\"b\"," +
                         "\"server_url_format\":\"s\"," +
-                        "\"disallow_location_collection\":false}");
+                        "\"disallow_location_collection\":false," +
+                        "\"app_state_heartbeat_interval\":900000," +
+                        "\"app_state_battery_level_threshold\":0.05," +
+                        "\"app_state_location_threshold\":100.0," +
+                        "\"location_max_age\":600000," +
+                        "\"allow_high_accuracy_location\":true," +
+                        "\"app_state_collect_interval\":0," +
+                        "\"device_properties_collect_interval\":60000," +
+                        "\"upload_max_deferral\":21600000," +
+                        "\"daily_upload_byte_budget\":1048576}");
 
         assertEquals(Sift.GSON.fromJson(configString, Sift.Config.class), c);
     }
@@ -316,6 +207,293 @@ public class SiftTest {
                 .build());
     }
 
+    @Test
+    public void testConfigBeforeUnarchive() {
+        MemorySharedPreferences preferences = new MemorySharedPreferences();
+        Sift.Config c = new Sift.Config.Builder()
+                .withAccountId("a")
+                .withBeaconKey("b")
+                .build();
+        preferences.edit().putString("config", Sift.GSON.toJson(c)).commit();
+
+        // The unarchive task never runs, so reads fall back to the archive
+        SiftImpl sift = new SiftImpl(mockContext(preferences), null, "", false,
+                mock(TaskManager.class));
+        Sift.Config config = sift.getConfig();
+        assertEquals(c, config);
+        assertTrue(config == sift.getConfig());
+        assertNull(sift.getUserId());
+    }
+
+    @Test
+    public void testSaveCoalescesPendingArchives() throws Exception {
+        MemorySharedPreferences preferences = new MemorySharedPreferences();
+        TaskManager taskManager = new TaskManager();
+        try {
+            SiftImpl sift = new SiftImpl(mockContext(preferences), null, "", false,
+                    taskManager);
+
+            // Hold the ingest lane so that every save is still pending
+            final CountDownLatch release = new CountDownLatch(1);
+            taskManager.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await(1, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+
+            for (int i = 0; i < 10; i++) {
+                sift.save();
+            }
+            release.countDown();
+
+            // Wait for the ingest and then the persist lane to go idle
+            final CountDownLatch persisted = new CountDownLatch(1);
+            final TaskManager tm = taskManager;
+            taskManager.submit(new Runnable() {
+                @Override
+                public void run() {
+                    tm.submit(TaskManager.Lane.PERSIST, new Runnable() {
+                        @Override
+                        public void run() {
+                            persisted.countDown();
+                        }
+                    });
+                }
+            });
+            assertTrue(persisted.await(2, TimeUnit.SECONDS));
+
+            assertEquals(1, preferences.writes);
+        } finally {
+            taskManager.shutdown();
+        }
+    }
+
+    @Test
+    public void testSimulateWeek() throws Exception {
+        MemorySharedPreferences preferences = new MemorySharedPreferences();
+        VirtualClock clock = new VirtualClock(1000);
+        VirtualTaskManager taskManager = new VirtualTaskManager(clock);
+
+        final List<List<MobileEventJson>> uploads = new ArrayList<>();
+        SiftImpl sift = new SiftImpl(mockContext(preferences), null, "", false,
+                taskManager, clock) {
+            @Override
+            void upload(Batch events) {
+                uploads.add(events);
+            }
+        };
+        taskManager.runUntilIdle();
+
+        // An App State every 20 seconds and a save every hour, for a week
+        int appended = 0;
+        long end = clock.now() + TimeUnit.DAYS.toMillis(7);
+        while (clock.now() < end) {
+            sift.appendAppStateEvent(new MobileEventJson()
+                    .withTime(clock.now())
+                    .withAndroidAppState(new AndroidAppStateJson()
+                            .withActivityClassName("Activity" + appended)));
+            appended++;
+            if (appended % 180 == 0) {
+                sift.save();
+            }
+            taskManager.advance(TimeUnit.SECONDS.toMillis(20));
+        }
+
+        int uploaded = 0;
+        for (List<MobileEventJson> batch : uploads) {
+            // Batches never wait for more than the 1 minute age limit
+            assertTrue(batch.size() <= 4);
+            uploaded += batch.size();
+        }
+        int queued = sift.getQueue(SiftImpl.APP_STATE_QUEUE_IDENTIFIER).flush().size();
+        assertEquals(appended, uploaded + queued);
+        assertTrue(preferences.writes >= appended / 180);
+        assertEquals(0, taskManager.getPendingTasks());
+    }
+
+    @Test
+    public void testStopPersistsPendingEvents() throws Exception {
+        MemorySharedPreferences preferences = new MemorySharedPreferences();
+        TaskManager taskManager = new TaskManager();
+        VirtualClock clock = new VirtualClock(1000);
+        try {
+            // Without an account ID, the final upload fails and events are kept
+            SiftImpl sift = new SiftImpl(mockContext(preferences), null, "", false,
+                    taskManager, clock);
+
+            for (int i = 0; i < 3; i++) {
+                sift.appendAppStateEvent(new MobileEventJson()
+                        .withTime(clock.now())
+                        .withAndroidAppState(new AndroidAppStateJson()
+                                .withActivityClassName("Activity" + i)));
+            }
+
+            sift.stop(1, TimeUnit.SECONDS);
+            assertEquals(0, sift.getDroppedEventCount());
+
+            sift.appendAppStateEvent(new MobileEventJson());
+            assertEquals(1, sift.getDroppedEventCount());
+
+            SiftImpl restored = new SiftImpl(mockContext(preferences), null, "", false,
+                    mockTaskManager());
+            // The first event was handed to the uploader right away and,
+            // without a config, dropped there
+            List<MobileEventJson> events =
+                    restored.getQueue(SiftImpl.APP_STATE_QUEUE_IDENTIFIER).flush();
+            assertEquals(2, events.size());
+            assertEquals("Activity1",
+                    events.get(0).getAndroidAppState().getActivityClassName());
+        } finally {
+            taskManager.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailedEventArchiveKeepsPreviousState() throws Exception {
+        MemorySharedPreferences preferences = new MemorySharedPreferences();
+        Context context = mockContext(preferences);
+        final AtomicBoolean failing = new AtomicBoolean();
+        VirtualClock clock = new VirtualClock(1000);
+        EventArchive eventArchive = new EventArchive(context) {
+            @Override
+            void write(byte[] block) throws IOException {
+                if (failing.get()) {
+                    throw new IOException("No space left on device");
+                }
+                super.write(block);
+            }
+        };
+        SiftImpl sift = new SiftImpl(context, null, "", false, mockTaskManager(),
+                clock, ConnectivitySource.ALWAYS_CONNECTED,
+                PowerSource.UNKNOWN, eventArchive);
+
+        // The first event is handed to the uploader right away and dropped
+        for (int i = 0; i < 3; i++) {
+            sift.appendAppStateEvent(new MobileEventJson()
+                    .withTime(clock.now())
+                    .withAndroidAppState(new AndroidAppStateJson()
+                            .withActivityClassName("Activity" + i)));
+        }
+        sift.save();
+        int writes = preferences.writes;
+
+        failing.set(true);
+        sift.appendAppStateEvent(new MobileEventJson()
+                .withTime(clock.now())
+                .withAndroidAppState(new AndroidAppStateJson()
+                        .withActivityClassName("Activity3")));
+        sift.save();
+        assertEquals(writes, preferences.writes);
+
+        // The previous queue states come back with the previous events
+        SiftImpl restored = new SiftImpl(mockContext(preferences), null, "", false,
+                mockTaskManager());
+        List<MobileEventJson> events =
+                restored.getQueue(SiftImpl.APP_STATE_QUEUE_IDENTIFIER).flush();
+        assertEquals(2, events.size());
+        assertEquals("Activity1",
+                events.get(0).getAndroidAppState().getActivityClassName());
+    }
+
+    @Test
+    public void testStopRequeuesEventsIntoTheirQueue() throws Exception {
+        MemorySharedPreferences preferences = new MemorySharedPreferences();
+        TaskManager taskManager = new TaskManager();
+        try {
+            // Without an account ID, the final upload fails and events are kept
+            SiftImpl sift = new SiftImpl(mockContext(preferences), null, "", false,
+                    taskManager);
+            sift.registerQueue("checkout", new Queue.Config.Builder()
+                    .withUploadWhenMoreThan(100)
+                    .withUploadWhenOlderThan(TimeUnit.HOURS.toMillis(1))
+                    .build());
+            sift.track("checkout", new Event.Builder("cart").build());
+            sift.track("checkout", new Event.Builder("address").build());
+            sift.track("checkout", new Event.Builder("payment").build());
+
+            sift.stop(1, TimeUnit.SECONDS);
+            assertEquals(0, sift.getDroppedEventCount());
+
+            SiftImpl restored = new SiftImpl(mockContext(preferences), null, "", false,
+                    mockTaskManager());
+            // The first event was handed to the uploader right away and,
+            // without a config, dropped there
+            List<MobileEventJson> events = restored.getQueue("checkout").flush();
+            assertEquals(2, events.size());
+            assertTrue(restored.getQueue(SiftImpl.CUSTOM_EVENT_QUEUE_IDENTIFIER)
+                    .flush().isEmpty());
+        } finally {
+            taskManager.shutdown();
+        }
+    }
+
+    @Test
+    public void testStopKeepsEventsOfDrainRunningAtDeadline() throws Exception {
+        MemorySharedPreferences preferences = new MemorySharedPreferences();
+        VirtualClock clock = new VirtualClock(1000);
+        final CountDownLatch finalUpload = new CountDownLatch(1);
+        final AtomicInteger flushes = new AtomicInteger();
+        TaskManager taskManager = new TaskManager() {
+            @Override
+            Future<?> schedule(Lane lane, Runnable task, long delay, TimeUnit unit) {
+                // Offline, nothing else is sent before stop() gives up on
+                // the drain and schedules the final upload
+                if (lane == Lane.NETWORK) {
+                    finalUpload.countDown();
+                }
+                return super.schedule(lane, task, delay, unit);
+            }
+        };
+        try {
+            // Offline, so that the queues keep their events
+            SiftImpl sift = new SiftImpl(mockContext(preferences), null, "", false,
+                    taskManager, clock, new VirtualConnectivity(false)) {
+                @Override
+                List<MobileEventJson> flushForStop(Queue queue) {
+                    List<MobileEventJson> batch = queue.flush();
+                    // Hold the drain on its second batch past the deadline
+                    if (!batch.isEmpty() && flushes.getAndIncrement() == 1) {
+                        try {
+                            assertTrue(finalUpload.await(5, TimeUnit.SECONDS));
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    return batch;
+                }
+            };
+
+            for (int i = 0; i < 2; i++) {
+                sift.appendAppStateEvent(new MobileEventJson()
+                        .withTime(clock.now())
+                        .withAndroidAppState(new AndroidAppStateJson()
+                                .withActivityClassName("Activity" + i)));
+                sift.appendDevicePropertiesEvent(new MobileEventJson()
+                        .withTime(clock.now())
+                        .withAndroidDeviceProperties(new AndroidDevicePropertiesJson()
+                                .withAndroidId("device" + i)));
+            }
+
+            sift.stop(2, TimeUnit.SECONDS);
+            assertEquals(2, flushes.get());
+            assertEquals(0, sift.getDroppedEventCount());
+
+            SiftImpl restored = new SiftImpl(mockContext(preferences), null, "", false,
+                    mockTaskManager());
+            assertEquals(2, restored.getQueue(SiftImpl.APP_STATE_QUEUE_IDENTIFIER)
+                    .flush().size());
+            assertEquals(2, restored.getQueue(SiftImpl.DEVICE_PROPERTIES_QUEUE_IDENTIFIER)
+                    .flush().size());
+        } finally {
+            taskManager.shutdown();
+        }
+    }
+
     @Test
     public void testSave() throws Exception {
         MemorySharedPreferences preferences = new MemorySharedPreferences();
@@ -335,6 +513,7 @@ public class SiftTest {
                 new HashSet<>(Arrays.asList(
                         "config",
                         "queue/siftscience.android.app",
+                        "queue/siftscience.android.custom",
                         "queue/siftscience.android.device",
                         "user_id"
                 )),
@@ -361,6 +540,7 @@ public class SiftTest {
                 new HashSet<>(Arrays.asList(
                         "config",
                         "queue/siftscience.android.app",
+                        "queue/siftscience.android.custom",
                         "queue/siftscience.android.device",
                         "user_id"
                 )),
@@ -379,6 +559,501 @@ public class SiftTest {
         assertEquals(q2.getConfig(), q3.getConfig());
     }
 
+    @Test
+    public void testTrack() throws Exception {
+        MemorySharedPreferences preferences = new MemorySharedPreferences();
+        VirtualClock clock = new VirtualClock(1000);
+        SiftImpl sift = new SiftImpl(mockContext(preferences), null, "", false,
+                mockTaskManager(), clock) {
+            @Override
+            void upload(Batch events) {
+            }
+        };
+        sift.setUserId("gary");
+
+        // The first event of a queue is uploaded right away
+        sift.track(new Event.Builder("warm_up").build());
+        sift.track(new Event.Builder("checkout_step")
+                .withPath("/checkout/payment")
+                .withField("step", 2)
+                .withField("express", true)
+                .build());
+        sift.save();
+
+        SiftImpl restored = new SiftImpl(mockContext(preferences), null, "", false,
+                mockTaskManager());
+        List<MobileEventJson> events =
+                restored.getQueue(SiftImpl.CUSTOM_EVENT_QUEUE_IDENTIFIER).flush();
+        assertEquals(1, events.size());
+
+        MobileEventJson event = events.get(0);
+        assertEquals("checkout_step", event.getMobileEventType());
+        assertEquals("/checkout/payment", event.getPath());
+        assertEquals(1000L, (long) event.getTime());
+        assertEquals("gary", event.getUserId());
+        assertEquals("2", event.getFields().get("step"));
+        assertEquals("true", event.getFields().get("express"));
+    }
+
+    @Test
+    public void testArchivedEventsLeavePreferences() throws Exception {
+        MemorySharedPreferences preferences = new MemorySharedPreferences();
+        // Older versions archived the events with the queue state
+        preferences.edit().putString("queue/" + SiftImpl.CUSTOM_EVENT_QUEUE_IDENTIFIER,
+                "{\"queue\":[{\"time\":1000,\"path\":\"/checkout\"," +
+                        "\"mobile_event_type\":\"checkout_step\"}]}").commit();
+
+        SiftImpl sift = new SiftImpl(mockContext(preferences), null, "", false,
+                mockTaskManager());
+        assertEquals(1, sift.getQueue(SiftImpl.CUSTOM_EVENT_QUEUE_IDENTIFIER).getDepth());
+        sift.save();
+
+        String archive = preferences.fields.get(
+                "queue/" + SiftImpl.CUSTOM_EVENT_QUEUE_IDENTIFIER);
+        assertFalse(archive.contains("checkout"));
+        assertTrue(sift.getMetrics().getCounter(Metrics.ARCHIVE_EVENT_BYTES) > 0);
+
+        SiftImpl restored = new SiftImpl(mockContext(preferences), null, "", false,
+                mockTaskManager());
+        List<MobileEventJson> events =
+                restored.getQueue(SiftImpl.CUSTOM_EVENT_QUEUE_IDENTIFIER).flush();
+        assertEquals(1, events.size());
+        assertEquals("/checkout", events.get(0).getPath());
+        assertEquals(1000L, (long) events.get(0).getTime());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        MemorySharedPreferences preferences = new MemorySharedPreferences();
+        SiftImpl sift = new SiftImpl(mockContext(preferences), null, "", false,
+                mockTaskManager(), new VirtualClock(1000)) {
+            @Override
+            void upload(Batch events) {
+            }
+        };
+
+        sift.registerQueue("checkout", new Queue.Config.Builder()
+                .withAcceptSameEventAfter(TimeUnit.HOURS.toMillis(1))
+                .withUploadWhenMoreThan(8)
+                .withUploadWhenOlderThan(TimeUnit.MINUTES.toMillis(1))
+                .build());
+
+        // The first event is uploaded right away, the duplicate is dropped
+        sift.track("checkout", new Event.Builder("warm_up").build());
+        sift.track("checkout", new Event.Builder("checkout_step").build());
+        sift.track("checkout", new Event.Builder("checkout_step").build());
+        sift.track("no_such_queue", new Event.Builder("checkout_step").build());
+        sift.forceUploadCustomEvents();
+        sift.save();
+
+        MetricsSnapshot metrics = sift.getMetrics();
+        assertEquals(2, metrics.getCounter(Metrics.EVENTS_APPENDED));
+        assertEquals(1, metrics.getCounter(Metrics.EVENTS_DEDUPED));
+        assertEquals(1, metrics.getCounter(Metrics.EVENTS_DROPPED));
+        assertEquals(1, metrics.getCounter(Metrics.FLUSHES_AGE));
+        assertEquals(1, metrics.getCounter(Metrics.FLUSHES_FORCED));
+        assertEquals(1, metrics.getCounter(Metrics.ARCHIVES));
+        assertTrue(metrics.getCounter(Metrics.ARCHIVE_CHARS) > 0);
+        assertEquals(1, metrics.getHistograms().get(Metrics.ARCHIVE_LATENCY).getCount());
+        assertEquals(0, (int) metrics.getQueueDepths().get("checkout"));
+    }
+
+    @Test
+    public void testOfflineUploadsAreHeld() throws Exception {
+        MemorySharedPreferences preferences = new MemorySharedPreferences();
+        VirtualClock clock = new VirtualClock(1000);
+        VirtualTaskManager taskManager = new VirtualTaskManager(clock);
+        VirtualConnectivity connectivity = new VirtualConnectivity(false);
+
+        final List<List<MobileEventJson>> uploads = new ArrayList<>();
+        SiftImpl sift = new SiftImpl(mockContext(preferences), null, "", false,
+                taskManager, clock, connectivity) {
+            @Override
+            void upload(Batch events) {
+                uploads.add(events);
+            }
+        };
+        taskManager.runUntilIdle();
+
+        // Well past the batch size and age of both queues
+        for (int i = 0; i < 20; i++) {
+            sift.appendAppStateEvent(new MobileEventJson()
+                    .withTime(clock.now())
+                    .withAndroidAppState(new AndroidAppStateJson()
+                            .withActivityClassName("Activity" + i)));
+            taskManager.advance(TimeUnit.MINUTES.toMillis(1));
+        }
+        sift.appendDevicePropertiesEvent(new MobileEventJson()
+                .withTime(clock.now())
+                .withAndroidDeviceProperties(new AndroidDevicePropertiesJson()
+                        .withAndroidId("foo")));
+        sift.forceUploadAppStateEvent();
+        taskManager.runUntilIdle();
+
+        assertTrue(uploads.isEmpty());
+        Map<String, Integer> depths = sift.getMetrics().getQueueDepths();
+        assertEquals(20, (int) depths.get(SiftImpl.APP_STATE_QUEUE_IDENTIFIER));
+        assertEquals(1, (int) depths.get(SiftImpl.DEVICE_PROPERTIES_QUEUE_IDENTIFIER));
+
+        // A flapping connection resumes uploads once, in batches of at most
+        // 9 app state events
+        connectivity.setConnected(true);
+        connectivity.setConnected(false);
+        connectivity.setConnected(true);
+        taskManager.runUntilIdle();
+
+        assertEquals(3, uploads.size());
+        assertEquals(10, uploads.get(0).size());
+        assertEquals(9, uploads.get(1).size());
+        assertEquals(2, uploads.get(2).size());
+        assertEquals("Activity9",
+                uploads.get(1).get(0).getAndroidAppState().getActivityClassName());
+        assertEquals("Activity19",
+                uploads.get(2).get(1).getAndroidAppState().getActivityClassName());
+        MetricsSnapshot metrics = sift.getMetrics();
+        assertEquals(2, metrics.getCounter(Metrics.FLUSHES_RESUME));
+        assertEquals(0, (int) metrics.getQueueDepths().get(SiftImpl.APP_STATE_QUEUE_IDENTIFIER));
+    }
+
+    @Test
+    public void testBulkUploadsWaitForCheapConditions() throws Exception {
+        MemorySharedPreferences preferences = new MemorySharedPreferences();
+        VirtualClock clock = new VirtualClock(1000);
+        VirtualTaskManager taskManager = new VirtualTaskManager(clock);
+        VirtualConnectivity connectivity = new VirtualConnectivity(true);
+        connectivity.setMetered(true);
+        VirtualPower power = new VirtualPower(false);
+
+        final List<List<MobileEventJson>> uploads = new ArrayList<>();
+        SiftImpl sift = new SiftImpl(mockContext(preferences),
+                new Sift.Config.Builder()
+                        .withUploadMaxDeferral(TimeUnit.HOURS.toMillis(1))
+                        .build(),
+                "", false, taskManager, clock, connectivity, power) {
+            @Override
+            void upload(Batch events) {
+                uploads.add(events);
+            }
+        };
+        taskManager.runUntilIdle();
+
+        // Device Properties wait on a metered network until the device charges
+        sift.appendDevicePropertiesEvent(deviceProperties(clock, "foo"));
+        taskManager.runUntilIdle();
+        assertTrue(uploads.isEmpty());
+        assertTrue(sift.getMetrics().getCounter(Metrics.UPLOADS_DEFERRED) > 0);
+
+        power.setCharging(true);
+        taskManager.runUntilIdle();
+        assertEquals(1, uploads.size());
+        assertEquals("foo", uploads.get(0).get(0).getAndroidDeviceProperties().getAndroidId());
+
+        // Unplugged, they wait up to the max deferral
+        power.setCharging(false);
+        sift.appendDevicePropertiesEvent(deviceProperties(clock, "bar"));
+        taskManager.advance(TimeUnit.MINUTES.toMillis(61));
+        assertEquals(1, uploads.size());
+        sift.appendDevicePropertiesEvent(deviceProperties(clock, "baz"));
+        taskManager.runUntilIdle();
+        assertEquals(2, uploads.size());
+        assertEquals(2, uploads.get(1).size());
+
+        // Moving onto wifi releases them right away
+        sift.appendDevicePropertiesEvent(deviceProperties(clock, "qux"));
+        taskManager.runUntilIdle();
+        assertEquals(2, uploads.size());
+        connectivity.setMetered(false);
+        taskManager.runUntilIdle();
+        assertEquals(3, uploads.size());
+        assertEquals(0, (int) sift.getMetrics().getQueueDepths()
+                .get(SiftImpl.DEVICE_PROPERTIES_QUEUE_IDENTIFIER));
+    }
+
+    @Test
+    public void testMeteredNetworkSavesRadioWakeups() throws Exception {
+        List<List<MobileEventJson>> unmetered = simulateDay(false);
+        List<List<MobileEventJson>> metered = simulateDay(true);
+
+        // An App State every 5 minutes and a Device Properties change every
+        // 30 minutes; on a metered network, Device Properties ride along
+        // with the next App State upload instead of waking the radio
+        assertEquals(288 + 48, unmetered.size());
+        assertEquals(288, metered.size());
+        assertEquals(count(unmetered), count(metered));
+    }
+
+    private List<List<MobileEventJson>> simulateDay(boolean metered) {
+        MemorySharedPreferences preferences = new MemorySharedPreferences();
+        VirtualClock clock = new VirtualClock(1000);
+        VirtualTaskManager taskManager = new VirtualTaskManager(clock);
+        VirtualConnectivity connectivity = new VirtualConnectivity(true);
+        connectivity.setMetered(metered);
+
+        final List<List<MobileEventJson>> uploads = new ArrayList<>();
+        SiftImpl sift = new SiftImpl(mockContext(preferences), null, "", false,
+                taskManager, clock, connectivity, new VirtualPower(false)) {
+            @Override
+            void upload(Batch events) {
+                uploads.add(events);
+            }
+        };
+        taskManager.runUntilIdle();
+
+        long step = TimeUnit.SECONDS.toMillis(150);
+        for (int i = 0; i < TimeUnit.DAYS.toMillis(1) / step; i++) {
+            if (i % 2 == 0) {
+                sift.appendAppStateEvent(new MobileEventJson()
+                        .withTime(clock.now())
+                        .withAndroidAppState(new AndroidAppStateJson()
+                                .withActivityClassName("Activity" + i)));
+            } else if (i % 12 == 1) {
+                sift.appendDevicePropertiesEvent(deviceProperties(clock, "device" + i));
+            }
+            taskManager.advance(step);
+        }
+        return uploads;
+    }
+
+    private static MobileEventJson appState(Clock clock, int i) {
+        return new MobileEventJson()
+                .withTime(clock.now())
+                .withAndroidAppState(new AndroidAppStateJson()
+                        .withActivityClassName("Activity" + i));
+    }
+
+    private static MobileEventJson deviceProperties(Clock clock, String androidId) {
+        return new MobileEventJson()
+                .withTime(clock.now())
+                .withAndroidDeviceProperties(new AndroidDevicePropertiesJson()
+                        .withAndroidId(androidId));
+    }
+
+    private static int count(List<List<MobileEventJson>> batches) {
+        int count = 0;
+        for (List<MobileEventJson> batch : batches) {
+            count += batch.size();
+        }
+        return count;
+    }
+
+    @Test
+    public void testSpillUnderMemoryPressure() throws Exception {
+        MemorySharedPreferences preferences = new MemorySharedPreferences();
+        VirtualClock clock = new VirtualClock(1000);
+        VirtualTaskManager taskManager = new VirtualTaskManager(clock);
+
+        final List<List<MobileEventJson>> uploads = new ArrayList<>();
+        SiftImpl sift = new SiftImpl(mockContext(preferences), null, "", false,
+                taskManager, clock) {
+            @Override
+            void upload(Batch events) {
+                uploads.add(events);
+            }
+        };
+        taskManager.runUntilIdle();
+
+        // The first event is uploaded right away, the others wait for a batch
+        for (int i = 0; i < 6; i++) {
+            sift.appendAppStateEvent(appState(clock, i));
+        }
+        sift.spill();
+        sift.spill();
+        taskManager.runUntilIdle();
+
+        MetricsSnapshot metrics = sift.getMetrics();
+        assertEquals(5, metrics.getCounter(Metrics.EVENTS_SPILLED));
+        assertEquals(5, (int) metrics.getQueueDepths().get(SiftImpl.APP_STATE_QUEUE_IDENTIFIER));
+        // Neither the queue nor the archive in the preferences hold them
+        String archive = preferences.fields.get(
+                "queue/" + SiftImpl.APP_STATE_QUEUE_IDENTIFIER);
+        assertFalse(archive.contains("Activity1"));
+
+        VirtualTaskManager restoredTaskManager = new VirtualTaskManager(clock);
+        SiftImpl restored = new SiftImpl(mockContext(preferences), null, "", false,
+                restoredTaskManager, clock);
+        restoredTaskManager.runUntilIdle();
+        assertEquals(5, restored.getQueue(SiftImpl.APP_STATE_QUEUE_IDENTIFIER).getDepth());
+
+        // Spilled events are read back, ahead of the newer ones, for the next batch
+        for (int i = 6; i < 10; i++) {
+            sift.appendAppStateEvent(appState(clock, i));
+        }
+        taskManager.runUntilIdle();
+
+        assertEquals(2, uploads.size());
+        assertEquals(9, uploads.get(1).size());
+        for (int i = 0; i < 9; i++) {
+            assertEquals("Activity" + (i + 1), uploads.get(1).get(i)
+                    .getAndroidAppState().getActivityClassName());
+        }
+        assertEquals(5, sift.getMetrics().getCounter(Metrics.EVENTS_REHYDRATED));
+    }
+
+    @Test
+    public void testEventListener() throws Exception {
+        MemorySharedPreferences preferences = new MemorySharedPreferences();
+        VirtualClock clock = new VirtualClock(1000);
+        // Without a config, flushed batches are dropped instead of uploaded
+        SiftImpl sift = new SiftImpl(mockContext(preferences), null, "", false,
+                mockTaskManager(), clock);
+        final List<String> callbacks = new ArrayList<>();
+        sift.setEventListener(new EventListener() {
+            @Override
+            public void onCollected(String queueIdentifier, MobileEventJson event, long time) {
+                callbacks.add(String.format("collected %s into %s at %d",
+                        event.getMobileEventType(), queueIdentifier, time));
+            }
+
+            @Override
+            public void onAppended(String queueIdentifier, MobileEventJson event, long time) {
+                callbacks.add(String.format("appended %s at %d",
+                        event.getMobileEventType(), time));
+            }
+
+            @Override
+            public void onDeduped(String queueIdentifier, MobileEventJson event, long time) {
+                callbacks.add(String.format("deduped %s at %d",
+                        event.getMobileEventType(), time));
+            }
+
+            @Override
+            public void onFlushed(long batchId, List<MobileEventJson> batch, long time) {
+                assertTrue(batchId > 0);
+                callbacks.add(String.format("flushed %d at %d", batch.size(), time));
+            }
+
+            @Override
+            public void onDropped(long batchId, List<MobileEventJson> events,
+                                  DropReason reason, long time) {
+                callbacks.add(String.format("dropped %d %s at %d", events.size(), reason, time));
+            }
+        });
+        sift.registerQueue("checkout", new Queue.Config.Builder()
+                .withAcceptSameEventAfter(TimeUnit.HOURS.toMillis(1))
+                .withUploadWhenMoreThan(8)
+                .withUploadWhenOlderThan(TimeUnit.MINUTES.toMillis(1))
+                .build());
+
+        sift.track("checkout", new Event.Builder("cart").build());
+        clock.advance(10);
+        sift.track("checkout", new Event.Builder("payment").build());
+        sift.track("checkout", new Event.Builder("payment").build());
+        sift.track("no_such_queue", new Event.Builder("payment").build());
+        sift.append("no_such_queue", new MobileEventJson().withMobileEventType("checkout"));
+
+        assertEquals(Arrays.asList(
+                "collected cart into checkout at 0",
+                "appended cart at 0",
+                "flushed 1 at 0",
+                "dropped 1 NOT_CONFIGURED at 0",
+                "collected payment into checkout at 10",
+                "appended payment at 10",
+                "collected payment into checkout at 10",
+                "deduped payment at 10",
+                "collected payment into no_such_queue at 10",
+                "dropped 1 UNKNOWN_QUEUE at 10",
+                "collected checkout into no_such_queue at 10",
+                "dropped 1 UNKNOWN_QUEUE at 10"), callbacks);
+        // Both unknown queue drops count; batches the uploader drops do not
+        assertEquals(2, sift.getMetrics().getCounter(Metrics.EVENTS_DROPPED));
+    }
+
+    @Test
+    public void testRegisterQueue() throws Exception {
+        MemorySharedPreferences preferences = new MemorySharedPreferences();
+        SiftImpl sift = new SiftImpl(mockContext(preferences), null, "", false,
+                mockTaskManager());
+
+        Queue.Config config = new Queue.Config.Builder()
+                .withUploadWhenMoreThan(100)
+                .withUploadWhenOlderThan(TimeUnit.MINUTES.toMillis(5))
+                .build();
+        sift.registerQueue("checkout", config);
+        sift.registerQueue("screens", new Queue.Config.Builder().build());
+        assertEquals(config, sift.getQueue("checkout").getConfig());
+
+        // Fill the queue past its first upload
+        sift.track("checkout", new Event.Builder("checkout_step").build());
+        sift.track("checkout", new Event.Builder("checkout_step")
+                .withField("step", 2)
+                .build());
+        sift.track("unknown", new Event.Builder("checkout_step").build());
+        assertEquals(1, sift.getDroppedEventCount());
+        sift.save();
+
+        // Custom queues are restored with their archived config
+        SiftImpl restored = new SiftImpl(mockContext(preferences), null, "", false,
+                mockTaskManager());
+        Queue queue = restored.getQueue("checkout");
+        assertNotNull(queue);
+        assertEquals(config, queue.getConfig());
+        assertNotNull(restored.getQueue("screens"));
+
+        List<MobileEventJson> events = queue.flush();
+        assertEquals(1, events.size());
+        assertEquals("2", events.get(0).getFields().get("step"));
+
+        // Registering again replaces the config
+        Queue.Config updated = new Queue.Config.Builder().withUploadWhenMoreThan(10).build();
+        restored.registerQueue("checkout", updated);
+        assertEquals(updated, restored.getQueue("checkout").getConfig());
+
+        try {
+            restored.registerQueue(SiftImpl.APP_STATE_QUEUE_IDENTIFIER, updated);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Built-in queues cannot be reconfigured
+        }
+    }
+
+    /**
+     * Tracks 10k events, the volume of a busy minute, through the real
+     * lanes without pausing, and checks that none is lost.
+     */
+    @Test
+    public void testTrackThroughput() throws Exception {
+        final int events = 10000;
+        MemorySharedPreferences preferences = new MemorySharedPreferences();
+        TaskManager taskManager = new TaskManager();
+        final AtomicLong uploaded = new AtomicLong();
+        try {
+            final SiftImpl sift = new SiftImpl(mockContext(preferences), null, "", false,
+                    taskManager) {
+                @Override
+                void upload(Batch batch) {
+                    uploaded.addAndGet(batch.size());
+                }
+            };
+
+            // Unthrottled, as fast as the caller can go
+            for (int i = 0; i < events; i++) {
+                sift.track(new Event.Builder("screen_time")
+                        .withPath("/home")
+                        .withField("screen", "home")
+                        .withField("duration_ms", i)
+                        .build());
+            }
+
+            // The events left in the queue are the ones that would be archived
+            final long[] queued = new long[1];
+            final CountDownLatch done = new CountDownLatch(1);
+            taskManager.submit(new Runnable() {
+                @Override
+                public void run() {
+                    queued[0] = sift.getQueue(SiftImpl.CUSTOM_EVENT_QUEUE_IDENTIFIER).flush().size();
+                    done.countDown();
+                }
+            });
+            assertTrue(done.await(60, TimeUnit.SECONDS));
+
+            assertEquals(events, uploaded.get() + queued[0]);
+            assertEquals(0, sift.getDroppedEventCount());
+            assertEquals(0, sift.getMetrics().getCounter(Metrics.EVENTS_REJECTED));
+        } finally {
+            taskManager.shutdown();
+        }
+    }
+
     @Test
     public void testUnsetUserId() throws Exception {
         MemorySharedPreferences preferences = new MemorySharedPreferences();
@@ -413,6 +1088,66 @@ public class SiftTest {
         Sift.setUserId("gary");
     }
 
+    /**
+     * Opens the SDK while the lanes that read and write the archives are
+     * held; the calls return and apply once the lanes are released.
+     */
+    @Test(timeout = 10000)
+    public void testOpenDoesNotBlockOnDisk() throws Exception {
+        MemorySharedPreferences preferences = new MemorySharedPreferences();
+        Field taskManagerField = Sift.class.getDeclaredField("taskManager");
+        taskManagerField.setAccessible(true);
+        TaskManager taskManager = (TaskManager) taskManagerField.get(Sift.class);
+
+        final CountDownLatch lanesHeld = new CountDownLatch(1);
+        Runnable hold = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    lanesHeld.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        taskManager.submit(TaskManager.Lane.INGEST, hold);
+        taskManager.submit(TaskManager.Lane.PERSIST, hold);
+
+        Field field = Sift.class.getDeclaredField("instance");
+        field.setAccessible(true);
+        Object previous = field.get(Sift.class);
+        field.set(Sift.class, null);
+        try {
+            // Any of these waiting on a lane would hang until the timeout
+            Sift.open(mockContext(preferences), new Sift.Config.Builder()
+                    .withDisallowLocationCollection(true).build());
+            Sift.setUserId("gary");
+            Sift.collect();
+            Sift.pause();
+
+            assertEquals(1, lanesHeld.getCount());
+            assertEquals(0, preferences.writes);
+
+            // Calls made before the archives were read apply once they are
+            lanesHeld.countDown();
+            Runnable noop = new Runnable() {
+                @Override
+                public void run() {
+                }
+            };
+            taskManager.schedule(TaskManager.Lane.INGEST, noop, 0, TimeUnit.MILLISECONDS)
+                    .get(5, TimeUnit.SECONDS);
+            taskManager.schedule(TaskManager.Lane.PERSIST, noop, 0, TimeUnit.MILLISECONDS)
+                    .get(5, TimeUnit.SECONDS);
+            SiftImpl sift = (SiftImpl) field.get(Sift.class);
+            assertEquals("gary", sift.getUserId());
+            assertEquals(1, preferences.writes);
+        } finally {
+            lanesHeld.countDown();
+            field.set(Sift.class, previous);
+        }
+    }
+
     @Test
     public void testUnboundSetUserId() throws NoSuchFieldException, IllegalAccessException,
             InterruptedException {
@@ -469,6 +1204,11 @@ public class SiftTest {
         Field fusedLocationClientField = appStateCollector.getClass()
                 .getDeclaredField("mFusedLocationClient");
         fusedLocationClientField.setAccessible(true);
+
+        // The client is created on init, not in the constructor
+        assertNull(fusedLocationClientField.get(appStateCollector));
+        appStateCollector.init();
+
         FusedLocationProviderClient mFusedLocationClient =
                 (FusedLocationProviderClient) fusedLocationClientField.get(appStateCollector);
 
@@ -487,6 +1227,7 @@ public class SiftTest {
         assertTrue(preferences.fields.isEmpty());
 
         AppStateCollector appStateCollector = new AppStateCollector(sift, mockContext(preferences));
+        appStateCollector.init();
 
         Field fusedLocationClientField = appStateCollector.getClass()
                 .getDeclaredField("mFusedLocationClient");
@@ -508,8 +1249,11 @@ public class SiftTest {
         assertTrue(preferences.fields.isEmpty());
 
         AppStateCollector appStateCollector = new AppStateCollector(sift, mockContext(preferences));
+        appStateCollector.setActivityName("FirstActivity");
         appStateCollector.collect();
-        // Collect twice because the first one gets uploaded and flushed
+        // Collect twice because the first one gets uploaded and flushed; change the
+        // activity so that the second App State is not dropped as unchanged
+        appStateCollector.setActivityName("SecondActivity");
         appStateCollector.collect();
         sift.save();
 
@@ -520,6 +1264,99 @@ public class SiftTest {
         assertEquals(Sift.SDK_VERSION, event.getAndroidAppState().getSdkVersion());
     }
 
+    @Test
+    public void testAppStateCollectorDropsUnchangedState() {
+        MemorySharedPreferences preferences = new MemorySharedPreferences();
+
+        Sift.Config config = new Sift.Config.Builder()
+                .withDisallowLocationCollection(true)
+                .withAppStateHeartbeatInterval(TimeUnit.MINUTES.toMillis(15))
+                .build();
+
+        final List<MobileEventJson> appended = new ArrayList<>();
+        VirtualClock clock = new VirtualClock(1000);
+        SiftImpl sift = new SiftImpl(mockContext(preferences), config, "",
+                false, mockTaskManager(), clock) {
+            @Override
+            void appendAppStateEvent(MobileEventJson event) {
+                appended.add(event);
+            }
+        };
+
+        AppStateCollector appStateCollector = new AppStateCollector(sift, mockContext(preferences));
+        appStateCollector.setActivityName("HelloSift");
+
+        appStateCollector.collect();
+        assertEquals(1, appended.size());
+
+        // Unchanged state is dropped
+        clock.advance(TimeUnit.MINUTES.toMillis(1));
+        appStateCollector.collect();
+        assertEquals(1, appended.size());
+
+        // A different activity is a meaningful change
+        appStateCollector.setActivityName("OtherActivity");
+        appStateCollector.collect();
+        assertEquals(2, appended.size());
+        assertEquals("OtherActivity",
+                appended.get(1).getAndroidAppState().getActivityClassName());
+
+        // Unchanged state is sent again as a heartbeat
+        clock.advance(TimeUnit.MINUTES.toMillis(15));
+        appStateCollector.collect();
+        assertEquals(3, appended.size());
+    }
+
+    @Test
+    public void testAppStateSignificantChange() {
+        Sift.Config config = new Sift.Config.Builder()
+                .withAppStateBatteryLevelThreshold(0.05)
+                .withAppStateLocationThreshold(100)
+                .build();
+
+        AndroidAppStateJson previous = new AndroidAppStateJson()
+                .withActivityClassName("HelloSift")
+                .withBatteryLevel(0.5)
+                .withBatteryState(3L)
+                .withBatteryHealth(2L)
+                .withPlugState(0L)
+                .withNetworkAddresses(Arrays.asList("10.0.2.15", "fe80::5054:ff:fe12:3456"))
+                .withLocation(new AndroidDeviceLocationJson()
+                        .withLatitude(37.7749)
+                        .withLongitude(-122.4194));
+
+        assertFalse(AppStateCollector.isSignificantChange(previous, copy(previous), config));
+
+        // Small battery drain and address reordering are not significant
+        AndroidAppStateJson current = copy(previous)
+                .withBatteryLevel(0.48)
+                .withNetworkAddresses(Arrays.asList("fe80::5054:ff:fe12:3456", "10.0.2.15"));
+        assertFalse(AppStateCollector.isSignificantChange(previous, current, config));
+
+        assertTrue(AppStateCollector.isSignificantChange(previous,
+                copy(previous).withBatteryLevel(0.4), config));
+        assertTrue(AppStateCollector.isSignificantChange(previous,
+                copy(previous).withPlugState(1L), config));
+        assertTrue(AppStateCollector.isSignificantChange(previous,
+                copy(previous).withNetworkAddresses(Arrays.asList("10.0.2.16")), config));
+
+        // ~11 meters north is not significant, ~1.1 kilometers is
+        assertFalse(AppStateCollector.isSignificantChange(previous,
+                copy(previous).withLocation(new AndroidDeviceLocationJson()
+                        .withLatitude(37.7750)
+                        .withLongitude(-122.4194)), config));
+        assertTrue(AppStateCollector.isSignificantChange(previous,
+                copy(previous).withLocation(new AndroidDeviceLocationJson()
+                        .withLatitude(37.7849)
+                        .withLongitude(-122.4194)), config));
+        assertTrue(AppStateCollector.isSignificantChange(previous,
+                copy(previous).withLocation(null), config));
+    }
+
+    private AndroidAppStateJson copy(AndroidAppStateJson state) {
+        return Sift.GSON.fromJson(Sift.GSON.toJson(state), AndroidAppStateJson.class);
+    }
+
     @Test
     public void testDevicePropertyCollector() throws InterruptedException {
         MemorySharedPreferences preferences = new MemorySharedPreferences();
@@ -632,6 +1469,8 @@ public class SiftTest {
         Context ctx = mock(Context.class);
         when(ctx.getSharedPreferences(anyString(), anyInt())).thenReturn(preferences);
         when(ctx.getApplicationContext()).thenReturn(ctx);
+        when(ctx.getFilesDir()).thenReturn(folder.getRoot());
+        when(ctx.getNoBackupFilesDir()).thenReturn(folder.getRoot());
         return ctx;
     }
 
@@ -646,6 +1485,24 @@ public class SiftTest {
             }
         }).when(tm).submit(any(Runnable.class));
 
+        doAnswer(new Answer() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                Object[] args = invocation.getArguments();
+                ((Runnable) args[1]).run();
+                return null;
+            }
+        }).when(tm).submit(any(TaskManager.Lane.class), any(Runnable.class));
+
+        doAnswer(new Answer() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                Object[] args = invocation.getArguments();
+                ((Runnable) args[2]).run();
+                return null;
+            }
+        }).when(tm).submit(any(TaskManager.Lane.class), any(), any(Runnable.class));
+
         return tm;
     }
 }
@@ -0,0 +1,100 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import android.content.Context;
+
+import com.sift.api.representations.AndroidAppStateJson;
+import com.sift.api.representations.MobileEventJson;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SpillStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File filesDir;
+    private SpillStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        filesDir = folder.newFolder();
+        Context context = mock(Context.class);
+        when(context.getFilesDir()).thenReturn(filesDir);
+        when(context.getNoBackupFilesDir()).thenReturn(filesDir);
+        store = new SpillStore(context);
+    }
+
+    @Test
+    public void testReadBackInOrder() throws IOException {
+        List<MobileEventJson> first = events(0, 3);
+        List<MobileEventJson> second = events(3, 2);
+        store.write("siftscience.android.app", first);
+        store.write("siftscience.android.app", second);
+
+        List<MobileEventJson> expected = new ArrayList<>(first);
+        expected.addAll(second);
+        assertEquals(expected, store.read("siftscience.android.app"));
+
+        // Reading deletes the file
+        assertTrue(store.read("siftscience.android.app").isEmpty());
+    }
+
+    @Test
+    public void testQueuesAreSeparate() throws IOException {
+        store.write("checkout", events(0, 1));
+        // Custom identifiers need not be valid file names
+        store.write("../screens/1", events(1, 2));
+
+        assertEquals(events(0, 1), store.read("checkout"));
+        assertEquals(events(1, 2), store.read("../screens/1"));
+        assertTrue(store.read("unknown").isEmpty());
+    }
+
+    @Test
+    public void testCorruptFileKeepsReadableEvents() throws IOException {
+        store.write("checkout", events(0, 2));
+        File[] files = new File(filesDir, "siftscience-spill").listFiles();
+        assertEquals(1, files.length);
+
+        FileOutputStream out = new FileOutputStream(files[0], true);
+        try {
+            out.write(new byte[]{0x1f, (byte) 0x8b, 8, 0, 1, 2});
+        } finally {
+            out.close();
+        }
+
+        assertEquals(events(0, 2), store.read("checkout"));
+        assertFalse(files[0].exists());
+    }
+
+    private static List<MobileEventJson> events(int from, int count) {
+        List<MobileEventJson> events = new ArrayList<>();
+        for (int i = from; i < from + count; i++) {
+            events.add(new MobileEventJson()
+                    .withTime(1500000000000L + i)
+                    .withUserId("gary")
+                    .withAndroidAppState(new AndroidAppStateJson()
+                            .withActivityClassName("Activity" + i)
+                            .withBatteryLevel(0.5)
+                            .withNetworkAddresses(Arrays.asList("10.0.2.15"))));
+        }
+        return events;
+    }
+}
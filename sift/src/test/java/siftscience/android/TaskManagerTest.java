@@ -0,0 +1,249 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TaskManagerTest {
+    private TaskManager taskManager;
+
+    @Before
+    public void setUp() {
+        taskManager = new TaskManager();
+    }
+
+    @After
+    public void tearDown() {
+        taskManager.shutdown();
+    }
+
+    @Test
+    public void testLaneThreads() throws Exception {
+        final List<String> names = Collections.synchronizedList(new ArrayList<String>());
+        final List<Boolean> daemons = Collections.synchronizedList(new ArrayList<Boolean>());
+        final CountDownLatch latch = new CountDownLatch(TaskManager.Lane.values().length);
+
+        for (TaskManager.Lane lane : TaskManager.Lane.values()) {
+            taskManager.submit(lane, new Runnable() {
+                @Override
+                public void run() {
+                    names.add(Thread.currentThread().getName());
+                    daemons.add(Thread.currentThread().isDaemon());
+                    latch.countDown();
+                }
+            });
+        }
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertTrue(names.contains("sift-ingest"));
+        assertTrue(names.contains("sift-collect"));
+        assertTrue(names.contains("sift-persist"));
+        assertTrue(names.contains("sift-network"));
+        assertFalse(daemons.contains(false));
+    }
+
+    @Test
+    public void testBlockedLaneDoesNotDelayOtherLanes() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch appended = new CountDownLatch(1);
+
+        taskManager.submit(TaskManager.Lane.COLLECT, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        taskManager.submit(new Runnable() {
+            @Override
+            public void run() {
+                appended.countDown();
+            }
+        });
+
+        assertTrue(appended.await(500, TimeUnit.MILLISECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void testLaneCapacity() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        Runnable noop = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+
+        taskManager.submit(TaskManager.Lane.PERSIST, new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+
+        for (int i = 0; i < TaskManager.Lane.PERSIST.capacity; i++) {
+            assertFalse(taskManager.schedule(TaskManager.Lane.PERSIST, noop, 0,
+                    TimeUnit.MILLISECONDS).isDone());
+        }
+        final AtomicInteger rejections = new AtomicInteger();
+        Future<?> rejected = taskManager.schedule(TaskManager.Lane.PERSIST,
+                new TaskManager.Rejectable() {
+                    @Override
+                    public void run() {
+                    }
+
+                    @Override
+                    public void rejected() {
+                        rejections.incrementAndGet();
+                    }
+                }, 0, TimeUnit.MILLISECONDS);
+        assertRejected(rejected);
+        assertEquals(1, rejections.get());
+
+        // Other lanes are not affected
+        assertFalse(taskManager.schedule(TaskManager.Lane.NETWORK, noop, 0,
+                TimeUnit.MILLISECONDS).isDone());
+        release.countDown();
+    }
+
+    @Test
+    public void testIngestAndNetworkLanesAreUnbounded() {
+        assertEquals(Integer.MAX_VALUE, TaskManager.Lane.INGEST.capacity);
+        assertEquals(Integer.MAX_VALUE, TaskManager.Lane.NETWORK.capacity);
+    }
+
+    @Test
+    public void testShutdownRejectsDelayedTasks() throws Exception {
+        final AtomicInteger rejections = new AtomicInteger();
+        final AtomicInteger runs = new AtomicInteger();
+        Future<?> future = taskManager.schedule(TaskManager.Lane.NETWORK,
+                new TaskManager.Rejectable() {
+                    @Override
+                    public void run() {
+                        runs.incrementAndGet();
+                    }
+
+                    @Override
+                    public void rejected() {
+                        rejections.incrementAndGet();
+                    }
+                }, 1, TimeUnit.HOURS);
+
+        taskManager.shutdown();
+
+        assertRejected(future);
+        assertEquals(1, rejections.get());
+        assertEquals(0, runs.get());
+
+        // Scheduling after shutdown fails right away
+        assertRejected(taskManager.schedule(TaskManager.Lane.NETWORK, new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        }, 1, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+    }
+
+    private static void assertRejected(Future<?> future) throws InterruptedException {
+        assertTrue(future.isDone());
+        try {
+            future.get();
+            fail("Expected a RejectedExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    @Test
+    public void testKeyedSubmissionsCoalesce() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> runs = Collections.synchronizedList(new ArrayList<Integer>());
+
+        taskManager.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        for (int i = 0; i < 10; i++) {
+            final int run = i;
+            taskManager.submit(TaskManager.Lane.INGEST, "key", new Runnable() {
+                @Override
+                public void run() {
+                    runs.add(run);
+                }
+            });
+        }
+        release.countDown();
+
+        final CountDownLatch done = new CountDownLatch(1);
+        taskManager.submit(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+
+        // Only the latest task ran, once
+        assertEquals(Collections.singletonList(9), runs);
+    }
+
+    @Test
+    public void testDelayedTaskRunsOnLane() throws Exception {
+        final List<String> names = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch ran = new CountDownLatch(1);
+        Runnable cancelled = new Runnable() {
+            @Override
+            public void run() {
+                names.add("cancelled");
+            }
+        };
+
+        taskManager.schedule(TaskManager.Lane.NETWORK, new Runnable() {
+            @Override
+            public void run() {
+                names.add(Thread.currentThread().getName());
+                ran.countDown();
+            }
+        }, 200, TimeUnit.MILLISECONDS);
+        assertTrue(taskManager.schedule(TaskManager.Lane.NETWORK, cancelled, 100,
+                TimeUnit.MILLISECONDS).cancel(false));
+
+        assertTrue(ran.await(1, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("sift-network"), names);
+    }
+}
@@ -0,0 +1,122 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TimerWheelTest {
+    private static final int TIMERS = 10000;
+    private static final Runnable NOOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private TimerWheel wheel;
+
+    @Before
+    public void setUp() {
+        wheel = new TimerWheel(TimeUnit.MILLISECONDS.toNanos(10), 64);
+    }
+
+    @After
+    public void tearDown() {
+        wheel.stop();
+    }
+
+    @Test
+    public void testTimeoutsFireInDeadlineOrder() throws Exception {
+        final List<Integer> fired = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch latch = new CountDownLatch(3);
+
+        // 900 ms spans more than one round of the 64 x 10 ms wheel
+        long[] delays = {900, 50, 300};
+        for (int i = 0; i < delays.length; i++) {
+            final int index = i;
+            wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    fired.add(index);
+                    latch.countDown();
+                }
+            }, delays[i], TimeUnit.MILLISECONDS);
+        }
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(1, 2, 0), fired);
+        assertEquals(0, wheel.getPendingTimeouts());
+    }
+
+    @Test
+    public void testCancelledTimeoutDoesNotFire() throws Exception {
+        final CountDownLatch fired = new CountDownLatch(1);
+        TimerWheel.Timeout timeout = wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fired.countDown();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertFalse(fired.await(200, TimeUnit.MILLISECONDS));
+        assertTrue(timeout.isCancelled());
+        assertEquals(0, wheel.getPendingTimeouts());
+    }
+
+    @Test
+    public void testIdlesWhenEmpty() throws Exception {
+        final CountDownLatch fired = new CountDownLatch(1);
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fired.countDown();
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+        assertTrue(fired.await(1, TimeUnit.SECONDS));
+
+        long deadline = System.currentTimeMillis() + 1000;
+        while (!wheel.isIdle() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(wheel.isIdle());
+    }
+
+    @Test
+    public void testScheduleAfterStop() {
+        wheel.stop();
+        assertNull(wheel.schedule(NOOP, 10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testCancelledTimeoutsAreReleased() throws Exception {
+        TimerWheel.Timeout[] timeouts = new TimerWheel.Timeout[TIMERS];
+        for (int i = 0; i < TIMERS; i++) {
+            timeouts[i] = wheel.schedule(NOOP, 60 + i % 60, TimeUnit.SECONDS);
+        }
+        for (int i = 0; i < TIMERS; i++) {
+            assertTrue(timeouts[i].cancel());
+        }
+
+        // Cancelled timeouts are released by the timer thread on its next tick
+        long deadline = System.currentTimeMillis() + 2000;
+        while (wheel.getPendingTimeouts() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, wheel.getPendingTimeouts());
+    }
+}
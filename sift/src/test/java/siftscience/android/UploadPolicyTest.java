@@ -0,0 +1,95 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UploadPolicyTest {
+    private static final long MAX_DEFERRAL = TimeUnit.HOURS.toMillis(1);
+    private static final long BUDGET = 1000;
+
+    private VirtualClock clock;
+    private VirtualConnectivity connectivity;
+    private VirtualPower power;
+    private Metrics metrics;
+    private UploadPolicy policy;
+
+    @Before
+    public void setUp() {
+        clock = new VirtualClock(1000);
+        connectivity = new VirtualConnectivity(true);
+        power = new VirtualPower(false);
+        metrics = new Metrics();
+        policy = new UploadPolicy(connectivity, power, new Uploader.ConfigProvider() {
+            @Override
+            public Sift.Config getConfig() {
+                return new Sift.Config.Builder()
+                        .withUploadMaxDeferral(MAX_DEFERRAL)
+                        .withDailyUploadByteBudget(BUDGET)
+                        .build();
+            }
+        }, clock, metrics);
+    }
+
+    @Test
+    public void testOfflineDefersAllTiers() {
+        connectivity.setConnected(false);
+
+        assertTrue(policy.isDeferred(Queue.Tier.URGENT, 0));
+        assertTrue(policy.isDeferred(Queue.Tier.BULK, Long.MAX_VALUE));
+        assertFalse(policy.mayPiggyback());
+    }
+
+    @Test
+    public void testUrgentIsNeverDeferredOnline() {
+        connectivity.setMetered(true);
+        metrics.uploadBytesGzip.add(BUDGET);
+
+        assertFalse(policy.isDeferred(Queue.Tier.URGENT, 0));
+    }
+
+    @Test
+    public void testBulkWaitsOnMeteredNetworks() {
+        assertFalse(policy.isDeferred(Queue.Tier.BULK, 0));
+
+        connectivity.setMetered(true);
+        assertTrue(policy.isDeferred(Queue.Tier.BULK, 0));
+        assertTrue(policy.isDeferred(Queue.Tier.BULK, MAX_DEFERRAL - 1));
+        assertFalse(policy.isDeferred(Queue.Tier.BULK, MAX_DEFERRAL));
+        assertTrue(policy.mayPiggyback());
+
+        power.setCharging(true);
+        assertFalse(policy.isDeferred(Queue.Tier.BULK, 0));
+    }
+
+    @Test
+    public void testDailyByteBudget() {
+        connectivity.setMetered(true);
+        power.setCharging(true);
+        assertFalse(policy.isDeferred(Queue.Tier.BULK, 0));
+
+        // Spent, bulk waits even past the max deferral
+        metrics.uploadBytesGzip.add(BUDGET);
+        assertTrue(policy.isDeferred(Queue.Tier.BULK, MAX_DEFERRAL));
+        assertFalse(policy.mayPiggyback());
+
+        // Unmetered networks are not budgeted
+        connectivity.setMetered(false);
+        assertFalse(policy.isDeferred(Queue.Tier.BULK, 0));
+        assertTrue(policy.mayPiggyback());
+
+        // The budget renews a day after it started
+        connectivity.setMetered(true);
+        clock.advance(TimeUnit.DAYS.toMillis(1));
+        assertFalse(policy.isDeferred(Queue.Tier.BULK, 0));
+        metrics.uploadBytesGzip.add(BUDGET - 1);
+        assertFalse(policy.isDeferred(Queue.Tier.BULK, 0));
+    }
+}
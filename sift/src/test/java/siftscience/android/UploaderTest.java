@@ -19,9 +19,13 @@ import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
@@ -43,6 +47,7 @@ public class UploaderTest {
             .dynamicPort()
             .dynamicHttpsPort());
 
+    private static final String QUEUE = SiftImpl.DEVICE_PROPERTIES_QUEUE_IDENTIFIER;
     private final MobileEventJson TEST_EVENT = new MobileEventJson()
             .withAndroidDeviceProperties(new AndroidDevicePropertiesJson()
                     .withAndroidId("foo")
@@ -78,7 +83,7 @@ public class UploaderTest {
     @Test
     public void testUploadNothing() {
         Uploader bu = new Uploader(taskManager, configProvider);
-        bu.upload(Collections.<MobileEventJson>emptyList());
+        bu.upload(new Batch());
         assertThat(WireMock.findUnmatchedRequests(), Matchers.empty());
     }
 
@@ -87,7 +92,7 @@ public class UploaderTest {
         WireMock.stubFor(makeCall(200));
 
         Uploader bu = new Uploader(taskManager, configProvider);
-        bu.upload(Collections.singletonList(TEST_EVENT));
+        bu.upload(new Batch(QUEUE, Collections.singletonList(TEST_EVENT)));
 
         WireMock.verify(1, WireMock.putRequestedFor(WireMock.urlEqualTo(requestPath)));
         assertThat(WireMock.findUnmatchedRequests(), Matchers.empty());
@@ -98,7 +103,7 @@ public class UploaderTest {
         WireMock.stubFor(makeCall(400));
 
         Uploader bu = new Uploader(taskManager, configProvider);
-        bu.upload(Collections.singletonList(TEST_EVENT));
+        bu.upload(new Batch(QUEUE, Collections.singletonList(TEST_EVENT)));
 
         WireMock.verify(1, WireMock.putRequestedFor(WireMock.urlEqualTo(requestPath)));
         assertThat(WireMock.findUnmatchedRequests(), Matchers.empty());
@@ -109,24 +114,39 @@ public class UploaderTest {
         WireMock.stubFor(makeCall(429));
 
         Uploader bu = new Uploader(taskManager, configProvider);
-        bu.upload(Collections.singletonList(TEST_EVENT));
+        bu.upload(new Batch(QUEUE, Collections.singletonList(TEST_EVENT)));
 
         // ((3 - 3) ^ 2) * 3 = 0
-        verify(taskManager, times(1)).schedule(any(Runnable.class), Mockito.eq(0l),
-                Mockito.eq(TimeUnit.SECONDS));
+        verify(taskManager, times(1)).schedule(Mockito.eq(TaskManager.Lane.NETWORK),
+                any(Runnable.class), Mockito.eq(0l), Mockito.eq(TimeUnit.SECONDS));
 
         // ((3 - 2) ^ 2) * 3 = 3
-        verify(taskManager, times(1)).schedule(any(Runnable.class), Mockito.eq(3l),
-                Mockito.eq(TimeUnit.SECONDS));
+        verify(taskManager, times(1)).schedule(Mockito.eq(TaskManager.Lane.NETWORK),
+                any(Runnable.class), Mockito.eq(3l), Mockito.eq(TimeUnit.SECONDS));
 
         // ((3 - 1) ^ 2) * 3 = 12
-        verify(taskManager, times(1)).schedule(any(Runnable.class), Mockito.eq(12l),
-                Mockito.eq(TimeUnit.SECONDS));
+        verify(taskManager, times(1)).schedule(Mockito.eq(TaskManager.Lane.NETWORK),
+                any(Runnable.class), Mockito.eq(12l), Mockito.eq(TimeUnit.SECONDS));
 
         WireMock.verify(3, WireMock.putRequestedFor(WireMock.urlEqualTo(requestPath)));
         assertThat(WireMock.findUnmatchedRequests(), Matchers.empty());
     }
 
+    @Test
+    public void testRetryBackoffInVirtualTime() throws Exception {
+        WireMock.stubFor(makeCall(429));
+
+        VirtualTaskManager virtualTaskManager = new VirtualTaskManager(new VirtualClock(0));
+        Uploader bu = new Uploader(virtualTaskManager, configProvider);
+        bu.upload(new Batch(QUEUE, Collections.singletonList(TEST_EVENT)));
+        virtualTaskManager.runAll();
+
+        // Attempts at 0, 3 and 3 + 12 seconds
+        assertEquals(TimeUnit.SECONDS.toMillis(15), virtualTaskManager.getClock().now());
+        assertEquals(3, virtualTaskManager.getExecutedTasks());
+        WireMock.verify(3, WireMock.putRequestedFor(WireMock.urlEqualTo(requestPath)));
+    }
+
     @Test
     public void testUploadOtherEventualSuccess() throws Exception {
         WireMock.stubFor(makeCall(429)
@@ -141,12 +161,97 @@ public class UploaderTest {
         );
 
         Uploader bu = new Uploader(taskManager, configProvider);
-        bu.upload(Collections.singletonList(TEST_EVENT));
+        bu.upload(new Batch(QUEUE, Collections.singletonList(TEST_EVENT)));
 
         WireMock.verify(2, WireMock.putRequestedFor(WireMock.urlEqualTo(requestPath)));
         assertThat(WireMock.findUnmatchedRequests(), Matchers.empty());
     }
 
+    @Test
+    public void testEventListener() throws Exception {
+        WireMock.stubFor(makeCall(429)
+                .inScenario("default")
+                .whenScenarioStateIs(Scenario.STARTED)
+                .willSetStateTo("failure"));
+
+        WireMock.stubFor(makeCall(200)
+                .inScenario("default")
+                .whenScenarioStateIs("failure")
+                .willSetStateTo("success")
+        );
+
+        final List<String> callbacks = new ArrayList<>();
+        Metrics metrics = new Metrics();
+        metrics.eventListener = new EventListener() {
+            @Override
+            public void onFlushed(long batchId, List<MobileEventJson> batch, long time) {
+                callbacks.add(String.format("flushed %d at %d", batch.size(), time));
+            }
+
+            @Override
+            public void onUploadStarted(long batchId, int attempt, long time) {
+                callbacks.add(String.format("attempt %d at %d", attempt, time));
+            }
+
+            @Override
+            public void onAcknowledged(long batchId, int statusCode, long time) {
+                callbacks.add(String.format("acknowledged %d at %d", statusCode, time));
+            }
+        };
+
+        VirtualClock clock = new VirtualClock(0);
+        VirtualTaskManager virtualTaskManager = new VirtualTaskManager(clock);
+        Uploader bu = new Uploader(virtualTaskManager, configProvider, clock, metrics);
+        bu.upload(new Batch(QUEUE, Collections.singletonList(TEST_EVENT)));
+        virtualTaskManager.runAll();
+
+        assertEquals(Arrays.asList(
+                "flushed 1 at 0",
+                "attempt 1 at 0",
+                "attempt 2 at 3000",
+                "acknowledged 200 at 3000"), callbacks);
+    }
+
+    @Test
+    public void testOfflineBatchesAreHeld() throws Exception {
+        WireMock.stubFor(makeCall(429));
+
+        final List<List<MobileEventJson>> held = new ArrayList<>();
+        Uploader.BatchHolder holder = new Uploader.BatchHolder() {
+            @Override
+            public void hold(Batch batch) {
+                held.add(batch);
+            }
+        };
+
+        VirtualClock clock = new VirtualClock(0);
+        VirtualTaskManager virtualTaskManager = new VirtualTaskManager(clock);
+        VirtualConnectivity connectivity = new VirtualConnectivity(false);
+        Metrics metrics = new Metrics();
+        Uploader bu = new Uploader(virtualTaskManager, configProvider, clock, metrics,
+                connectivity, holder);
+
+        // Offline, the batch is handed back without a request
+        Batch batch = new Batch(QUEUE, Collections.singletonList(TEST_EVENT));
+        bu.upload(batch);
+        virtualTaskManager.runAll();
+        assertEquals(Collections.singletonList(batch), held);
+        WireMock.verify(0, WireMock.putRequestedFor(WireMock.urlEqualTo(requestPath)));
+
+        // A retry that comes due after going offline is handed back too
+        held.clear();
+        connectivity.setConnected(true);
+        bu.upload(batch);
+        virtualTaskManager.runUntilIdle();
+        connectivity.setConnected(false);
+        virtualTaskManager.runAll();
+
+        assertEquals(Collections.singletonList(batch), held);
+        WireMock.verify(1, WireMock.putRequestedFor(WireMock.urlEqualTo(requestPath)));
+        assertEquals(2, metrics.snapshot(Collections.<String, Integer>emptyMap(), 0)
+                .getCounter(Metrics.UPLOADS_HELD));
+    }
+
     private TaskManager mockTaskManager() {
         TaskManager tm = mock(TaskManager.class);
         doAnswer(new Answer() {
@@ -162,10 +267,11 @@ public class UploaderTest {
             @Override
             public Object answer(InvocationOnMock invocation) throws Throwable {
                 Object[] args = invocation.getArguments();
-                ((Runnable) args[0]).run();
+                ((Runnable) args[1]).run();
                 return null;
             }
-        }).when(tm).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+        }).when(tm).schedule(any(TaskManager.Lane.class), any(Runnable.class), anyLong(),
+                any(TimeUnit.class));
 
         return tm;
     }
@@ -0,0 +1,35 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+/**
+ * Clock that only moves when a test advances it. Setting the wall time
+ * simulates a clock change and leaves the elapsed realtime alone.
+ */
+class VirtualClock implements Clock {
+    private long now;
+    private long elapsed;
+
+    VirtualClock(long now) {
+        this.now = now;
+    }
+
+    @Override
+    public synchronized long now() {
+        return now;
+    }
+
+    @Override
+    public synchronized long elapsedRealtime() {
+        return elapsed;
+    }
+
+    synchronized void set(long now) {
+        this.now = now;
+    }
+
+    synchronized void advance(long millis) {
+        this.now += millis;
+        this.elapsed += millis;
+    }
+}
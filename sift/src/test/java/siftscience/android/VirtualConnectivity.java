@@ -0,0 +1,53 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Connectivity that only changes when a test sets it. Changes notify the
+ * listener on the calling thread, like a connectivity broadcast would.
+ */
+class VirtualConnectivity implements ConnectivitySource {
+    private volatile boolean connected;
+    private volatile boolean metered;
+    private volatile Listener listener;
+
+    VirtualConnectivity(boolean connected) {
+        this.connected = connected;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public boolean isMetered() {
+        return metered;
+    }
+
+    @Override
+    public void setListener(@Nullable Listener listener) {
+        this.listener = listener;
+    }
+
+    void setConnected(boolean connected) {
+        boolean changed = this.connected != connected;
+        this.connected = connected;
+        notifyListener(changed);
+    }
+
+    void setMetered(boolean metered) {
+        boolean changed = this.metered != metered;
+        this.metered = metered;
+        notifyListener(changed);
+    }
+
+    private void notifyListener(boolean changed) {
+        Listener listener = this.listener;
+        if (changed && listener != null) {
+            listener.onConnectivityChanged(connected);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Charging state that only changes when a test sets it. Changes notify the
+ * listener on the calling thread, like a battery broadcast would.
+ */
+class VirtualPower implements PowerSource {
+    private volatile boolean charging;
+    private volatile Listener listener;
+
+    VirtualPower(boolean charging) {
+        this.charging = charging;
+    }
+
+    @Override
+    public boolean isCharging() {
+        return charging;
+    }
+
+    @Override
+    public void setListener(@Nullable Listener listener) {
+        this.listener = listener;
+    }
+
+    void setCharging(boolean charging) {
+        boolean changed = this.charging != charging;
+        this.charging = charging;
+        Listener listener = this.listener;
+        if (changed && listener != null) {
+            listener.onChargingChanged(charging);
+        }
+    }
+}
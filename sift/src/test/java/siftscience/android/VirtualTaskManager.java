@@ -0,0 +1,127 @@
+// Copyright (c) 2018 Sift Science. All rights reserved.
+
+package siftscience.android;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TaskManager that runs tasks on the calling thread in virtual time.
+ *
+ * Tasks run in order of their due time, then submission order, when the
+ * test advances the clock through this task manager. Delays cost no real
+ * time, so days of scheduling can be simulated in milliseconds.
+ */
+class VirtualTaskManager extends TaskManager {
+
+    private static class Entry implements Comparable<Entry> {
+        final long time;
+        final long sequence;
+        final TaskManager.LaneTask task;
+
+        Entry(long time, long sequence, TaskManager.LaneTask task) {
+            this.time = time;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final VirtualClock clock;
+    private final PriorityQueue<Entry> entries = new PriorityQueue<>();
+    private long sequence = 0;
+    private long executed = 0;
+
+    VirtualTaskManager(VirtualClock clock) {
+        this.clock = clock;
+    }
+
+    VirtualClock getClock() {
+        return clock;
+    }
+
+    @Override
+    Future<?> schedule(TaskManager.Lane lane, Runnable task, long delay, TimeUnit unit) {
+        TaskManager.LaneTask future = new TaskManager.LaneTask(task);
+        entries.add(new Entry(clock.now() + unit.toMillis(Math.max(0, delay)),
+                sequence++, future));
+        return future;
+    }
+
+    /**
+     * Rejects the tasks that have not run, like the lanes do at shutdown.
+     */
+    @Override
+    void shutdown() {
+        Entry entry;
+        while ((entry = entries.poll()) != null) {
+            entry.task.reject();
+        }
+    }
+
+    /**
+     * Runs every task that is due without moving the clock.
+     */
+    void runUntilIdle() {
+        advance(0);
+    }
+
+    /**
+     * Moves the clock forward, running the tasks that become due on the way
+     * at their due time.
+     */
+    void advance(long millis) {
+        long target = clock.now() + millis;
+        Entry entry;
+        while ((entry = entries.peek()) != null && entry.time <= target) {
+            entries.poll();
+            if (entry.time > clock.now()) {
+                clock.advance(entry.time - clock.now());
+            }
+            run(entry);
+        }
+        clock.advance(target - clock.now());
+    }
+
+    /**
+     * Runs all tasks, moving the clock to each due time, until none is left.
+     */
+    void runAll() {
+        Entry entry;
+        while ((entry = entries.poll()) != null) {
+            if (entry.time > clock.now()) {
+                clock.advance(entry.time - clock.now());
+            }
+            run(entry);
+        }
+    }
+
+    /**
+     * @return the number of tasks that have not run yet
+     */
+    int getPendingTasks() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of tasks that ran
+     */
+    long getExecutedTasks() {
+        return executed;
+    }
+
+    private void run(Entry entry) {
+        if (!entry.task.isCancelled()) {
+            entry.task.run();
+            executed++;
+        }
+    }
+}